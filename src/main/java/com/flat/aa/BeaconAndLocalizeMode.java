@@ -1,6 +1,7 @@
 package com.flat.aa;
 
 import android.content.Context;
+import android.util.Log;
 
 import com.flat.wifi.WifiHelper;
 
@@ -11,11 +12,18 @@ import java.util.TimerTask;
  * Created by Jacob Phillips.
  */
 public class BeaconAndLocalizeMode {
+    private static final String TAG = BeaconAndLocalizeMode.class.getSimpleName();
 
     Context context;
     WifiHelper wifiHelper;
     boolean enabled;
     Timer timer;
+    final IncrementalLocalizer localizer = new IncrementalLocalizer();
+    final SmacofRefiner refiner = new SmacofRefiner();
+    int cyclesSinceFullSolve;
+    /** Fingerprint of the range tables behind the coordinate system set by the last cycle. */
+    long lastFingerprint;
+    CoordinateSystem lastCoords;
 
     private static BeaconAndLocalizeMode instance;
     public static BeaconAndLocalizeMode getInstance(Context ctx) {
@@ -53,7 +61,37 @@ public class BeaconAndLocalizeMode {
         wifiHelper.setSoftApEnabled(true);
 
         // Magic
-        Localizer.localize();
+        localize();
+    }
+
+    /**
+     * Refines the previous coordinate system against the latest ranges, with a full solve when
+     * there is nothing to refine yet or every {@link Config#LOCALIZE_FULL_SOLVE_CYCLES} cycles.
+     */
+    void localize() {
+        Node local = NodeManager.getInstance().getLocalNode();
+        CoordinateSystem previous = local.getCoords();
+        Localizer.RangeTableMap rangeTables = Localizer.getRangeTables();
+        long fingerprint = Localizer.fingerprint(rangeTables);
+        if (previous != null && previous == lastCoords && fingerprint == lastFingerprint) {
+            Log.d(TAG, "Ranges unchanged, keeping coordinate system");
+            return;
+        }
+
+        if (previous != null && previous.size() >= 3 && cyclesSinceFullSolve < Config.LOCALIZE_FULL_SOLVE_CYCLES) {
+            CoordinateSystem refined = refiner.refine(previous, rangeTables);
+            if (refined != null) {
+                local.setCoords(refined);
+                ++cyclesSinceFullSolve;
+                lastCoords = refined;
+                lastFingerprint = fingerprint;
+                return;
+            }
+        }
+        localizer.localize();
+        cyclesSinceFullSolve = 0;
+        lastCoords = local.getCoords();
+        lastFingerprint = fingerprint;
     }
 
     public void stop() {
@@ -8,7 +8,37 @@ public class Config {
     public static final int SCAN_MIN_SCANS = 30;
     public static final int SCAN_MAX_SCANS = 45;
     public static final long SCAN_CUTOFF_AGE_US = 2 * 60 * 1000000; // micro sec
+    public static final boolean SCAN_ADAPTIVE = true; // false to scan every SCAN_PERIOD_MS, see ScanScheduler
+    public static final int SCAN_PERIOD_MIN_MS = 1000;
+    public static final int SCAN_PERIOD_MAX_MS = 16000; // also the retry if a scan's results never arrive
+    public static final int SCAN_PHASE_MIN_SCANS = 8; // a phase can end once levels converge after this many
+    public static final int SCAN_PHASE_MAX_MS = SCAN_MIN_SCANS * SCAN_PERIOD_MS; // adaptive phases are no longer than fixed ones
+    public static final double SCAN_VARIANCE_ALPHA = 0.3; // weight of each new level in a BSSID's mean and variance
+    public static final double SCAN_UNSTABLE_DB = 6; // std dev of a noisy level
+    public static final double SCAN_CONVERGED_DB = 1.5; // std error of a converged level
+    public static final int SCAN_CONVERGE_MIN_RESULTS = 5;
+    public static final String SCAN_RSSI_ESTIMATOR = "max"; // max, kalman, ema, median or p and a percentile, see RssiEstimators
+    public static final double SCAN_KALMAN_PROCESS_NOISE = 0.5; // dB^2 per second
+    public static final double SCAN_KALMAN_MEASUREMENT_NOISE = 16; // dB^2
+    public static final double SCAN_EMA_ALPHA = 0.2;
+    public static final boolean SCAN_TRACE_RECORD = false; // append scans to a ScanTrace file in the app's external files
+    public static final int SCAN_QUEUE_CAPACITY = 8; // items a ScanStage holds before dropping the oldest
+    public static final int SCAN_SLOW_STAGE_MS = 100; // scan stages taking longer per item are logged
 
     public static final int BEACON_PERIOD_MIN_MS = 10000;
     public static final int BEACON_PERIOD_MAX_MS = 15000;
+
+    public static final long RANGE_TTL_MS = 5 * 60 * 1000; // ranges not updated for this long are dropped
+    public static final int RANGE_TABLE_MAX_ENTRIES = 256; // least recently updated are dropped beyond this
+
+    public static final int SMACOF_MAX_ITERATIONS = 20;
+    public static final double SMACOF_TOLERANCE = 1E-4;
+    public static final int LOCALIZE_FULL_SOLVE_CYCLES = 10; // refine in between
+    public static final int LOCALIZE_CACHE_SIZE = 8;
+    public static final int LOCALIZE_ENGINE = Localizer.ENGINE_TRIANGLES; // or Localizer.ENGINE_MDS
+    public static final int LOCALIZE_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors()); // 1 to localize on the calling thread only
+
+    public static final boolean WIRE_FORMAT_BINARY = true; // false to always send JSON, for debugging
+    public static final boolean DELTA_SYNC = true; // false to always send whole nodes
+    public static final int DELTA_MAX_REMOVED = 256; // removals remembered for delta sync
 }
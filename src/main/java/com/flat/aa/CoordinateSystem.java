@@ -26,6 +26,13 @@ public class CoordinateSystem {
     }
 
     public CoordinateSystem() {}
+    /** A copy with copies of the other's states. */
+    public CoordinateSystem(CoordinateSystem other) {
+        for (State s : other.nodes.values()) {
+            nodes.put(s.id, new State(s));
+        }
+        root = other.root;
+    }
     public CoordinateSystem(String jsonArray) {
         try {
             JSONArray json = new JSONArray(jsonArray);
@@ -0,0 +1,277 @@
+package com.flat.aa;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the intermediate structures of {@link Localizer} (common nodes and directly localizable
+ * nodes) alive between passes, and only recomputes the rows and columns belonging to range
+ * tables that changed since the last pass. Like {@link Localizer#solve}, the range tables are
+ * split into connected components first and each component keeps its own state and is localized
+ * separately, in parallel if a parallelism is set. The resulting coordinate system of each
+ * component is the same as a full rebuild with {@link Localizer#localize(Localizer.RangeTableMap)}.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public class IncrementalLocalizer {
+    private static final String TAG = IncrementalLocalizer.class.getSimpleName();
+
+    /** The state of each component by its first node id, which is how it is found in the next pass. */
+    final Map<String, Component> components = new HashMap<String, Component>();
+
+    /**
+     * Does an incremental localization pass and sets the result as the local node's coordinate
+     * system, that of the component containing the local node or else of the largest component.
+     * The MDS engine has no intermediate state to reuse, so with it selected each component gets
+     * a full MDS pass.
+     */
+    public void localize() {
+        Node local = NodeManager.getInstance().getLocalNode();
+        CoordinateSystem newCoords = Localizer.pick(localizeComponents(Localizer.getRangeTables()), local.getId());
+        if (newCoords != null) {
+            local.setCoords(newCoords);
+        }
+    }
+
+    /** Drop all cached state so the next pass is a full rebuild. */
+    public void reset() {
+        components.clear();
+    }
+
+    /**
+     * Localizes each component of the range tables, reusing the state of the last pass.
+     * @return the coordinate system of the largest component, or null if none was localizable.
+     */
+    public CoordinateSystem localize(Localizer.RangeTableMap rangeTables) {
+        return Localizer.pick(localizeComponents(rangeTables), null);
+    }
+
+    /**
+     * Splits the range tables into connected components and updates each one's cached structures
+     * for its range tables that changed. State is dropped for components that no longer exist.
+     * @return a coordinate system for each component that could be localized, keyed by the
+     * component's first node id.
+     */
+    public Localizer.CoordsList localizeComponents(Localizer.RangeTableMap rangeTables) {
+        long startTime = System.nanoTime();
+        final List<Localizer.RangeTableMap> parts = RangeGraphPartitioner.partition(rangeTables);
+        final Component[] states = new Component[parts.size()];
+        Map<String, Component> kept = new HashMap<String, Component>();
+        for (int i = 0; i < states.length; ++i) {
+            String key = parts.get(i).firstKey();
+            states[i] = components.get(key);
+            if (states[i] == null) {
+                states[i] = new Component();
+            }
+            kept.put(key, states[i]);
+        }
+        components.clear();
+        components.putAll(kept);
+
+        final boolean mds = Localizer.getEngine() == Localizer.ENGINE_MDS;
+        final CoordinateSystem[] results = new CoordinateSystem[states.length];
+        ParallelLoop.run(Localizer.getPool(), states.length, 1, new ParallelLoop.Body() {
+            @Override
+            public void run(int i) {
+                results[i] = mds ? Localizer.solveComponent(parts.get(i)) : states[i].localize(parts.get(i));
+            }
+        });
+
+        Localizer.CoordsList coords = new Localizer.CoordsList();
+        for (int i = 0; i < results.length; ++i) {
+            if (results[i] != null && results[i].size() > 0) {
+                coords.put(parts.get(i).firstKey(), results[i]);
+            }
+        }
+        Log.d(TAG, "Localizing " + coords.size() + " of " + parts.size() + " components took " + (System.nanoTime() - startTime) / 1E6f + "ms");
+        return coords;
+    }
+
+    /** The cached structures of one connected component. */
+    static final class Component {
+        final Localizer.NodeSetMapMap allCommonNodes = new Localizer.NodeSetMapMap();
+        final Localizer.NodeSetMap directlyLocalizable = new Localizer.NodeSetMap();
+        final NodeGraph graph = new NodeGraph();
+
+        /** The range table and its version as seen during the last pass, used to find changed tables. */
+        final Map<String, RangeTable> lastTables = new HashMap<String, RangeTable>();
+        final Map<String, Integer> lastVersions = new HashMap<String, Integer>();
+        /** The pair range store version during the last pass; its means are ranges too. */
+        int lastPairVersion = -1;
+
+        CoordinateSystem lastCoords;
+
+        /**
+         * Updates the cached structures for the range tables that changed and rebuilds the coordinate system.
+         * @return the new coordinate system, or null if not enough nodes were localizable.
+         */
+        CoordinateSystem localize(Localizer.RangeTableMap rangeTables) {
+            // read before the ranges, like the table versions
+            int pairVersion = Localizer.getPairRangesVersion();
+            Localizer.NodeSet changed = findChangedTables(rangeTables);
+            if (changed.isEmpty() && pairVersion == lastPairVersion) {
+                return lastCoords;
+            }
+
+            if (rangeTables.size() < 2) {
+                reset();
+                rememberTables(rangeTables, pairVersion);
+                return lastCoords = new CoordinateSystem();
+            }
+
+            long startTime = System.nanoTime();
+            updateCommonNodes(rangeTables, changed);
+            Log.d(TAG, "Updating common nodes for " + changed.size() + " changed tables took " + (System.nanoTime() - startTime) / 1E6f + "ms");
+
+            RangeIndex ranges = new RangeIndex(rangeTables);
+
+            // Common nodes only depend on which ranges there are, but any pair mean may have moved
+            // since the last pass, so then every directly localizable set is recomputed.
+            Localizer.NodeSet touched = changed;
+            if (pairVersion != lastPairVersion) {
+                touched = new Localizer.NodeSet();
+                touched.addAll(rangeTables.keySet());
+            }
+            startTime = System.nanoTime();
+            Localizer.NodeSet dirty = updateDirectlyLocalizable(ranges, touched);
+            Log.d(TAG, "Updating " + dirty.size() + " directly localizable sets took " + (System.nanoTime() - startTime) / 1E6f + "ms");
+
+            rememberTables(rangeTables, pairVersion);
+            return lastCoords = Localizer.buildCoordinateSystem(ranges, allCommonNodes, directlyLocalizable);
+        }
+
+        void reset() {
+            allCommonNodes.clear();
+            directlyLocalizable.clear();
+            graph.clear();
+            lastTables.clear();
+            lastVersions.clear();
+            lastPairVersion = -1;
+            lastCoords = null;
+        }
+
+        /** Nodes whose range table was added, removed, replaced or modified since the last pass. */
+        Localizer.NodeSet findChangedTables(Localizer.RangeTableMap rangeTables) {
+            Localizer.NodeSet changed = new Localizer.NodeSet();
+            for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+                Integer version = lastVersions.get(table.getKey());
+                if (lastTables.get(table.getKey()) != table.getValue()
+                        || version == null || version != table.getValue().getVersion()) {
+                    changed.add(table.getKey());
+                }
+            }
+            for (String node : lastTables.keySet()) {
+                if (!rangeTables.containsKey(node)) {
+                    changed.add(node);
+                }
+            }
+            return changed;
+        }
+
+        void rememberTables(Localizer.RangeTableMap rangeTables, int pairVersion) {
+            lastPairVersion = pairVersion;
+            lastTables.clear();
+            lastVersions.clear();
+            for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+                lastTables.put(table.getKey(), table.getValue());
+                lastVersions.put(table.getKey(), table.getValue().getVersion());
+            }
+        }
+
+        /** Recompute the common node sets for every pair involving a changed table. */
+        void updateCommonNodes(Localizer.RangeTableMap rangeTables, Localizer.NodeSet changed) {
+            for (String node : changed) {
+                RangeTable table = rangeTables.get(node);
+                if (table == null) {
+                    graph.removeTable(node);
+                } else {
+                    graph.setTable(node, table);
+                }
+            }
+
+            // Rows only exist for every table except the last.
+            String last = rangeTables.lastKey();
+            Iterator<String> rows = allCommonNodes.keySet().iterator();
+            while (rows.hasNext()) {
+                String outer = rows.next();
+                if (!rangeTables.containsKey(outer) || outer.equals(last)) {
+                    rows.remove();
+                }
+            }
+
+            // Whole rows are rebuilt for new or changed tables; the rest only get their changed columns updated.
+            Localizer.NodeSet rebuild = new Localizer.NodeSet();
+            for (String outer : rangeTables.headMap(last, false).keySet()) {
+                Localizer.NodeSetMap row = allCommonNodes.get(outer);
+                if (row == null || changed.contains(outer)) {
+                    rebuild.add(outer);
+                    continue;
+                }
+
+                // drop columns of removed tables
+                Iterator<String> columns = row.keySet().iterator();
+                while (columns.hasNext()) {
+                    if (!rangeTables.containsKey(columns.next())) {
+                        columns.remove();
+                    }
+                }
+
+                for (String inner : rangeTables.tailMap(outer, false).keySet()) {
+                    if (changed.contains(inner) || !row.containsKey(inner)) {
+                        row.put(inner, graph.findCommonNodes(outer, inner));
+                    }
+                }
+            }
+            Localizer.findCommonNodes(rangeTables, graph, rebuild, allCommonNodes);
+        }
+
+        /**
+         * A directly localizable set depends on the ranges between its outer node, each inner node and
+         * each of their common nodes, so it is recomputed if any of those belong to a changed table.
+         * @return the nodes whose directly localizable set is different from the last pass.
+         */
+        Localizer.NodeSet updateDirectlyLocalizable(RangeIndex ranges, Localizer.NodeSet changed) {
+            Localizer.NodeSet dirty = new Localizer.NodeSet();
+
+            Iterator<String> rows = directlyLocalizable.keySet().iterator();
+            while (rows.hasNext()) {
+                String outer = rows.next();
+                if (!allCommonNodes.containsKey(outer)) {
+                    rows.remove();
+                    dirty.add(outer);
+                }
+            }
+
+            Localizer.NodeSet recompute = new Localizer.NodeSet();
+            for (Map.Entry<String, Localizer.NodeSetMap> outer : allCommonNodes.entrySet()) {
+                if (!directlyLocalizable.containsKey(outer.getKey()) || touches(outer.getKey(), outer.getValue(), changed)) {
+                    recompute.add(outer.getKey());
+                }
+            }
+
+            Localizer.NodeSetMap results = new Localizer.NodeSetMap();
+            Localizer.findDirectlyLocalizable(ranges, allCommonNodes, recompute, results);
+            for (Map.Entry<String, Localizer.NodeSet> result : results.entrySet()) {
+                if (!result.getValue().equals(directlyLocalizable.put(result.getKey(), result.getValue()))) {
+                    dirty.add(result.getKey());
+                }
+            }
+            return dirty;
+        }
+
+        static boolean touches(String outer, Localizer.NodeSetMap row, Localizer.NodeSet changed) {
+            if (changed.contains(outer)) return true;
+            for (Map.Entry<String, Localizer.NodeSet> inner : row.entrySet()) {
+                if (changed.contains(inner.getKey())) return true;
+                for (String node : changed) {
+                    if (inner.getValue().contains(node)) return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.flat.aa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans which nodes can be localized under a root and in what order, by a breadth-first search
+ * over the directly localizable graph (an edge from A to B when B is directly localizable by A).
+ * Unlike the old neighbors / neighbors' neighbors lists there is no limit on the number of hops.
+ * Runs in O(V+E) using int indices and a primitive queue.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class LocalizationPlanner {
+    private LocalizationPlanner() {}
+
+    /**
+     * @return the hop levels reachable from the root. Level 0 holds the root's directly localizable
+     * nodes with a null path; level k holds the nodes k+1 hops away, each with the path of nodes
+     * followed to reach it from the root (root excluded, parent last).
+     */
+    public static Localizer.LocalizationRoot plan(String rootId, Localizer.NodeSetMap directlyLocalizable) {
+        Localizer.LocalizationRoot root = new Localizer.LocalizationRoot(rootId);
+        if (rootId == null || !directlyLocalizable.containsKey(rootId)) {
+            return root;
+        }
+
+        // Index every node, in key order so the search is the same from one pass to the next.
+        Map<String, Integer> indices = new HashMap<String, Integer>();
+        List<String> ids = new ArrayList<String>();
+        int edgeCount = 0;
+        for (Map.Entry<String, Localizer.NodeSet> entry : directlyLocalizable.entrySet()) {
+            index(entry.getKey(), indices, ids);
+            edgeCount += entry.getValue().size();
+        }
+        for (Localizer.NodeSet set : directlyLocalizable.values()) {
+            for (String node : set) {
+                index(node, indices, ids);
+            }
+        }
+        int nodeCount = ids.size();
+
+        // Compressed adjacency: edges of node i are edges[start[i]] to edges[start[i+1] - 1].
+        int[] start = new int[nodeCount + 1];
+        int[] edges = new int[edgeCount];
+        int e = 0;
+        for (int i = 0; i < nodeCount; ++i) {
+            start[i] = e;
+            Localizer.NodeSet set = directlyLocalizable.get(ids.get(i));
+            if (set != null) {
+                for (String node : set) {
+                    edges[e++] = indices.get(node);
+                }
+            }
+        }
+        start[nodeCount] = e;
+
+        int[] queue = new int[nodeCount];
+        int[] parent = new int[nodeCount];
+        int[] hops = new int[nodeCount];
+        Arrays.fill(hops, -1);
+
+        int source = indices.get(rootId);
+        int head = 0, tail = 0;
+        queue[tail++] = source;
+        hops[source] = 0;
+        parent[source] = -1;
+        while (head < tail) {
+            int u = queue[head++];
+            for (int i = start[u]; i < start[u + 1]; ++i) {
+                int v = edges[i];
+                if (hops[v] < 0) {
+                    hops[v] = hops[u] + 1;
+                    parent[v] = u;
+                    queue[tail++] = v;
+                }
+            }
+        }
+
+        // The queue holds nodes in order of hops, so each level is complete before the next starts.
+        for (int q = 1; q < tail; ++q) {
+            int v = queue[q];
+            int level = hops[v] - 1;
+            if (root.size() == level) {
+                root.add(new Localizer.NodePathMap());
+            }
+            String[] path = null;
+            if (level > 0) {
+                path = new String[level];
+                for (int p = parent[v], i = level - 1; i >= 0; p = parent[p], --i) {
+                    path[i] = ids.get(p);
+                }
+            }
+            root.get(level).put(ids.get(v), path);
+        }
+        return root;
+    }
+
+    private static void index(String node, Map<String, Integer> indices, List<String> ids) {
+        if (!indices.containsKey(node)) {
+            indices.put(node, ids.size());
+            ids.add(node);
+        }
+    }
+}
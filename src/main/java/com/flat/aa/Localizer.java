@@ -3,11 +3,18 @@ package com.flat.aa;
 import android.util.Log;
 
 import com.flat.localization.util.Calc;
+import com.flat.localization.util.PairRangeStore;
+import com.flat.localization.util.ResultCache;
+import com.flat.localization.util.RigidityAnalyzer;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * A coordinate system is a list of nodes with their coordinates in that system. There is also
@@ -38,280 +45,472 @@ public class Localizer {
     }
 
 
-    public static void localize() {
-        RangeTableMap rangeTables = new RangeTableMap();
-        for (Node n : NodeManager.getInstance().getNodesWithRangeTables()) {
-            rangeTables.put(n.getId(), n.getRangeTable());
-        }
-
-        // Find coordinate system with the most nodes
-        String winnerNode = null;
-//        int nodeCount = 0;
-//        for (String node : coordsList.keySet()) {
-//            CoordinateSystem coords = coordsList.get(node);
-//            if (coords != null && coords.size() > nodeCount) {
-//                nodeCount = coords.size();
-//                winnerNode = node;
-//            }
-//        }
-
-        CoordinateSystem newCoords = new CoordinateSystem();
-
-        if (rangeTables.size() >= 2) {
+    /** Chains triangles out from the node that can directly localize the most nodes. */
+    public static final int ENGINE_TRIANGLES = 0;
+    /** Solves all nodes at once with classical MDS, see {@link MdsLocalizer}. */
+    public static final int ENGINE_MDS = 1;
 
-            // The complete list of common nodes
-            NodeSetMapMap allCommonNodes = new NodeSetMapMap();
+    private static int engine = Config.LOCALIZE_ENGINE;
 
-            long startTime = System.nanoTime();
+    /** Sets which engine {@link #solve} and {@link IncrementalLocalizer#localize()} use, {@link Config#LOCALIZE_ENGINE} by default. */
+    public static synchronized void setEngine(int engine) {
+        if (engine != ENGINE_TRIANGLES && engine != ENGINE_MDS) {
+            throw new IllegalArgumentException("Unknown localization engine " + engine);
+        }
+        Localizer.engine = engine;
+    }
+    public static synchronized int getEngine() { return engine; }
 
-            // Iterate through each range table, except the last
-            for (Map.Entry<String, RangeTable> table : rangeTables.subMap(
-                    rangeTables.firstKey(), true, rangeTables.lastKey(), false).entrySet()) {
+    private static PairRangeStore pairRanges;
 
-                // A map of common nodes from the point of view of a single node (A has common nodes with B, A has common nodes with C, etc.)
-                // "commonNodesFromThePointOfViewOfAParticularNode"
-                NodeSetMap nodeCommonNodes = new NodeSetMap();
+    /**
+     * Sets the store of every range measured between each pair of nodes. When set, localization
+     * uses each pair's mean range rather than the lesser of the latest range from each direction.
+     */
+    public static synchronized void setPairRanges(PairRangeStore store) {
+        pairRanges = store;
+    }
+    public static synchronized PairRangeStore getPairRanges() { return pairRanges; }
 
-                // Iterate through the other range tables that are after the current one.
-                for (Map.Entry<String, RangeTable> nextTable : rangeTables.subMap(
-                        table.getKey(), false, rangeTables.lastKey(), true).entrySet()) {
+    /** @return the version of the pair range store, or -1 without one. Changes whenever the pair means may have. */
+    static int getPairRangesVersion() {
+        PairRangeStore store = getPairRanges();
+        return store == null ? -1 : store.getVersion();
+    }
 
-                    // Note this will not include the two nodes represented by "table" and "nextTable" because
-                    // they only contain a reference to each other, not themselves (both would have to be true).
-                    // (actually, table contains a reference to nextTable, but nextTable need not contain a reference to table.)
-                    NodeSet nodes = new NodeSet();
-                    nodes.addAll(table.getValue().keySet());            // start with the nodes in the range table in the outer loop
-                    nodes.retainAll(nextTable.getValue().keySet());     // only keep nodes that are common to the range table in the inner loop
-                    nodeCommonNodes.put(nextTable.getKey(), nodes);     // the owner of "nextTable" has all those nodes in common with the owner of "table".
+    /** Coordinate systems by the fingerprint of the range tables and engine that produced them. */
+    private static final ResultCache<CoordinateSystem> cache = new ResultCache<CoordinateSystem>(Config.LOCALIZE_CACHE_SIZE,
+            new ResultCache.Copier<CoordinateSystem>() {
+                @Override
+                public CoordinateSystem copy(CoordinateSystem result) {
+                    return new CoordinateSystem(result);
                 }
+            });
+    public static ResultCache<CoordinateSystem> getCache() { return cache; }
 
-                allCommonNodes.put(table.getKey(), nodeCommonNodes);    // the owner of "table" has a complete mapping of common nodes between itself
-                                                                        // and all the nodes in front of it in the list of range tables.
-            }
-            Log.d(TAG, "Finding all common nodes took " + (System.nanoTime() - startTime) / 1E6f + "ms");
-
-
-
-
-            // Now, we look for the largest number of nodes that can be localized by recursively counting
-            // common nodes from other common nodes. Yep. Why? Because if C is common to A and B, then by extension,
-            // any nodes common to B and C can also be localized under A. Then if D is common to any two nodes localizable
-            // under A, D is also localizable. So on and so forth.
-
-            // TODO "Directly localizable" nodes here use groups of 3 nodes, which will restrict localization to give 2 values for the y coordinate (x, +-y)
+    /**
+     * @return a hash of every range table's owner and contents, in key order, and of the version
+     * of the pair range store whose means replace the ranges.
+     */
+    public static long fingerprint(RangeTableMap rangeTables) {
+        long h = ResultCache.combine(rangeTables.size(), getPairRangesVersion());
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            h = ResultCache.combine(h, table.getKey().hashCode());
+            h = ResultCache.combine(h, table.getValue().getFingerprint());
+        }
+        return h;
+    }
 
-            // Keep track of which nodes are directly localizable from the point of view of each node.
-            NodeSetMap directlyLocalizable = new NodeSetMap();
+    /**
+     * @return what localizing the range tables depends on, to confirm a cache hit: the engine, the
+     * pair range store version and each table's owner and ranges.
+     */
+    static List<Object> inputs(RangeTableMap rangeTables, int engine) {
+        List<Object> inputs = new ArrayList<Object>(2 + 2 * rangeTables.size());
+        inputs.add(engine);
+        inputs.add(getPairRangesVersion());
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            Map<String, Float> ranges = new HashMap<String, Float>();
+            for (RangeTable.Entry entry : table.getValue().getEntries()) {
+                ranges.put(entry.bssid, entry.range);
+            }
+            inputs.add(table.getKey());
+            inputs.add(ranges);
+        }
+        return inputs;
+    }
 
-            startTime = System.nanoTime();
-            for (Map.Entry<String, NodeSetMap> outer : allCommonNodes.entrySet()) {
+    /**
+     * Localizes each connected component of the range tables with the current engine, see
+     * {@link #localizeComponents}.
+     * @param preferred a node whose component's coordinate system to return, or null.
+     * @return the coordinate system of the component containing the preferred node, or else of the
+     * largest component; null if no component was localizable.
+     */
+    static CoordinateSystem solve(RangeTableMap rangeTables, String preferred) {
+        return pick(localizeComponents(rangeTables), preferred);
+    }
 
-                NodeSet directSet = new NodeSet();
+    /**
+     * Localizes one connected component with the current engine, reusing the result of an earlier
+     * pass over the same ranges if there is one.
+     * @return the coordinate system, or null if not enough nodes were localizable.
+     */
+    static CoordinateSystem solveComponent(RangeTableMap rangeTables) {
+        int engine = getEngine();
+        long key = ResultCache.combine(fingerprint(rangeTables), engine);
+        List<Object> inputs = inputs(rangeTables, engine);
+        CoordinateSystem coords = cache.get(key, inputs);
+        if (coords == null) {
+            coords = engine == ENGINE_MDS ? MdsLocalizer.localize(rangeTables) : localize(rangeTables);
+            cache.put(key, inputs, coords);
+        } else {
+            Log.d(TAG, "Reusing coordinate system, " + cache);
+        }
+        return coords;
+    }
 
-                for (Map.Entry<String, NodeSet> inner : outer.getValue().entrySet()) {
-                    float innerToOuter = findRangeBetween(rangeTables, inner.getKey(), outer.getKey());
-                    boolean hasMatch = false;
+    /**
+     * @param preferred a node whose coordinate system to return, or null.
+     * @return the coordinate system containing the preferred node, or else the largest one
+     * (the first by key among equals); null if there are none.
+     */
+    static CoordinateSystem pick(CoordsList components, String preferred) {
+        CoordinateSystem best = null;
+        for (CoordinateSystem coords : components.values()) {
+            if (preferred != null && coords.getState(preferred) != null) {
+                return coords;
+            } else if (best == null || coords.size() > best.size()) {
+                best = coords;
+            }
+        }
+        return best;
+    }
 
-                    // filter linear nodes.
-                    for (String s : inner.getValue()) {
-                        // range1: current node to inner
-                        // range2: current node to outer
-                        // range3: inner to outer
-                        float r1 = findRangeBetween(rangeTables, s, inner.getKey());
-                        float r2 = findRangeBetween(rangeTables,s, outer.getKey());
-                        if (!areLinear(r1, r2, innerToOuter)) {
-                            directSet.add(s);
-                            hasMatch = true;
-                        }
-                    }
+    private static ForkJoinPool pool = Config.LOCALIZE_PARALLELISM > 1
+            ? new ForkJoinPool(Config.LOCALIZE_PARALLELISM) : null;
 
-                    // If there is at least one common node for inner and outer, inner can be localized by outer.
-                    if (hasMatch) {
-                        directSet.add(inner.getKey());
-                    }
+    /**
+     * Sets the number of threads used to localize separate components and to find common nodes
+     * and directly localizable nodes, {@link Config#LOCALIZE_PARALLELISM} by default.
+     * With a parallelism of 1 the passes run sequentially on the calling thread.
+     * The result is the same either way. A pass already running on the old pool finishes on it.
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism == getParallelism()) return;
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+    public static synchronized int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+    static synchronized ForkJoinPool getPool() { return pool; }
 
-                }
+    /** Collects the range tables of all nodes that have one, keyed by node id. */
+    static RangeTableMap getRangeTables() {
+        RangeTableMap rangeTables = new RangeTableMap();
+        for (Node n : NodeManager.getInstance().getNodesWithRangeTables()) {
+            rangeTables.put(n.getId(), n.getRangeTable());
+        }
+        return rangeTables;
+    }
 
-                directlyLocalizable.put(outer.getKey(), directSet);
+    /**
+     * Splits the range tables into connected components with {@link RangeGraphPartitioner} and
+     * localizes each one separately with the current engine, in parallel if a parallelism is set.
+     * @return a coordinate system for each component that could be localized, keyed by the
+     * component's first node id.
+     */
+    public static CoordsList localizeComponents(RangeTableMap rangeTables) {
+        long startTime = System.nanoTime();
+        final List<RangeTableMap> components = RangeGraphPartitioner.partition(rangeTables);
+        final CoordinateSystem[] results = new CoordinateSystem[components.size()];
+        ParallelLoop.run(getPool(), components.size(), 1, new ParallelLoop.Body() {
+            @Override
+            public void run(int i) {
+                results[i] = solveComponent(components.get(i));
+            }
+        });
 
+        CoordsList coords = new CoordsList();
+        for (int i = 0; i < results.length; ++i) {
+            if (results[i] != null && results[i].size() > 0) {
+                coords.put(components.get(i).firstKey(), results[i]);
             }
-            Log.d(TAG, "Finding map of directly localizable nodes took " + (System.nanoTime() - startTime) / 1E6f + "ms");
+        }
+        Log.d(TAG, "Localizing " + coords.size() + " of " + components.size() + " components took " + (System.nanoTime() - startTime) / 1E6f + "ms");
+        return coords;
+    }
 
+    /**
+     * Builds a coordinate system from scratch using the given range tables.
+     * @return the new coordinate system, or null if not enough nodes were localizable.
+     */
+    public static CoordinateSystem localize(RangeTableMap rangeTables) {
+        if (rangeTables.size() < 2) {
+            return new CoordinateSystem();
+        }
 
-            // Now we have a map of all the nodes directly localizable under a given node. Combining this map
-            // will give us the full list of nodes localizable under any given node.
+        // The complete list of common nodes
+        NodeSetMapMap allCommonNodes = new NodeSetMapMap();
 
-            // The list of strings is the path of directly localizable nodes taken to get to the inner node from the outer node.
-            // Node -> list of localizable nodes and any in-between nodes.
-            //          list 0: node that can be localized in 1 hop (neighbor)
-            //          list 1: node that can be localized in 2 hops
-            //          ...
-            LocalizableNodeList localizableNodes = new LocalizableNodeList();
+        long startTime = System.nanoTime();
+        NodeGraph graph = new NodeGraph(rangeTables);
+        RangeIndex ranges = new RangeIndex(rangeTables);
 
+        // Iterate through each range table, except the last
+        // the owner of "table" has a complete mapping of common nodes between itself
+        // and all the nodes in front of it in the list of range tables.
+        findCommonNodes(rangeTables, graph, rangeTables.headMap(rangeTables.lastKey(), false).keySet(), allCommonNodes);
+        Log.d(TAG, "Finding all common nodes took " + (System.nanoTime() - startTime) / 1E6f + "ms");
 
-            // Get all 1 and 2 hop nodes localizable.
-            for (Map.Entry<String, NodeSet> outer : directlyLocalizable.entrySet()) {
 
-                // TODO, the term "neighbors" is used here meaning the directly localizable nodes, not necessarily meaning those nodes which have a range.
+        // Keep track of which nodes are directly localizable from the point of view of each node.
+        NodeSetMap directlyLocalizable = new NodeSetMap();
 
-                // create the associations to be populated later in the loop.
-                NodeHopList hopList = new NodeHopList();
-                NodePathMap neighbors = new NodePathMap();
-                NodePathMap neighborsNeighbors = new NodePathMap();
-                hopList.add(neighbors);
-                hopList.add(neighborsNeighbors);
-                localizableNodes.put(outer.getKey(), hopList);
+        startTime = System.nanoTime();
+        findDirectlyLocalizable(ranges, allCommonNodes, allCommonNodes.keySet(), directlyLocalizable);
+        Log.d(TAG, "Finding map of directly localizable nodes took " + (System.nanoTime() - startTime) / 1E6f + "ms");
 
-                // for every directly localizable node in "outer"
-                for (String outerNode : outer.getValue()) {
+        return buildCoordinateSystem(ranges, allCommonNodes, directlyLocalizable);
+    }
 
-                    // all directly localizable nodes are neighbors and no path is needed
-                    neighbors.put(outerNode, null);
+    /**
+     * A map of common nodes from the point of view of a single node (A has common nodes with B, A has common nodes with C, etc.)
+     * Only the range tables that come after "table" in the map are considered.
+     * <p>
+     * Note this will not include the two nodes represented by "table" and "nextTable" because
+     * they only contain a reference to each other, not themselves (both would have to be true).
+     * (actually, table contains a reference to nextTable, but nextTable need not contain a reference to table.)
+     */
+    static NodeSetMap findCommonNodes(RangeTableMap rangeTables, NodeGraph graph, String table) {
+        NodeSetMap nodeCommonNodes = new NodeSetMap();
+        long[] scratch = new long[graph.getAdjacency().getWordCount()];
 
-                    // Add all the nodes that are directly localizable under this node, keeping the
-                    // path of nodes followed for later use.
-                    NodeSet directSet = directlyLocalizable.get(outerNode);
-                    if (directSet != null) {
-                        for (String innerNode : directSet) {
-                            // make sure this node isn't already in the list somewhere
-                            if (!neighbors.containsKey(innerNode) && !neighborsNeighbors.containsKey(innerNode) && !innerNode.equals(outer.getKey())) { // TODO outer or outernode or both?
-                                neighborsNeighbors.put(innerNode, new String[]{outerNode});
-                            }
-                        }
-                    }
-                }
+        // Iterate through the other range tables that are after the current one.
+        for (String nextTable : rangeTables.tailMap(table, false).keySet()) {
+            nodeCommonNodes.put(nextTable, graph.findCommonNodes(table, nextTable, scratch));     // the owner of "nextTable" has all those nodes in common with the owner of "table".
+        }
+        return nodeCommonNodes;
+    }
+
+    /** Finds the common node map of each of the given tables, in parallel if a parallelism is set. */
+    static void findCommonNodes(final RangeTableMap rangeTables, final NodeGraph graph,
+                                Collection<String> tables, NodeSetMapMap out) {
+        final String[] keys = tables.toArray(new String[tables.size()]);
+        final NodeSetMap[] results = new NodeSetMap[keys.length];
+        ParallelLoop.run(getPool(), keys.length, new ParallelLoop.Body() {
+            @Override
+            public void run(int i) {
+                results[i] = findCommonNodes(rangeTables, graph, keys[i]);
             }
+        });
+        for (int i = 0; i < keys.length; ++i) {
+            out.put(keys[i], results[i]);
+        }
+    }
 
+    /** Finds the directly localizable set of each of the given nodes, in parallel if a parallelism is set. */
+    static void findDirectlyLocalizable(final RangeIndex ranges, final NodeSetMapMap allCommonNodes,
+                                        Collection<String> nodes, NodeSetMap out) {
+        final String[] keys = nodes.toArray(new String[nodes.size()]);
+        final NodeSet[] results = new NodeSet[keys.length];
+        ParallelLoop.run(getPool(), keys.length, new ParallelLoop.Body() {
+            @Override
+            public void run(int i) {
+                results[i] = findDirectlyLocalizable(ranges, keys[i], allCommonNodes.get(keys[i]));
+            }
+        });
+        for (int i = 0; i < keys.length; ++i) {
+            out.put(keys[i], results[i]);
+        }
+    }
 
-            // Find the biggest coordinate system that can be built from the LocalizableNodeList.
-            int biggest = 0;
-            for (String node : localizableNodes.keySet()) {
-                NodeHopList hopList = localizableNodes.get(node);
-                if (hopList.size() > biggest) {
-                    winnerNode = node;
-                    biggest = hopList.size();
+    /**
+     * Now, we look for the largest number of nodes that can be localized by recursively counting
+     * common nodes from other common nodes. Yep. Why? Because if C is common to A and B, then by extension,
+     * any nodes common to B and C can also be localized under A. Then if D is common to any two nodes localizable
+     * under A, D is also localizable. So on and so forth.
+     *
+     * TODO "Directly localizable" nodes here use groups of 3 nodes, which will restrict localization to give 2 values for the y coordinate (x, +-y)
+     *
+     * @return the nodes directly localizable from the point of view of "outer".
+     */
+    static NodeSet findDirectlyLocalizable(RangeIndex ranges, String outer, NodeSetMap commonNodes) {
+        NodeSet directSet = new NodeSet();
+
+        for (Map.Entry<String, NodeSet> inner : commonNodes.entrySet()) {
+            float innerToOuter = ranges.findRangeBetween(inner.getKey(), outer);
+            boolean hasMatch = false;
+
+            // filter linear nodes.
+            for (String s : inner.getValue()) {
+                // range1: current node to inner
+                // range2: current node to outer
+                // range3: inner to outer
+                float r1 = ranges.findRangeBetween(s, inner.getKey());
+                float r2 = ranges.findRangeBetween(s, outer);
+                if (!areLinear(r1, r2, innerToOuter)) {
+                    directSet.add(s);
+                    hasMatch = true;
                 }
             }
 
-
-            //
-            // Localization root
-            //
-            LocalizationRoot root = new LocalizationRoot(winnerNode);
-            root.addAll(localizableNodes.get(winnerNode));
-            root.commonNodeMap = allCommonNodes.get(winnerNode);
-
-            if (root.size() < 2 || (root.get(0).size() == 0 && root.get(1).size() == 0)) {
-                return;
+            // If there is at least one common node for inner and outer, inner can be localized by outer.
+            if (hasMatch) {
+                directSet.add(inner.getKey());
             }
+        }
+        return directSet;
+    }
 
-            // So we have chosen the nodes that will be used to construct a coordinate system.
-            Log.i(TAG, root.get(0).size() + " neighbors and " + root.get(1).size() + " neighbors' neighbors will be localized under " + root.id);
-
-
-
-
-            //
-            // Clearing known coordinates
-            //
+    /**
+     * Picks the localization root and assigns coordinates to every node localizable under it.
+     * The root is the node with the most directly localizable nodes (the first one, on a tie),
+     * and {@link LocalizationPlanner} decides the order the other nodes are placed in.
+     * @return the new coordinate system, or null if the root cannot localize any nodes.
+     */
+    static CoordinateSystem buildCoordinateSystem(RangeIndex ranges, NodeSetMapMap allCommonNodes,
+                                                  NodeSetMap directlyLocalizable) {
+        // Find the biggest coordinate system that can be built.
+        String winnerNode = null;
+        int biggest = 0;
+        for (Map.Entry<String, NodeSet> entry : directlyLocalizable.entrySet()) {
+            if (entry.getValue().size() > biggest) {
+                winnerNode = entry.getKey();
+                biggest = entry.getValue().size();
+            }
+        }
 
 
-            // Root node coords
-            newCoords.setState(new State(root.id));
+        //
+        // Localization root
+        //
+        long startTime = System.nanoTime();
+        LocalizationRoot root = LocalizationPlanner.plan(winnerNode, directlyLocalizable);
+        root.commonNodeMap = allCommonNodes.get(winnerNode);
+        Log.d(TAG, "Planning localization took " + (System.nanoTime() - startTime) / 1E6f + "ms");
 
-            // Second node coords
-            final String root2 = root.get(0).firstKey();
-            float x = findRangeBetween(rangeTables, root.id, root2);
+        if (root.isEmpty() || root.get(0).isEmpty()) {
+            return null;
+        }
 
-            State state = new State(root2);
-            state.pos[0] = x;
-            newCoords.setState(state);
+        // So we have chosen the nodes that will be used to construct a coordinate system.
+        int planned = 0;
+        for (NodePathMap pathMap : root) {
+            planned += pathMap.size();
+        }
+        Log.i(TAG, planned + " nodes in " + root.size() + " hops will be localized under " + root.id);
 
 
-            // First localize all the nodes common to the first two.
-//            startTime = System.nanoTime();
-//            for (String node : allCommonNodes.get(root.id).get(root2)) {
-//                putCoords(node, root.id, root2);
-//
-//                // Localize nodes common to the root node and the current node
-//                for (String n1 : allCommonNodes.get(root.id).get(node)) {
-//                    putCoords(n1, root.id, node);
-//                }
-//
-//                // Localize nodes common to the second root node and the current node
-//                for (String n2 : allCommonNodes.get(root2).get(node)) {
-//                    putCoords(n2, root2, node);
-//                }
-//            }
-//            Log.d(TAG, "Initial localization using first two roots took " + (System.nanoTime() - startTime) / 1E6f + "ms");
+        CoordinateSystem newCoords = new CoordinateSystem();
 
+        // Root node coords
+        newCoords.setState(new State(root.id));
 
+        // Second node coords
+        final String root2 = root.get(0).firstKey();
+        float x = ranges.findRangeBetween(root.id, root2);
 
-            // Localize all directly localizable nodes from the root.
+        State state = new State(root2);
+        state.pos[0] = x;
+        newCoords.setState(state);
 
+        // Only nodes that are rigid with the two root nodes can be placed relative to them.
+        startTime = System.nanoTime();
+        NodeSet rigid = findRigidNodes(ranges, root.id, root2);
+        Log.d(TAG, "Finding " + rigid.size() + " nodes rigid with the root took " + (System.nanoTime() - startTime) / 1E6f + "ms");
 
 
-            // Several nodes were localized, including all that were common to the two root nodes.
-            // Now, go through all nodes that have been deemed localizable and do any remaining localization.
+        // Several nodes were localized, including all that were common to the two root nodes.
+        // Now, go through all nodes that have been deemed localizable, one hop at a time, and do any remaining localization.
 
-            startTime = System.nanoTime();
-            for (NodePathMap pathMap : root) {
-                // pathMap is either neighbors, or neighbors' neighbors.
+        startTime = System.nanoTime();
+        for (NodePathMap pathMap : root) {
+            // pathMap is the set of nodes a given number of hops from the root.
 
-                for (String node : pathMap.keySet()) {
-                    String[] path = pathMap.get(node);
+            for (String node : pathMap.keySet()) {
+                String[] path = pathMap.get(node);
 
-                    if (path == null) {
-                        // Working with the root's directly localizable nodes. Note these will all be completed first.
-                        for (String targetNode : root.commonNodeMap.get(node)) {
-                            if (!targetNode.equals(node) && pathMap.containsKey(targetNode)) {
-                                putCoords(newCoords, rangeTables, targetNode, root.id, node);
+                if (path == null) {
+                    // Working with the root's directly localizable nodes. Note these will all be completed first.
+                    NodeSet nodeSet = getCommonNodes(allCommonNodes, root.id, node);
+                    if (nodeSet != null) {
+                        for (String targetNode : nodeSet) {
+                            if (!targetNode.equals(node) && pathMap.containsKey(targetNode)
+                                    && rigid.contains(targetNode) && !newCoords.getNodeIds().contains(targetNode)) {
+                                putCoords(newCoords, ranges, targetNode, root.id, node);
                             }
                         }
-                    } else {
-                        // Working with neighbors' neighbors (or beyond, if that's ever added)
-                        for (String middleNode : path) {
-
-                            // This was probably taken care of when path==null, but just in case.
-                            putCoords(newCoords, rangeTables, middleNode, root.id, node);
-
-
-                            // Figure out which way the target node set is stored
-                            NodeSetMap setMap = allCommonNodes.get(node);
-                            NodeSet nodeSet = null;
-                            if (setMap != null) {
-                                nodeSet = setMap.get(middleNode);
-                            }
-                            if (nodeSet == null) {
-                                setMap = allCommonNodes.get(middleNode);
-                                if (setMap != null) {
-                                    nodeSet = setMap.get(node);
-                                }
-                            }
-
+                    }
+                } else {
+                    // Working with nodes further out. The node is placed from its parent and a second node
+                    // that was placed in an earlier hop.
+                    String parent = path[path.length - 1];
+                    if (rigid.contains(node) && !newCoords.getNodeIds().contains(node)) {
+                        String grandparent = path.length > 1 ? path[path.length - 2] : root.id;
+                        String reference = findSecondReference(newCoords, ranges, directlyLocalizable, node, parent, grandparent);
+                        if (reference != null) {
+                            putCoords(newCoords, ranges, node, parent, reference);
+                        }
+                    }
 
-                            if (nodeSet != null) {
-                                for (String targetNode : nodeSet) {
-                                    putCoords(newCoords, rangeTables, targetNode, node, middleNode);
-                                }
+                    // Then anything common to it and its parent.
+                    NodeSet nodeSet = getCommonNodes(allCommonNodes, node, parent);
+                    if (nodeSet != null) {
+                        for (String targetNode : nodeSet) {
+                            if (rigid.contains(targetNode) && !newCoords.getNodeIds().contains(targetNode)) {
+                                putCoords(newCoords, ranges, targetNode, node, parent);
                             }
-
-
                         }
                     }
                 }
             }
-            Log.d(TAG, "Building coordinate system from node set took " + (System.nanoTime() - startTime) / 1E6f + "ms");
         }
+        Log.d(TAG, "Building coordinate system from node set took " + (System.nanoTime() - startTime) / 1E6f + "ms");
+        return newCoords;
+    }
+
+    /**
+     * @return the nodes in the same rigid component of the range graph as nodes a and b, which are
+     * the only ones whose position relative to a and b is fixed by the ranges.
+     */
+    static NodeSet findRigidNodes(RangeIndex ranges, String a, String b) {
+        RigidityAnalyzer analyzer = new RigidityAnalyzer(ranges.getMatrix());
+        boolean[] rigid = analyzer.findRigidComponent(ranges.getIds().indexOf(a), ranges.getIds().indexOf(b));
+        NodeSet nodes = new NodeSet();
+        for (int i = 0; i < rigid.length; ++i) {
+            if (rigid[i]) {
+                nodes.add(ranges.getIds().getId(i));
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * The grandparent on the path if it has a range to the node, otherwise any placed node that the
+     * parent can directly localize and that has a range to the node.
+     */
+    static String findSecondReference(CoordinateSystem coords, RangeIndex ranges, NodeSetMap directlyLocalizable,
+                                      String node, String parent, String grandparent) {
+        if (coords.getNodeIds().contains(grandparent) && ranges.findRangeBetween(node, grandparent) > 0) {
+            return grandparent;
+        }
+        NodeSet candidates = directlyLocalizable.get(parent);
+        if (candidates != null) {
+            for (String candidate : candidates) {
+                if (!candidate.equals(node) && coords.getNodeIds().contains(candidate)
+                        && ranges.findRangeBetween(node, candidate) > 0) {
+                    return candidate;
+                }
+            }
+        }
+        return grandparent;
+    }
 
-        NodeManager.getInstance().getLocalNode().setCoords(newCoords);
+    /** Common node sets are only stored under the first of the two nodes, so look both ways. */
+    static NodeSet getCommonNodes(NodeSetMapMap allCommonNodes, String node1, String node2) {
+        NodeSetMap setMap = allCommonNodes.get(node1);
+        NodeSet nodeSet = null;
+        if (setMap != null) {
+            nodeSet = setMap.get(node2);
+        }
+        if (nodeSet == null) {
+            setMap = allCommonNodes.get(node2);
+            if (setMap != null) {
+                nodeSet = setMap.get(node1);
+            }
+        }
+        return nodeSet;
     }
 
 
 
 
 
-    private static float[] putCoords(CoordinateSystem coords, RangeTableMap rangeTables,
+    private static float[] putCoords(CoordinateSystem coords, RangeIndex ranges,
                                      String targetNode, String referenceNode1, String referenceNode2) {
         if (coords.getNodeIds().contains(targetNode)) {
             Log.e(TAG, "Target node already in coordinate system: " + targetNode);
@@ -323,10 +522,12 @@ public class Localizer {
             return null;
         }
 
-        float r1 = findRangeBetween(rangeTables, targetNode, referenceNode1);
-        float r2 = findRangeBetween(rangeTables, targetNode, referenceNode2);
-        float[] p1 = coords.getState(referenceNode1).pos;
-        float[] p2 = coords.getState(referenceNode2).pos;
+        float r1 = ranges.findRangeBetween(targetNode, referenceNode1);
+        float r2 = ranges.findRangeBetween(targetNode, referenceNode2);
+        State s1 = coords.getState(referenceNode1);
+        State s2 = coords.getState(referenceNode2);
+        float[] p1 = s1 == null ? null : s1.pos;
+        float[] p2 = s2 == null ? null : s2.pos;
 
         if (r1 == 0) {
             Log.e(TAG, "No range between target " + targetNode + " and reference node 1: " + referenceNode1);
@@ -417,6 +618,28 @@ public class Localizer {
     }
 
 
+    /**
+     * Normalized stress of a coordinate system against the measured ranges:
+     * sqrt(sum((d - r)^2) / sum(r^2)) over every measured pair where both nodes have valid coordinates.
+     * @return 0 for a perfect fit, or NaN if no measured pair is in the coordinate system.
+     */
+    public static double findStress(CoordinateSystem coords, RangeTableMap rangeTables) {
+        double error = 0, total = 0;
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            State a = coords.getState(table.getKey());
+            if (a == null) continue;
+            for (RangeTable.Entry entry : table.getValue().getEntries()) {
+                State b = coords.getState(entry.bssid);
+                if (b == null) continue;
+                double d = Calc.linearDistance(a.pos, b.pos);
+                if (Double.isNaN(d)) continue;
+                error += (d - entry.range) * (d - entry.range);
+                total += entry.range * entry.range;
+            }
+        }
+        return total > 0 ? Math.sqrt(error / total) : Double.NaN;
+    }
+
     public static boolean areLinear(float range1, float range2, float range3) {
         if (range1 < 1 || range2 < 1 || range3 < 1) return true;
         float give = 0.1f;
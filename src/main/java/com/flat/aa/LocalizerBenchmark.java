@@ -0,0 +1,308 @@
+package com.flat.aa;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Times localization passes on synthetic range graphs so that the different localization paths
+ * can be compared on a device without needing a room full of phones.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class LocalizerBenchmark {
+    private static final String TAG = LocalizerBenchmark.class.getSimpleName();
+
+    private LocalizerBenchmark() {}
+
+    /**
+     * Places nodes randomly in a square and gives each node a range table containing the true
+     * distance to every other node within the given radius.
+     */
+    public static Localizer.RangeTableMap makeRangeTables(int nodeCount, float size, float radius, long seed) {
+        return makeRangeTables(nodeCount, size, radius, seed, 0);
+    }
+
+    /** @param firstId the index of the first node's id, so separate graphs can be merged. */
+    static Localizer.RangeTableMap makeRangeTables(int nodeCount, float size, float radius, long seed, int firstId) {
+        Random random = new Random(seed);
+        String[] ids = new String[nodeCount];
+        float[][] pos = new float[nodeCount][3];
+        for (int i = 0; i < nodeCount; ++i) {
+            ids[i] = makeId(firstId + i);
+            pos[i][0] = random.nextFloat() * size;
+            pos[i][1] = random.nextFloat() * size;
+        }
+
+        Localizer.RangeTableMap rangeTables = new Localizer.RangeTableMap();
+        for (int i = 0; i < nodeCount; ++i) {
+            RangeTable table = new RangeTable();
+            for (int j = 0; j < nodeCount; ++j) {
+                if (i == j) continue;
+                float dx = pos[i][0] - pos[j][0];
+                float dy = pos[i][1] - pos[j][1];
+                float range = (float) Math.sqrt(dx*dx + dy*dy);
+                if (range <= radius) {
+                    RangeTable.Entry entry = new RangeTable.Entry();
+                    entry.bssid = ids[j];
+                    entry.range = range;
+                    entry.time = System.currentTimeMillis();
+                    entry.algorithm = "synthetic";
+                    table.putEntry(entry);
+                }
+            }
+            rangeTables.put(ids[i], table);
+        }
+        return rangeTables;
+    }
+
+    /** A fake mac address for the node at index i. */
+    static String makeId(int i) {
+        return String.format("02:00:00:%02x:%02x:%02x", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+    }
+
+    /** Nudge one random range in one random table, the way a new scan would. */
+    static void perturb(Localizer.RangeTableMap rangeTables, Random random) {
+        String[] ids = rangeTables.keySet().toArray(new String[rangeTables.size()]);
+        RangeTable table = rangeTables.get(ids[random.nextInt(ids.length)]);
+        if (table.getEntries().isEmpty()) return;
+        RangeTable.Entry[] entries = table.getEntries().toArray(new RangeTable.Entry[table.getEntries().size()]);
+        RangeTable.Entry entry = entries[random.nextInt(entries.length)];
+        entry.range *= 0.95f + random.nextFloat() * 0.1f;
+        table.putEntry(entry);
+    }
+
+    /**
+     * Compares a full rebuild of every component against the incremental localizer when one range
+     * changes per pass.
+     * @return a one line summary, which is also logged.
+     */
+    public static String compareFullAndIncremental(int nodeCount, int passes) {
+        Localizer.RangeTableMap rangeTables = makeRangeTables(nodeCount, 100, 40, nodeCount);
+        Random random = new Random(passes);
+        IncrementalLocalizer incremental = new IncrementalLocalizer();
+        incremental.localize(rangeTables);
+
+        long fullTime = 0, incrementalTime = 0;
+        int mismatches = 0;
+        for (int i = 0; i < passes; ++i) {
+            perturb(rangeTables, random);
+
+            long start = System.nanoTime();
+            CoordinateSystem full = Localizer.solve(rangeTables, null);
+            fullTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CoordinateSystem inc = incremental.localize(rangeTables);
+            incrementalTime += System.nanoTime() - start;
+
+            if (!sameCoords(full, inc)) ++mismatches;
+        }
+
+        String result = String.format("%d nodes, %d passes: full %.3fms/pass, incremental %.3fms/pass, %d mismatches",
+                nodeCount, passes, fullTime / 1E6f / passes, incrementalTime / 1E6f / passes, mismatches);
+        Log.i(TAG, result);
+        return result;
+    }
+
+    /**
+     * Compares range lookups by scanning every range table against the per-pass {@link RangeIndex},
+     * including the time to build the index.
+     * @return a one line summary, which is also logged.
+     */
+    public static String compareRangeLookups(int nodeCount, int lookups) {
+        Localizer.RangeTableMap rangeTables = makeRangeTables(nodeCount, 100, 20, nodeCount);
+        String[] ids = rangeTables.keySet().toArray(new String[rangeTables.size()]);
+        Random random = new Random(lookups);
+        int[] a = new int[lookups], b = new int[lookups];
+        for (int i = 0; i < lookups; ++i) {
+            a[i] = random.nextInt(ids.length);
+            b[i] = random.nextInt(ids.length);
+        }
+
+        float scanSum = 0, indexSum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; ++i) {
+            scanSum += Localizer.findRangeBetween(rangeTables, ids[a[i]], ids[b[i]]);
+        }
+        long scanTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        RangeIndex index = new RangeIndex(rangeTables);
+        long buildTime = System.nanoTime() - start;
+        for (int i = 0; i < lookups; ++i) {
+            indexSum += index.findRangeBetween(ids[a[i]], ids[b[i]]);
+        }
+        long indexTime = System.nanoTime() - start;
+
+        String result = String.format("%d nodes, %d lookups: scan %.1fns/lookup, index %.1fns/lookup (build %.3fms), sums %s",
+                nodeCount, lookups, (float) scanTime / lookups, (float) (indexTime - buildTime) / lookups,
+                buildTime / 1E6f, scanSum == indexSum ? "match" : "differ");
+        Log.i(TAG, result);
+        return result;
+    }
+
+    /**
+     * Compares full localization passes run sequentially against the given parallelism.
+     * The parallelism of {@link Localizer} is restored afterwards.
+     * @return a one line summary, which is also logged.
+     */
+    public static String compareSequentialAndParallel(int nodeCount, int passes, int parallelism) {
+        Localizer.RangeTableMap rangeTables = makeRangeTables(nodeCount, 100, 40, nodeCount);
+        int oldParallelism = Localizer.getParallelism();
+
+        long sequentialTime = 0, parallelTime = 0;
+        int mismatches = 0;
+        try {
+            for (int i = 0; i < passes; ++i) {
+                Localizer.setParallelism(1);
+                long start = System.nanoTime();
+                CoordinateSystem sequential = Localizer.localize(rangeTables);
+                sequentialTime += System.nanoTime() - start;
+
+                Localizer.setParallelism(parallelism);
+                start = System.nanoTime();
+                CoordinateSystem parallel = Localizer.localize(rangeTables);
+                parallelTime += System.nanoTime() - start;
+
+                if (!sameCoords(sequential, parallel)) ++mismatches;
+            }
+        } finally {
+            Localizer.setParallelism(oldParallelism);
+        }
+
+        String result = String.format("%d nodes, %d passes: sequential %.3fms/pass, parallelism %d %.3fms/pass, %d mismatches",
+                nodeCount, passes, sequentialTime / 1E6f / passes, parallelism, parallelTime / 1E6f / passes, mismatches);
+        Log.i(TAG, result);
+        return result;
+    }
+
+    /**
+     * Compares the triangle chaining and MDS engines on cost, how many nodes they place and the
+     * stress of the result against the measured ranges, optionally with noisy ranges.
+     * @param noise ranges are scaled by a random factor in [1 - noise, 1 + noise].
+     * @return a one line summary, which is also logged.
+     */
+    public static String compareEngines(int nodeCount, int passes, float noise) {
+        Localizer.RangeTableMap rangeTables = makeRangeTables(nodeCount, 100, 40, nodeCount);
+        Random random = new Random(passes);
+        for (RangeTable table : rangeTables.values()) {
+            for (RangeTable.Entry entry : table.getEntries()) {
+                entry.range *= 1 - noise + 2 * noise * random.nextFloat();
+            }
+        }
+
+        long trianglesTime = 0, mdsTime = 0;
+        CoordinateSystem triangles = null, mds = null;
+        for (int i = 0; i < passes; ++i) {
+            long start = System.nanoTime();
+            triangles = Localizer.localize(rangeTables);
+            trianglesTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            mds = MdsLocalizer.localize(rangeTables);
+            mdsTime += System.nanoTime() - start;
+        }
+
+        String result = String.format("%d nodes, noise %.2f: triangles %.3fms/pass %d placed stress %.4f, mds %.3fms/pass %d placed stress %.4f",
+                nodeCount, noise,
+                trianglesTime / 1E6f / passes, triangles == null ? 0 : triangles.size(),
+                triangles == null ? Double.NaN : Localizer.findStress(triangles, rangeTables),
+                mdsTime / 1E6f / passes, mds == null ? 0 : mds.size(),
+                mds == null ? Double.NaN : Localizer.findStress(mds, rangeTables));
+        Log.i(TAG, result);
+        return result;
+    }
+
+    /**
+     * Compares solving again with MDS against refining the previous pass with SMACOF, when a tenth
+     * of the nodes get a new range each pass.
+     * @return a one line summary, which is also logged.
+     */
+    public static String compareSolveAndRefine(int nodeCount, int passes) {
+        Localizer.RangeTableMap rangeTables = makeRangeTables(nodeCount, 100, 40, nodeCount);
+        Random random = new Random(passes);
+        SmacofRefiner refiner = new SmacofRefiner();
+        CoordinateSystem refined = MdsLocalizer.localize(rangeTables);
+
+        long solveTime = 0, refineTime = 0;
+        double solveStress = 0, refineStress = 0;
+        int iterations = 0;
+        for (int i = 0; i < passes; ++i) {
+            for (int j = 0; j < Math.max(1, nodeCount / 10); ++j) {
+                perturb(rangeTables, random);
+            }
+
+            long start = System.nanoTime();
+            CoordinateSystem solved = MdsLocalizer.localize(rangeTables);
+            solveTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            refined = refiner.refine(refined, rangeTables);
+            refineTime += System.nanoTime() - start;
+            iterations += refiner.getIterations();
+
+            solveStress += Localizer.findStress(solved, rangeTables);
+            refineStress += Localizer.findStress(refined, rangeTables);
+        }
+
+        String result = String.format("%d nodes, %d passes: mds %.3fms/pass stress %.4f, smacof %.3fms/pass %.1f iterations stress %.4f",
+                nodeCount, passes, solveTime / 1E6f / passes, solveStress / passes,
+                refineTime / 1E6f / passes, (float) iterations / passes, refineStress / passes);
+        Log.i(TAG, result);
+        return result;
+    }
+
+    /**
+     * Compares localizing several disconnected rooms as one problem against localizing each
+     * connected component separately.
+     * @return a one line summary, which is also logged.
+     */
+    public static String compareWholeAndComponents(int roomCount, int nodesPerRoom, int passes) {
+        Localizer.RangeTableMap rangeTables = new Localizer.RangeTableMap();
+        for (int i = 0; i < roomCount; ++i) {
+            rangeTables.putAll(makeRangeTables(nodesPerRoom, 50, 40, i, i * nodesPerRoom));
+        }
+
+        long wholeTime = 0, componentTime = 0;
+        int wholePlaced = 0, componentPlaced = 0, componentCount = 0;
+        for (int i = 0; i < passes; ++i) {
+            // bypass the result cache so every pass is a real solve
+            Localizer.getCache().clear();
+            long start = System.nanoTime();
+            CoordinateSystem whole = Localizer.localize(rangeTables);
+            wholeTime += System.nanoTime() - start;
+
+            Localizer.getCache().clear();
+            start = System.nanoTime();
+            Localizer.CoordsList components = Localizer.localizeComponents(rangeTables);
+            componentTime += System.nanoTime() - start;
+
+            wholePlaced = whole == null ? 0 : whole.size();
+            componentPlaced = 0;
+            for (CoordinateSystem coords : components.values()) {
+                componentPlaced += coords.size();
+            }
+            componentCount = components.size();
+        }
+
+        String result = String.format("%d rooms of %d nodes: whole %.3fms/pass %d placed, components %.3fms/pass %d placed in %d systems",
+                roomCount, nodesPerRoom, wholeTime / 1E6f / passes, wholePlaced,
+                componentTime / 1E6f / passes, componentPlaced, componentCount);
+        Log.i(TAG, result);
+        return result;
+    }
+
+    static boolean sameCoords(CoordinateSystem a, CoordinateSystem b) {
+        if (a == null || b == null) return a == b;
+        if (a.size() != b.size()) return false;
+        for (State s : a.getStates()) {
+            State other = b.getState(s.id);
+            if (other == null) return false;
+            for (int i = 0; i < 3; ++i) {
+                if (Math.abs(s.pos[i] - other.pos[i]) > 1E-4f) return false;
+            }
+        }
+        return true;
+    }
+}
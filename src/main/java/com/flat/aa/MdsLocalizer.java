@@ -0,0 +1,294 @@
+package com.flat.aa;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Solves for every node's coordinates at once with classical multidimensional scaling instead of
+ * chaining triangles out from a root, so errors don't accumulate along the chain.
+ * <ol>
+ * <li>Find the largest group of nodes connected by ranges.</li>
+ * <li>Build its range matrix, filling missing ranges with shortest path estimates.</li>
+ * <li>Double center the squared ranges.</li>
+ * <li>Take the eigenvectors of the two largest eigenvalues by power iteration; scaled by the
+ * square roots of their eigenvalues they are the x and y coordinates.</li>
+ * </ol>
+ * Only the largest connected group of nodes can be localized. The result is moved and rotated so
+ * the first node (by id) is the root at the origin and the next node is on the x axis, like the
+ * coordinate systems built by {@link Localizer}.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class MdsLocalizer {
+    private static final String TAG = MdsLocalizer.class.getSimpleName();
+    public static final String ALGORITHM = "MDS";
+
+    static final int MAX_ITERATIONS = 500;
+    static final double TOLERANCE = 1E-9;
+
+    private MdsLocalizer() {}
+
+    /**
+     * @return the new coordinate system, or null if fewer than three nodes are connected by ranges.
+     */
+    public static CoordinateSystem localize(Localizer.RangeTableMap rangeTables) {
+        long startTime = System.nanoTime();
+        RangeIndex ranges = new RangeIndex(rangeTables);
+        String[] ids = sortedIds(ranges);
+        int n = ids.length;
+        if (n < 3) return null;
+
+        int[] index = new int[n];
+        for (int i = 0; i < n; ++i) {
+            index[i] = ranges.getIds().indexOf(ids[i]);
+        }
+        int[] members = largestComponent(ranges, index);
+        int m = members.length;
+        if (m < 3) return null;
+
+        // shortest paths only within the component, the other nodes can't be placed anyway
+        double[] dist = new double[m * m];
+        for (int i = 0; i < m; ++i) {
+            for (int j = 0; j < m; ++j) {
+                float r = i == j ? 0 : ranges.findRangeBetween(index[members[i]], index[members[j]]);
+                dist[i * m + j] = i == j ? 0 : (r > 0 ? r : Double.POSITIVE_INFINITY);
+            }
+        }
+        fillShortestPaths(dist, m);
+
+        // Squared distances of the component, then double centering: B = -1/2 J D^2 J
+        double[] b = new double[m * m];
+        for (int i = 0; i < m; ++i) {
+            for (int j = 0; j < m; ++j) {
+                double d = dist[i * m + j];
+                b[i * m + j] = d * d;
+            }
+        }
+        doubleCenter(b, m);
+
+        // Power iteration finds the eigenvalue of largest magnitude, which with noisy or estimated
+        // ranges can be a large negative one. Shifting by the smallest eigenvalue makes every
+        // eigenvalue non-negative, so the largest ones come out first.
+        double[] v1 = new double[m], v2 = new double[m], tmp = new double[m];
+        double shift = shift(b, m, v1, tmp);
+        double l1 = powerIteration(b, m, v1, tmp, 1, shift);
+        deflate(b, m, v1, l1);
+        double l2 = powerIteration(b, m, v2, tmp, 2, shift);
+        l1 -= shift;
+        l2 -= shift;
+
+        double s1 = Math.sqrt(Math.max(l1, 0)), s2 = Math.sqrt(Math.max(l2, 0));
+        double[] x = new double[m], y = new double[m];
+        for (int i = 0; i < m; ++i) {
+            x[i] = v1[i] * s1;
+            y[i] = v2[i] * s2;
+        }
+        alignToRoot(x, y);
+
+        CoordinateSystem coords = new CoordinateSystem();
+        for (int i = 0; i < m; ++i) {
+            State state = new State(ids[members[i]]);
+            state.pos[0] = (float) x[i];
+            state.pos[1] = (float) y[i];
+            state.algorithm = ALGORITHM;
+            coords.setState(state);
+        }
+        Log.d(TAG, "MDS of " + m + " of " + n + " nodes took " + (System.nanoTime() - startTime) / 1E6f + "ms");
+        return coords;
+    }
+
+    static String[] sortedIds(RangeIndex ranges) {
+        String[] ids = new String[ranges.getIds().size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = ranges.getIds().getId(i);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /** Floyd-Warshall over a flat n*n matrix, infinity meaning no known range. */
+    static void fillShortestPaths(double[] dist, int n) {
+        for (int k = 0; k < n; ++k) {
+            int kRow = k * n;
+            for (int i = 0; i < n; ++i) {
+                double ik = dist[i * n + k];
+                if (ik == Double.POSITIVE_INFINITY) continue;
+                int iRow = i * n;
+                for (int j = 0; j < n; ++j) {
+                    double d = ik + dist[kRow + j];
+                    if (d < dist[iRow + j]) {
+                        dist[iRow + j] = d;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param index the range index of each node.
+     * @return the positions in index of the largest group of nodes connected by ranges, ascending.
+     */
+    static int[] largestComponent(RangeIndex ranges, int[] index) {
+        int n = index.length;
+        int[] best = new int[0];
+        boolean[] seen = new boolean[n];
+        int[] members = new int[n];
+        for (int start = 0; start < n; ++start) {
+            if (seen[start]) continue;
+            seen[start] = true;
+            members[0] = start;
+            int count = 1;
+            // breadth first, members doubles as the queue
+            for (int head = 0; head < count; ++head) {
+                int i = members[head];
+                for (int j = 0; j < n; ++j) {
+                    if (!seen[j] && ranges.findRangeBetween(index[i], index[j]) > 0) {
+                        seen[j] = true;
+                        members[count++] = j;
+                    }
+                }
+            }
+            if (count > best.length) {
+                best = Arrays.copyOf(members, count);
+            }
+        }
+        Arrays.sort(best);
+        return best;
+    }
+
+    /**
+     * Adds just enough to the diagonal of the symmetric matrix a that none of its eigenvalues are
+     * negative. A larger shift, like a bound on the whole spectrum, would push the ratio of the two
+     * largest shifted eigenvalues towards 1 and slow power iteration down.
+     * v and tmp are scratch vectors of length m.
+     * @return the amount added, to subtract from the eigenvalues found.
+     */
+    static double shift(double[] a, int m, double[] v, double[] tmp) {
+        // the eigenvalue of largest magnitude is the smallest one if it's negative
+        double dominant = powerIteration(a, m, v, tmp, 0, 0);
+        double smallest = dominant;
+        if (dominant > 0) {
+            // shifted down by the largest, the smallest becomes the one of largest magnitude
+            addToDiagonal(a, m, -dominant);
+            // only needs to be accurate relative to the largest, so its tolerance stays shifted
+            smallest = powerIteration(a, m, v, tmp, 0, 0) + dominant;
+            addToDiagonal(a, m, dominant);
+        }
+        double shift = Math.max(0, -smallest);
+        addToDiagonal(a, m, shift);
+        return shift;
+    }
+
+    static void addToDiagonal(double[] a, int m, double amount) {
+        for (int i = 0; i < m; ++i) {
+            a[i * m + i] += amount;
+        }
+    }
+
+    static void doubleCenter(double[] b, int m) {
+        double[] rowMeans = new double[m];
+        double total = 0;
+        for (int i = 0; i < m; ++i) {
+            double sum = 0;
+            for (int j = 0; j < m; ++j) {
+                sum += b[i * m + j];
+            }
+            rowMeans[i] = sum / m;
+            total += sum;
+        }
+        double mean = total / ((double) m * m);
+        // the matrix is symmetric, so column means are the row means
+        for (int i = 0; i < m; ++i) {
+            for (int j = 0; j < m; ++j) {
+                b[i * m + j] = -0.5 * (b[i * m + j] - rowMeans[i] - rowMeans[j] + mean);
+            }
+        }
+    }
+
+    /**
+     * Finds the dominant eigenvector of the symmetric matrix a into v. Iteration stops once the
+     * unshifted eigenvalue stops changing, so a large shift can't end it early.
+     * @param shift the amount that was added to the diagonal of a.
+     * @return its eigenvalue, still shifted.
+     */
+    static double powerIteration(double[] a, int m, double[] v, double[] tmp, long seed, double shift) {
+        Random random = new Random(seed);
+        for (int i = 0; i < m; ++i) {
+            v[i] = random.nextDouble() - 0.5;
+        }
+        normalize(v);
+
+        double lambda = 0;
+        for (int iter = 0; iter < MAX_ITERATIONS; ++iter) {
+            multiply(a, m, v, tmp);
+            double newLambda = dot(v, tmp);
+            if (normalize(tmp) == 0) return 0;
+            System.arraycopy(tmp, 0, v, 0, m);
+            if (Math.abs(newLambda - lambda) <= TOLERANCE * Math.abs(newLambda - shift)) {
+                return newLambda;
+            }
+            lambda = newLambda;
+        }
+        return lambda;
+    }
+
+    /** a = a - lambda * v * v^T, so the next power iteration finds the next eigenvector. */
+    static void deflate(double[] a, int m, double[] v, double lambda) {
+        for (int i = 0; i < m; ++i) {
+            for (int j = 0; j < m; ++j) {
+                a[i * m + j] -= lambda * v[i] * v[j];
+            }
+        }
+    }
+
+    static void multiply(double[] a, int m, double[] v, double[] out) {
+        for (int i = 0; i < m; ++i) {
+            double sum = 0;
+            int row = i * m;
+            for (int j = 0; j < m; ++j) {
+                sum += a[row + j] * v[j];
+            }
+            out[i] = sum;
+        }
+    }
+
+    static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; ++i) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /** @return the length the vector had before normalizing. */
+    static double normalize(double[] v) {
+        double length = Math.sqrt(dot(v, v));
+        if (length > 0) {
+            for (int i = 0; i < v.length; ++i) {
+                v[i] /= length;
+            }
+        }
+        return length;
+    }
+
+    /** Translate so the first point is the origin and rotate so the second is on the positive x axis. */
+    static void alignToRoot(double[] x, double[] y) {
+        double x0 = x[0], y0 = y[0];
+        for (int i = 0; i < x.length; ++i) {
+            x[i] -= x0;
+            y[i] -= y0;
+        }
+        double angle = Math.atan2(y[1], x[1]);
+        double cos = Math.cos(-angle), sin = Math.sin(-angle);
+        for (int i = 0; i < x.length; ++i) {
+            double xi = x[i] * cos - y[i] * sin;
+            double yi = x[i] * sin + y[i] * cos;
+            x[i] = xi;
+            y[i] = yi;
+        }
+        y[1] = 0;
+        x[0] = y[0] = 0;
+    }
+}
@@ -16,6 +16,7 @@ import org.json.JSONObject;
  */
 public final class Node {
     static final String TAG = Node.class.getSimpleName();
+    static final String VERSION_FIELD = "rangeTableVersion";
     final String bssid;
     String ssid;
     RangeTable rangeTable;
@@ -25,6 +26,14 @@ public final class Node {
     float rangeOverride;
     String name;
     CoordinateSystem coords;
+    /** The highest wire format the node has said it can read, see {@link NodeCodec}. */
+    int wireFormat = NodeCodec.FORMAT_JSON;
+    /** The version of the node's own range table that this copy holds, or -1 if unknown. */
+    int remoteVersion = -1;
+    /** The version of our range table that the node has acked, or -1 if it needs a whole node. */
+    int ackedVersion = -1;
+    /** The version of our range table last sent to the node, or -1 if none was. */
+    int sentVersion = -1;
 
     Node(String bssid, boolean isNodeThisDevice) {
         this.bssid = bssid;
@@ -58,6 +67,11 @@ public final class Node {
         return rangeOverride;
     }
 
+    public int getWireFormat() { return wireFormat; }
+    public void setWireFormat(int format) { wireFormat = format; }
+    public int getRemoteVersion() { return remoteVersion; }
+    public int getAckedVersion() { return ackedVersion; }
+
 //    public RangeTable.Entry setRange(RangeTable.Entry entry) {
 //        RangeTable.Entry old = rangeTable.putEntry(entry);
 //        if (entry.rssi != old.rssi) {
@@ -141,11 +155,15 @@ public final class Node {
     @Override
     public String toString() {
         try {
+            // the version must be the one the entries written make up
+            RangeTable.Snapshot table = rangeTable.getSnapshot();
             JSONObject json = new JSONObject();
             json.put("id", bssid);
             json.put("name", name);
-            json.put("rangeTable", rangeTable);
+            json.put("rangeTable", RangeTable.toString(table.entries));
             json.put("coordinateSystem", coords);
+            json.put(NodeCodec.FORMAT_FIELD, NodeCodec.FORMAT_BINARY_LATEST);
+            json.put(VERSION_FIELD, table.version);
             return json.toString();
         } catch (JSONException ignored) {}
         return super.toString();
@@ -159,6 +177,8 @@ public final class Node {
             n.name = json.getString("name");
             n.rangeTable = new RangeTable(json.getString("rangeTable"));
             n.coords = new CoordinateSystem(json.getString("coordinateSystem"));
+            n.wireFormat = json.optInt(NodeCodec.FORMAT_FIELD, NodeCodec.FORMAT_JSON);
+            n.remoteVersion = json.optInt(VERSION_FIELD, -1);
             return n;
         } catch (JSONException ignored) {}
         return null;
@@ -0,0 +1,413 @@
+package com.flat.aa;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.flat.util.Bytes;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes nodes for the data connection, either as the JSON of {@link Node#toString()} or as a
+ * compact binary form. The binary form is versioned and has a per message string table, so each
+ * BSSID, SSID and algorithm name is sent once. Lengths, counts and times are varints and ranges,
+ * positions and angles are fixed width floats. Connections carry lines of text, so binary messages
+ * are sent as {@link #BINARY_PREFIX} followed by base64.
+ * <p>
+ * JSON messages advertise the highest binary version the sender can read (see
+ * {@link #FORMAT_FIELD}) and binary is only sent to nodes that have advertised it, so older peers
+ * keep getting JSON. Set {@link Config#WIRE_FORMAT_BINARY} to false to always send JSON.
+ * <p>
+ * Peers that read version 2 or later also sync range tables by delta: the receiver acks the
+ * version of the sender's table it holds ({@link #ACK_PREFIX}) and the sender then only sends the
+ * entries changed or removed since that version ({@link #DELTA_PREFIX}). A delta whose base
+ * doesn't match what the receiver holds is dropped and acked with the old version, which makes
+ * the sender fall back to a full node.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class NodeCodec {
+    private static final String TAG = NodeCodec.class.getSimpleName();
+
+    public static final int FORMAT_JSON = 0;
+    public static final int FORMAT_BINARY_V1 = 1;
+    /** Adds the range table version to nodes, plus deltas and acks for {@link Config#DELTA_SYNC}. */
+    public static final int FORMAT_BINARY_V2 = 2;
+    /** The highest binary version this node can decode. */
+    public static final int FORMAT_BINARY_LATEST = FORMAT_BINARY_V2;
+
+    /** JSON field with the highest binary format the sender can decode. */
+    public static final String FORMAT_FIELD = "wireFormat";
+    /** Start of a binary message; JSON messages start with '{'. */
+    public static final String BINARY_PREFIX = "b:";
+    /** Start of a range table delta, which is binary. */
+    public static final String DELTA_PREFIX = "d:";
+    /** Start of an acknowledgement of a range table version: "a:" node id, space, version. */
+    public static final String ACK_PREFIX = "a:";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private NodeCodec() {}
+
+    /** @return the message to send to a peer that can read the given format. */
+    public static String encode(Node node, int peerFormat) {
+        if (Config.WIRE_FORMAT_BINARY && peerFormat >= FORMAT_BINARY_V1) {
+            return BINARY_PREFIX + Base64.encodeToString(toBytes(node, Math.min(peerFormat, FORMAT_BINARY_LATEST)), Base64.NO_WRAP);
+        }
+        return node.toString();
+    }
+
+    /** @return the node in a JSON or binary message, or null if it can't be read. */
+    public static Node decode(String msg) {
+        if (msg == null) return null;
+        if (msg.startsWith(BINARY_PREFIX)) {
+            try {
+                return fromBytes(Base64.decode(msg.substring(BINARY_PREFIX.length()), Base64.NO_WRAP));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Failed to decode binary node message: " + e.getMessage());
+                return null;
+            }
+        }
+        return Node.from(msg);
+    }
+
+    /** @return the format of a message, for recording what a peer can read. */
+    public static int formatOf(String msg) {
+        if (msg == null) return FORMAT_JSON;
+        String prefix;
+        if (msg.startsWith(BINARY_PREFIX)) {
+            prefix = BINARY_PREFIX;
+        } else if (msg.startsWith(DELTA_PREFIX)) {
+            prefix = DELTA_PREFIX;
+        } else if (msg.startsWith(ACK_PREFIX)) {
+            return FORMAT_BINARY_V2;
+        } else {
+            return FORMAT_JSON;
+        }
+        byte[] bytes = Base64.decode(msg.substring(prefix.length(), Math.min(msg.length(), prefix.length() + 4)), Base64.NO_WRAP);
+        return bytes.length > 0 ? bytes[0] : FORMAT_JSON;
+    }
+
+    //
+    // Binary format, version 2 (version 1 is the same without the range table version):
+    // version (byte), string count, strings (length, utf8), node id, name, [range table version],
+    // entry count, entries, state count, states
+    // String references are indices into the string table plus one, with 0 meaning null.
+    // Times are zigzag varint deltas from the previous time in the message, starting from 0.
+    //
+    // Deltas: version (byte), strings, node id, name, base version, version, changed entry count,
+    // entries, removed count, removed ids, state count, states
+    //
+
+    public static byte[] toBytes(Node node) {
+        return toBytes(node, FORMAT_BINARY_LATEST);
+    }
+
+    static byte[] toBytes(Node node, int format) {
+        // the string table and what is written must come from the same read of the node
+        RangeTable.Snapshot table = node.rangeTable.getSnapshot();
+        Collection<State> states = node.coords.getStates();
+        StringTable strings = new StringTable();
+        strings.add(node.bssid);
+        strings.add(node.name);
+        strings.addEntries(table.entries);
+        strings.addStates(states);
+
+        Bytes.Output out = new Bytes.Output(64 + 32 * table.entries.size());
+        out.writeByte(format);
+        strings.write(out);
+        out.writeVarint(strings.ref(node.bssid));
+        out.writeVarint(strings.ref(node.name));
+        if (format >= FORMAT_BINARY_V2) {
+            out.writeVarint(table.version);
+        }
+        long time = writeEntries(out, strings, table.entries, 0);
+        writeStates(out, strings, states, time);
+        return out.toByteArray();
+    }
+
+    /** @return the node, or null if the bytes are truncated or of an unknown version. */
+    public static Node fromBytes(byte[] bytes) {
+        try {
+            Bytes.Input in = new Bytes.Input(bytes);
+            int version = in.readByte();
+            if (version != FORMAT_BINARY_V1 && version != FORMAT_BINARY_V2) {
+                Log.e(TAG, "Unknown binary node format " + version);
+                return null;
+            }
+            String[] strings = readStrings(in);
+
+            Node n = new Node(string(strings, in.readVarint()));
+            n.name = string(strings, in.readVarint());
+            if (version >= FORMAT_BINARY_V2) {
+                n.remoteVersion = (int) in.readVarint();
+            }
+            List<RangeTable.Entry> entries = new ArrayList<RangeTable.Entry>();
+            long time = readEntries(in, strings, entries, 0);
+            for (RangeTable.Entry e : entries) {
+                n.rangeTable.putEntry(e);
+            }
+            n.coords = new CoordinateSystem();
+            readStates(in, strings, n.coords, time);
+            n.wireFormat = version;
+            return n;
+        } catch (IndexOutOfBoundsException e) {
+            Log.e(TAG, "Truncated or corrupt binary node message");
+        }
+        return null;
+    }
+
+    /**
+     * @return a delta message with the changes to the node's range table since the base version,
+     * which must satisfy {@link RangeTable#hasChangesSince(int)}.
+     */
+    public static String encodeDelta(Node node, int baseVersion) {
+        // the version on the wire must be the one these changes bring the table to
+        RangeTable.Snapshot table = node.rangeTable.getChangesSince(baseVersion);
+        List<RangeTable.Entry> changed = table.entries;
+        List<String> removed = table.removed;
+        Collection<State> states = node.coords.getStates();
+
+        StringTable strings = new StringTable();
+        strings.add(node.bssid);
+        strings.add(node.name);
+        strings.addEntries(changed);
+        for (String id : removed) {
+            strings.add(id);
+        }
+        strings.addStates(states);
+
+        Bytes.Output out = new Bytes.Output(64 + 32 * changed.size());
+        out.writeByte(FORMAT_BINARY_V2);
+        strings.write(out);
+        out.writeVarint(strings.ref(node.bssid));
+        out.writeVarint(strings.ref(node.name));
+        out.writeVarint(baseVersion);
+        out.writeVarint(table.version);
+        long time = writeEntries(out, strings, changed, 0);
+        out.writeVarint(removed.size());
+        for (String id : removed) {
+            out.writeVarint(strings.ref(id));
+        }
+        writeStates(out, strings, states, time);
+        return DELTA_PREFIX + Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP);
+    }
+
+    /** @return the delta, or null if it can't be read. */
+    public static RangeTableDelta decodeDelta(String msg) {
+        try {
+            Bytes.Input in = new Bytes.Input(Base64.decode(msg.substring(DELTA_PREFIX.length()), Base64.NO_WRAP));
+            int version = in.readByte();
+            if (version != FORMAT_BINARY_V2) {
+                Log.e(TAG, "Unknown binary delta format " + version);
+                return null;
+            }
+            String[] strings = readStrings(in);
+            RangeTableDelta delta = new RangeTableDelta(string(strings, in.readVarint()));
+            delta.name = string(strings, in.readVarint());
+            delta.baseVersion = (int) in.readVarint();
+            delta.version = (int) in.readVarint();
+            long time = readEntries(in, strings, delta.changed, 0);
+            int removedCount = in.readCount();
+            for (int i = 0; i < removedCount; ++i) {
+                delta.removed.add(string(strings, in.readVarint()));
+            }
+            readStates(in, strings, delta.coords, time);
+            return delta;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed to decode delta message: " + e.getMessage());
+        } catch (IndexOutOfBoundsException e) {
+            Log.e(TAG, "Truncated or corrupt delta message");
+        }
+        return null;
+    }
+
+    public static String encodeAck(String nodeId, int version) {
+        return ACK_PREFIX + nodeId + " " + version;
+    }
+
+    /** A peer's acknowledgement of the version of a node's range table it holds. */
+    public static final class Ack {
+        public final String nodeId;
+        public final int version;
+        Ack(String nodeId, int version) {
+            this.nodeId = nodeId;
+            this.version = version;
+        }
+    }
+
+    /** @return the ack, or null if it can't be read. */
+    public static Ack decodeAck(String msg) {
+        int space = msg.lastIndexOf(' ');
+        if (space <= ACK_PREFIX.length()) return null;
+        try {
+            return new Ack(msg.substring(ACK_PREFIX.length(), space), Integer.parseInt(msg.substring(space + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** @return the time of the last entry written. */
+    private static long writeEntries(Bytes.Output out, StringTable strings, Collection<RangeTable.Entry> entries, long time) {
+        out.writeVarint(entries.size());
+        for (RangeTable.Entry e : entries) {
+            out.writeVarint(strings.ref(e.bssid));
+            out.writeVarint(strings.ref(e.ssid));
+            out.writeVarint(strings.ref(e.algorithm));
+            out.writeSignedVarint(e.rssi);
+            out.writeVarint(e.freq);
+            out.writeSignedVarint(e.time - time);
+            time = e.time;
+            out.writeFloat(e.range);
+            out.writeFloat(e.rangeOverride);
+        }
+        return time;
+    }
+
+    private static long readEntries(Bytes.Input in, String[] strings, List<RangeTable.Entry> entries, long time) {
+        int entryCount = in.readCount();
+        for (int i = 0; i < entryCount; ++i) {
+            RangeTable.Entry e = new RangeTable.Entry();
+            e.bssid = string(strings, in.readVarint());
+            e.ssid = string(strings, in.readVarint());
+            e.algorithm = string(strings, in.readVarint());
+            e.rssi = (int) in.readSignedVarint();
+            e.freq = (int) in.readVarint();
+            time += in.readSignedVarint();
+            e.time = time;
+            e.range = in.readFloat();
+            e.rangeOverride = in.readFloat();
+            entries.add(e);
+        }
+        return time;
+    }
+
+    private static void writeStates(Bytes.Output out, StringTable strings, Collection<State> states, long time) {
+        out.writeVarint(states.size());
+        for (State s : states) {
+            out.writeVarint(strings.ref(s.id));
+            out.writeVarint(strings.ref(s.algorithm));
+            out.writeSignedVarint(s.time - time);
+            time = s.time;
+            for (int i = 0; i < 3; ++i) out.writeFloat(s.pos[i]);
+            for (int i = 0; i < 3; ++i) out.writeFloat(s.angle[i]);
+        }
+    }
+
+    private static void readStates(Bytes.Input in, String[] strings, CoordinateSystem coords, long time) {
+        int stateCount = in.readCount();
+        for (int i = 0; i < stateCount; ++i) {
+            State s = new State(string(strings, in.readVarint()));
+            s.algorithm = string(strings, in.readVarint());
+            time += in.readSignedVarint();
+            s.time = time;
+            for (int j = 0; j < 3; ++j) s.pos[j] = in.readFloat();
+            for (int j = 0; j < 3; ++j) s.angle[j] = in.readFloat();
+            coords.setState(s);
+        }
+    }
+
+    /** Compact entries on their own, for sending just ranges. Same layout rules as nodes. */
+    public static byte[] toBytes(List<RangeTable.CompactEntry> entries) {
+        StringTable strings = new StringTable();
+        for (RangeTable.CompactEntry e : entries) {
+            strings.add(e.bssid);
+        }
+        Bytes.Output out = new Bytes.Output(16 + 12 * entries.size());
+        out.writeByte(FORMAT_BINARY_V1);
+        strings.write(out);
+        out.writeVarint(entries.size());
+        long time = 0;
+        for (RangeTable.CompactEntry e : entries) {
+            out.writeVarint(strings.ref(e.bssid));
+            out.writeSignedVarint(e.time - time);
+            time = e.time;
+            out.writeFloat(e.range);
+        }
+        return out.toByteArray();
+    }
+
+    /** @return the entries, or null if the bytes are truncated or of an unknown version. */
+    public static List<RangeTable.CompactEntry> compactEntriesFromBytes(byte[] bytes) {
+        try {
+            Bytes.Input in = new Bytes.Input(bytes);
+            if (in.readByte() != FORMAT_BINARY_V1) return null;
+            String[] strings = readStrings(in);
+            int count = in.readCount();
+            List<RangeTable.CompactEntry> entries = new ArrayList<RangeTable.CompactEntry>(count);
+            long time = 0;
+            for (int i = 0; i < count; ++i) {
+                RangeTable.CompactEntry e = new RangeTable.CompactEntry();
+                e.bssid = string(strings, in.readVarint());
+                time += in.readSignedVarint();
+                e.time = time;
+                e.range = in.readFloat();
+                entries.add(e);
+            }
+            return entries;
+        } catch (IndexOutOfBoundsException e) {
+            Log.e(TAG, "Truncated or corrupt binary range message");
+        }
+        return null;
+    }
+
+    private static String[] readStrings(Bytes.Input in) {
+        String[] strings = new String[in.readCount()];
+        for (int i = 0; i < strings.length; ++i) {
+            strings[i] = in.readString(in.readCount(), UTF8);
+        }
+        return strings;
+    }
+
+    private static String string(String[] strings, long ref) {
+        if (ref == 0) return null;
+        if (ref > strings.length) throw new IndexOutOfBoundsException("String reference " + ref);
+        return strings[(int) ref - 1];
+    }
+
+    /** Each distinct string once, in the order first added. */
+    static final class StringTable {
+        final Map<String, Integer> refs = new HashMap<String, Integer>();
+        final List<String> strings = new ArrayList<String>();
+
+        void add(String s) {
+            if (s != null && !refs.containsKey(s)) {
+                strings.add(s);
+                refs.put(s, strings.size());
+            }
+        }
+
+        void addEntries(Collection<RangeTable.Entry> entries) {
+            for (RangeTable.Entry e : entries) {
+                add(e.bssid);
+                add(e.ssid);
+                add(e.algorithm);
+            }
+        }
+
+        void addStates(Collection<State> states) {
+            for (State s : states) {
+                add(s.id);
+                add(s.algorithm);
+            }
+        }
+
+        int ref(String s) {
+            return s == null ? 0 : refs.get(s);
+        }
+
+        void write(Bytes.Output out) {
+            out.writeVarint(strings.size());
+            for (String s : strings) {
+                byte[] utf8 = s.getBytes(UTF8);
+                out.writeVarint(utf8.length);
+                out.writeBytes(utf8);
+            }
+        }
+    }
+}
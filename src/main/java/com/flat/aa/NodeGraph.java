@@ -0,0 +1,126 @@
+package com.flat.aa;
+
+import com.flat.localization.util.BitAdjacency;
+import com.flat.localization.util.NodeIdInterner;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Interned node ids and the bit adjacency of every range table, so that the nodes common to two
+ * range tables can be found with a word-wise AND instead of copying and intersecting string sets.
+ * Results are still handed out as {@link Localizer.NodeSet}s so the localization phases don't change.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public class NodeGraph {
+    final NodeIdInterner ids = new NodeIdInterner();
+    final BitAdjacency adjacency = new BitAdjacency();
+    /**
+     * The range table an index owns (one reference) and the ranges to it from other tables, by
+     * index. An id is released once nothing refers to it, so ids of nodes that are no longer in
+     * range don't keep growing the interner and the adjacency.
+     */
+    private int[] refs = new int[0];
+    private final BitSet owners = new BitSet();
+
+    public NodeGraph() {}
+    public NodeGraph(Localizer.RangeTableMap rangeTables) {
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            setTable(table.getKey(), table.getValue());
+        }
+    }
+
+    public NodeIdInterner getIds() { return ids; }
+    public BitAdjacency getAdjacency() { return adjacency; }
+
+    /** Replace the adjacency row of a node with the contents of its range table. */
+    public void setTable(String node, RangeTable table) {
+        int row = intern(node);
+        if (!owners.get(row)) {
+            owners.set(row);
+            ++refs[row];
+        }
+        // take the new references before dropping the old ones, so ids still in range keep their index
+        long[] old = adjacency.getRow(row).clone();
+        adjacency.clearRow(row);
+        for (String other : table.keySet()) {
+            int col = intern(other);
+            adjacency.set(row, col);
+            ++refs[col];
+        }
+        unrefAll(old);
+    }
+
+    public void removeTable(String node) {
+        int row = ids.indexOf(node);
+        if (row < 0 || !owners.get(row)) return;
+        owners.clear(row);
+        long[] old = adjacency.getRow(row).clone();
+        adjacency.clearRow(row);
+        unrefAll(old);
+        unref(row);
+    }
+
+    public void clear() {
+        for (int i = 0; i < ids.size(); ++i) {
+            adjacency.clearRow(i);
+        }
+        ids.clear();
+        owners.clear();
+        Arrays.fill(refs, 0);
+    }
+
+    private int intern(String node) {
+        int index = ids.intern(node);
+        if (index >= refs.length) {
+            refs = Arrays.copyOf(refs, Math.max(index + 1, refs.length * 2));
+        }
+        adjacency.ensureCapacity(index + 1);
+        return index;
+    }
+
+    private void unrefAll(long[] bits) {
+        for (int i = BitAdjacency.nextSetBit(bits, 0); i >= 0; i = BitAdjacency.nextSetBit(bits, i + 1)) {
+            unref(i);
+        }
+    }
+
+    /** No row has the index's bit once nothing refers to it, and it owns no row, so it can be reused. */
+    private void unref(int index) {
+        if (--refs[index] == 0) {
+            ids.release(ids.getId(index));
+        }
+    }
+
+    /** @return the number of nodes both range tables have a range to. */
+    public int countCommonNodes(String node1, String node2) {
+        int a = ids.indexOf(node1), b = ids.indexOf(node2);
+        if (a < 0 || b < 0) return 0;
+        return adjacency.countCommon(a, b);
+    }
+
+    /** @return the nodes both range tables have a range to, as a sorted set. */
+    public Localizer.NodeSet findCommonNodes(String node1, String node2) {
+        return findCommonNodes(node1, node2, new long[adjacency.getWordCount()]);
+    }
+
+    /**
+     * Same as {@link #findCommonNodes(String, String)} but uses the given buffer, which must have
+     * at least {@link BitAdjacency#getWordCount()} elements. Safe to call from several threads as
+     * long as each has its own buffer and no tables are being set.
+     */
+    public Localizer.NodeSet findCommonNodes(String node1, String node2, long[] scratch) {
+        Localizer.NodeSet nodes = new Localizer.NodeSet();
+        int a = ids.indexOf(node1), b = ids.indexOf(node2);
+        if (a < 0 || b < 0) return nodes;
+
+        if (adjacency.common(a, b, scratch) > 0) {
+            for (int i = BitAdjacency.nextSetBit(scratch, 0); i >= 0; i = BitAdjacency.nextSetBit(scratch, i + 1)) {
+                nodes.add(ids.getId(i));
+            }
+        }
+        return nodes;
+    }
+}
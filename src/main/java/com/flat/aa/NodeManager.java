@@ -1,6 +1,7 @@
 package com.flat.aa;
 
 import com.flat.AppController;
+import com.flat.localization.util.PairRangeStore;
 import com.flat.sockets.MyConnectionSocket;
 
 import java.util.ArrayList;
@@ -17,6 +18,8 @@ public class NodeManager {
 
     final String wifiMac;
     final Map<String, Node> nodes;
+    /** Every range between each pair of nodes, from our scans and the tables peers send. */
+    final PairRangeStore pairRanges = new PairRangeStore();
 
     private static NodeManager instance;
     public static NodeManager getInstance() {
@@ -29,6 +32,22 @@ public class NodeManager {
         wifiMac = AppController.getInstance().getWifiMac();
         nodes = new HashMap<String, Node>();
         addNode(new Node(wifiMac, true));
+        Localizer.setPairRanges(pairRanges);
+    }
+
+    public PairRangeStore getPairRanges() { return pairRanges; }
+
+    /**
+     * Adds the ranges of a node's table that are new compared to the previous copy of the table
+     * (or all of them if there was none) to the pair range store.
+     */
+    public void recordRanges(String owner, Collection<RangeTable.Entry> entries, RangeTable previous) {
+        for (RangeTable.Entry e : entries) {
+            RangeTable.Entry old = previous == null ? null : previous.getEntry(e.bssid);
+            if (old == null || old.time != e.time) {
+                pairRanges.add(owner, e.bssid, e.range, e.time);
+            }
+        }
     }
 
 
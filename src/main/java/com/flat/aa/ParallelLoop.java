@@ -0,0 +1,67 @@
+package com.flat.aa;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the iterations of a loop on a fork/join pool by recursively splitting the index range.
+ * Each iteration should write its result to its own slot (e.g. results[i]) so callers can merge
+ * them afterwards in index order, which keeps the outcome the same as running sequentially.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+final class ParallelLoop extends RecursiveAction {
+    /** Ranges smaller than this are run on the current thread. */
+    static final int THRESHOLD = 4;
+
+    interface Body {
+        void run(int i);
+    }
+
+    private final Body body;
+    private final int from, to, threshold;
+
+    private ParallelLoop(Body body, int from, int to, int threshold) {
+        this.body = body;
+        this.from = from;
+        this.to = to;
+        this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= threshold) {
+            for (int i = from; i < to; ++i) {
+                body.run(i);
+            }
+        } else {
+            int mid = (from + to) >>> 1;
+            invokeAll(new ParallelLoop(body, from, mid, threshold), new ParallelLoop(body, mid, to, threshold));
+        }
+    }
+
+    /** Run body for every i in [0, count), on the pool if there is one, otherwise sequentially. */
+    static void run(ForkJoinPool pool, int count, Body body) {
+        run(pool, count, THRESHOLD, body);
+    }
+
+    /**
+     * @param threshold the most iterations to run on one thread, 1 for iterations that are each a lot of work.
+     * If the pool has been shut down (its parallelism changed) before the loop got onto it, the
+     * loop runs sequentially instead.
+     */
+    static void run(ForkJoinPool pool, int count, int threshold, Body body) {
+        if (pool != null) {
+            try {
+                pool.invoke(new ParallelLoop(body, 0, count, threshold));
+                return;
+            } catch (RejectedExecutionException e) {
+                // nothing was run, fall through
+            }
+        }
+        for (int i = 0; i < count; ++i) {
+            body.run(i);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.flat.aa;
+
+import com.flat.localization.util.NodeIdInterner;
+import com.flat.localization.util.UnionFind;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits range tables into the connected components of the range graph (an edge for every range
+ * table entry), so nodes in different rooms can be localized as separate, smaller problems.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class RangeGraphPartitioner {
+    private RangeGraphPartitioner() {}
+
+    /**
+     * @return the range tables of each component that has at least two of them, largest first.
+     * Components with the same number of tables are ordered by their first node id.
+     */
+    public static List<Localizer.RangeTableMap> partition(Localizer.RangeTableMap rangeTables) {
+        NodeIdInterner ids = new NodeIdInterner();
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            ids.intern(table.getKey());
+            for (String node : table.getValue().keySet()) {
+                ids.intern(node);
+            }
+        }
+
+        UnionFind components = new UnionFind(ids.size());
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            int a = ids.indexOf(table.getKey());
+            for (String node : table.getValue().keySet()) {
+                components.union(a, ids.indexOf(node));
+            }
+        }
+
+        // Tables are visited in key order, so each component's first table is its smallest id.
+        Localizer.RangeTableMap[] byRoot = new Localizer.RangeTableMap[ids.size()];
+        List<Localizer.RangeTableMap> result = new ArrayList<Localizer.RangeTableMap>(components.count());
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            int root = components.find(ids.indexOf(table.getKey()));
+            if (byRoot[root] == null) {
+                byRoot[root] = new Localizer.RangeTableMap();
+                result.add(byRoot[root]);
+            }
+            byRoot[root].put(table.getKey(), table.getValue());
+        }
+
+        for (int i = result.size() - 1; i >= 0; --i) {
+            if (result.get(i).size() < 2) {
+                result.remove(i);
+            }
+        }
+        Collections.sort(result, new Comparator<Localizer.RangeTableMap>() {
+            @Override
+            public int compare(Localizer.RangeTableMap lhs, Localizer.RangeTableMap rhs) {
+                if (lhs.size() != rhs.size()) return rhs.size() - lhs.size();
+                return lhs.firstKey().compareTo(rhs.firstKey());
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,78 @@
+package com.flat.aa;
+
+import com.flat.localization.util.NodeIdInterner;
+import com.flat.localization.util.PairRangeStore;
+import com.flat.localization.util.SymmetricRangeMatrix;
+
+import java.util.Map;
+
+/**
+ * The ranges of every range table in a localization pass, built once so that looking up the range
+ * between two nodes is O(1) instead of a scan over every table like
+ * {@link Localizer#findRangeBetween(Localizer.RangeTableMap, String, String)}. Without a
+ * {@link Localizer#getPairRanges() pair range store} it gives the same result. With one, pairs it has
+ * ranges for get their recent weighted mean range instead of the lesser of the latest two, so one
+ * noisy scan moves them less but a moved node takes a few scans to show.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public class RangeIndex {
+    final NodeIdInterner ids = new NodeIdInterner();
+    final SymmetricRangeMatrix matrix = new SymmetricRangeMatrix(0);
+
+    /** An empty index, to be filled by {@link #rebuild}. */
+    public RangeIndex() {}
+
+    public RangeIndex(Localizer.RangeTableMap rangeTables) {
+        rebuild(rangeTables);
+    }
+
+    /**
+     * Replaces the contents with the ranges of these tables, reusing the storage of the last build.
+     * Indices are those of the ids in these tables only, rather than of a long lived interner, so the
+     * matrix is sized by the nodes in this pass and not by every node ever seen.
+     */
+    public void rebuild(Localizer.RangeTableMap rangeTables) {
+        ids.clear();
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            ids.intern(table.getKey());
+            for (String node : table.getValue().keySet()) {
+                ids.intern(node);
+            }
+        }
+
+        // Tables are visited in key order, the same order findRangeBetween() resolves the two directions in.
+        matrix.reset(ids.size());
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            int row = ids.indexOf(table.getKey());
+            for (RangeTable.Entry entry : table.getValue().getEntries()) {
+                matrix.add(row, ids.indexOf(entry.bssid), entry.range);
+            }
+        }
+
+        // Pairs with a history of ranges use its recent weighted mean instead of the lesser of the latest two.
+        PairRangeStore pairRanges = Localizer.getPairRanges();
+        if (pairRanges != null) {
+            for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+                int row = ids.indexOf(table.getKey());
+                for (RangeTable.Entry entry : table.getValue().getEntries()) {
+                    float mean = pairRanges.getMean(table.getKey(), entry.bssid);
+                    if (mean > 0) {
+                        matrix.set(row, ids.indexOf(entry.bssid), mean);
+                    }
+                }
+            }
+        }
+    }
+
+    public float findRangeBetween(String node1, String node2) {
+        return matrix.get(ids.indexOf(node1), ids.indexOf(node2));
+    }
+
+    public float findRangeBetween(int node1, int node2) {
+        return matrix.get(node1, node2);
+    }
+
+    public NodeIdInterner getIds() { return ids; }
+    public SymmetricRangeMatrix getMatrix() { return matrix; }
+}
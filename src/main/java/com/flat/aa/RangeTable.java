@@ -1,22 +1,155 @@
 package com.flat.aa;
 
+import com.flat.localization.util.ResultCache;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Created by Jacob Phillips.
+ * <p>
+ * Thread safe: scans write a table while socket threads encode it, so every access locks the
+ * table and the collections handed out are copies.
  */
 public class RangeTable {
-    final Map<String, Entry> table = new HashMap<String, Entry>();
-    public Collection<Entry> getEntries() { return table.values(); }
-    public Entry getEntry(String bssid) { return table.get(bssid); }
-    Entry putEntry(Entry tableEntry) { return table.put(tableEntry.bssid, tableEntry); }
+    /** Ordered from least to most recently put, so the oldest entries can be swept from the front. */
+    final Map<String, Entry> table = new LinkedHashMap<String, Entry>();
+    /** @return a copy of the entries, from least to most recently put. */
+    public synchronized Collection<Entry> getEntries() { return new ArrayList<Entry>(table.values()); }
+    public synchronized Entry getEntry(String bssid) { return table.get(bssid); }
+    synchronized Entry putEntry(Entry tableEntry) {
+        ++version;
+        changedAt.put(tableEntry.bssid, version);
+        removedAt.remove(tableEntry.bssid);
+        // remove first so the entry moves to the end
+        Entry old = table.remove(tableEntry.bssid);
+        table.put(tableEntry.bssid, tableEntry);
+        if (tableEntry.time > newest) {
+            newest = tableEntry.time;
+        }
+        expire(newest);
+        return old;
+    }
+    synchronized Entry removeEntry(String bssid) {
+        Entry removed = table.remove(bssid);
+        if (removed != null) {
+            ++version;
+            changedAt.remove(bssid);
+            removedAt.put(bssid, version);
+            if (removedAt.size() > Config.DELTA_MAX_REMOVED) {
+                // forget the removals; peers older than this need a full snapshot
+                removedAt.clear();
+                deltaBase = version;
+            }
+        }
+        return removed;
+    }
+
+    private long ttl = Config.RANGE_TTL_MS;
+    private int maxEntries = Config.RANGE_TABLE_MAX_ENTRIES;
+    /** The newest entry time seen, which is the clock for expiring entries as they are put. */
+    private long newest;
+
+    /**
+     * Entries not updated within ttl milliseconds are removed, and once there are more than
+     * maxEntries the least recently updated are removed. Use 0 for no limit.
+     */
+    public synchronized void setLimits(long ttl, int maxEntries) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        expire(newest);
+    }
+    public synchronized long getTtl() { return ttl; }
+    public synchronized int getMaxEntries() { return maxEntries; }
+
+    /**
+     * Removes entries from the least recently updated until one is within the TTL and the table is
+     * within its size limit. Entries are usually updated in time order, so this removes every
+     * expired entry without scanning the fresh ones, and each entry is only removed once.
+     * @return the number of entries removed.
+     */
+    public synchronized int expire(long now) {
+        int removed = 0;
+        while (!table.isEmpty()) {
+            Entry e = table.values().iterator().next();
+            if ((maxEntries > 0 && table.size() > maxEntries) || (ttl > 0 && now - e.time > ttl)) {
+                removeEntry(e.bssid);
+                ++removed;
+            } else {
+                break;
+            }
+        }
+        return removed;
+    }
+
+    int version;
+    /** Incremented on every change to the table so consumers can tell whether it needs reprocessing. */
+    public synchronized int getVersion() { return version; }
+
+    /** @return a copy of the entries together with the version they make up. */
+    public synchronized Snapshot getSnapshot() {
+        return new Snapshot(new ArrayList<Entry>(table.values()), new ArrayList<String>(), version);
+    }
+
+    /** The version at which each entry was last put, and at which each removed entry was removed. */
+    final Map<String, Integer> changedAt = new HashMap<String, Integer>();
+    final Map<String, Integer> removedAt = new HashMap<String, Integer>();
+    /** The oldest version that changes can be listed from. */
+    int deltaBase;
+
+    /** @return true if the changes since the given version are known, so a delta can be sent. */
+    public synchronized boolean hasChangesSince(int version) {
+        return version >= deltaBase && version <= this.version;
+    }
+
+    /**
+     * @return the entries put and the ids of entries removed after the given version, with the
+     * version they bring the table to.
+     */
+    public synchronized Snapshot getChangesSince(int version) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Map.Entry<String, Integer> changed : changedAt.entrySet()) {
+            if (changed.getValue() > version) {
+                entries.add(table.get(changed.getKey()));
+            }
+        }
+        List<String> ids = new ArrayList<String>();
+        for (Map.Entry<String, Integer> removed : removedAt.entrySet()) {
+            if (removed.getValue() > version) {
+                ids.add(removed.getKey());
+            }
+        }
+        return new Snapshot(entries, ids, this.version);
+    }
+
+    private long fingerprint;
+    private int fingerprintVersion = -1;
+    /**
+     * A hash of the ranges in the table, independent of entry order. Only recomputed when the
+     * version has changed, so entries must be changed through {@link #putEntry(Entry)} and
+     * {@link #removeEntry(String)}.
+     */
+    public synchronized long getFingerprint() {
+        if (fingerprintVersion != version) {
+            long h = 0;
+            for (Entry e : table.values()) {
+                h += ResultCache.fingerprint(e.bssid, e.range);
+            }
+            fingerprint = h;
+            fingerprintVersion = version;
+        }
+        return fingerprint;
+    }
 
     public RangeTable() {}
     public RangeTable(String jsonArray) {
@@ -31,17 +164,36 @@ public class RangeTable {
     @Override
     public String toString() {
 //        try {
-            JSONArray json = new JSONArray();
-            for (Entry e : getEntries()) {
-                json.put(e.toString());
-            }
-            return json.toString();
+            return toString(getEntries());
 //        } catch (JSONException ignored) {}
 //        return super.toString();
     }
 
-    public Set<String> keySet() {
-        return table.keySet();
+    /** @return the entries as the JSON array {@link #RangeTable(String)} reads. */
+    static String toString(Collection<Entry> entries) {
+        JSONArray json = new JSONArray();
+        for (Entry e : entries) {
+            json.put(e.toString());
+        }
+        return json.toString();
+    }
+
+    /** @return a copy of the ids of the entries. */
+    public synchronized Set<String> keySet() {
+        return new LinkedHashSet<String>(table.keySet());
+    }
+
+    /** Entries and removals read under one lock, so they agree with the version they are labelled with. */
+    public static final class Snapshot {
+        public final List<Entry> entries;
+        public final List<String> removed;
+        public final int version;
+
+        Snapshot(List<Entry> entries, List<String> removed, int version) {
+            this.entries = entries;
+            this.removed = removed;
+            this.version = version;
+        }
     }
 
     public static final class Entry {
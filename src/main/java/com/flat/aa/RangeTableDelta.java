@@ -0,0 +1,42 @@
+package com.flat.aa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes to a node's range table between two of its versions, as sent by
+ * {@link NodeCodec#encodeDelta(Node, int)}. Coordinates are small and change with every solve, so
+ * they are carried whole.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class RangeTableDelta {
+    public final String nodeId;
+    public String name;
+    /** The version the changes are from, which the receiver must hold. */
+    public int baseVersion;
+    /** The version the receiver holds after applying the changes. */
+    public int version;
+    public final List<RangeTable.Entry> changed = new ArrayList<RangeTable.Entry>();
+    public final List<String> removed = new ArrayList<String>();
+    public final CoordinateSystem coords = new CoordinateSystem();
+
+    RangeTableDelta(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /** Brings the node's copy of the range table from {@link #baseVersion} to {@link #version}. */
+    void applyTo(Node node) {
+        for (RangeTable.Entry e : changed) {
+            node.rangeTable.putEntry(e);
+        }
+        for (String id : removed) {
+            node.rangeTable.removeEntry(id);
+        }
+        if (name != null) {
+            node.name = name;
+        }
+        node.setCoords(coords);
+        node.remoteVersion = version;
+    }
+}
@@ -6,7 +6,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.nsd.NsdServiceInfo;
-import android.net.wifi.ScanResult;
 import android.util.Log;
 
 import com.flat.AppController;
@@ -15,13 +14,21 @@ import com.flat.networkservicediscovery.NsdController;
 import com.flat.networkservicediscovery.NsdServiceFilter;
 import com.flat.sockets.MyConnectionSocket;
 import com.flat.sockets.MyServerSocket;
+import com.flat.util.ScanStage;
 import com.flat.wifi.AggregateScanResult;
 import com.flat.wifi.ScanAggregator;
+import com.flat.wifi.ScanListener;
+import com.flat.wifi.ScanRecord;
+import com.flat.wifi.ScanScheduler;
+import com.flat.wifi.ScanTrace;
 import com.flat.wifi.WifiHelper;
 import com.flat.wifi.WifiScanner;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -30,6 +37,7 @@ import java.util.List;
 public class ScanAndDataMode {
     static final String TAG = ScanAndDataMode.class.getSimpleName();
     static final String NSD_SERVICE_PREFIX = "flatloco_";
+    static final String TRACE_FILE = "scans.trace";
 
     Context context;
     WifiHelper wifiHelper;
@@ -80,6 +88,7 @@ public class ScanAndDataMode {
 
         scanner.unregisterListener(scanListener);
         scanner.stop();
+        stopTrace();
 
         nsdController.unregisterListener(nsdContollerListener);
         nsdController.disableNsd();
@@ -87,54 +96,131 @@ public class ScanAndDataMode {
 
     public boolean isEnabled() { return enabled; }
 
+    /** Receives each scan's results, e.g. to feed it a replayed {@link ScanTrace}. */
+    public ScanListener getScanListener() { return scanListener; }
+    public ScanAggregator getAggregator() { return aggregator; }
+
+    private ScanTrace.Writer traceWriter;
+
+    /** Records scans to {@link #TRACE_FILE}, each start of scanning as a new session. */
+    void startTrace() {
+        if (traceWriter != null) return;
+        File file = new File(context.getExternalFilesDir(null), TRACE_FILE);
+        try {
+            traceWriter = new ScanTrace.Writer(file);
+            scanner.registerListener(traceWriter);
+            Log.i(TAG, "Recording scans to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't record scans to " + file, e);
+        }
+    }
+
+    void stopTrace() {
+        if (traceWriter == null) return;
+        scanner.unregisterListener(traceWriter);
+        if (traceWriter.getFailure() != null) {
+            Log.e(TAG, "Stopped recording scans", traceWriter.getFailure());
+        }
+        try {
+            traceWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close scan trace", e);
+        }
+        traceWriter = null;
+    }
+
     public static int makeScanLimit() {
         return Config.SCAN_MIN_SCANS + (int) (Math.random() * (Config.SCAN_MAX_SCANS - Config.SCAN_MIN_SCANS + 1));
     }
 
-    final WifiScanner.ScanListener scanListener = new WifiScanner.ScanListener() {
+    final ScanListener scanListener = new ScanListener() {
         int scanLimit = makeScanLimit();
         @Override
-        public void onScanResults(List<ScanResult> scanResults) {
+        public void onScanResults(List<ScanRecord> scanResults) {
             Log.v(TAG, "Received scan results");
             aggregator.processScanResults(scanResults);
 
             ++scanCount;
-            if (scanCount % scanLimit == 0) {
+            ScanScheduler scheduler = scanner.getScheduler();
+            boolean phaseComplete = scheduler != null
+                    ? scheduler.isPhaseComplete(Config.SCAN_PHASE_MIN_SCANS, scanLimit)
+                    : scanCount % scanLimit == 0;
+            if (phaseComplete) {
+                if (scheduler != null) Log.d(TAG, "Scan phase complete: " + scheduler);
                 scanLimit = makeScanLimit();
+                // no more scans for this phase while the ranges are worked out
+                scanner.unregisterListener(this);
 
-                RangeTable rangeTable = nodeManager.getLocalNode().getRangeTable();
+                // the aggregator belongs to this stage, so hand over what the ranges need
+                List<Reading> readings = new ArrayList<Reading>(aggregator.getResults().size());
+                long nowUs = aggregator.nowUs();
                 for (AggregateScanResult result : aggregator.getResults()) {
-                    Node n = nodeManager.getNode(result.bssid);
-                    if (n == null) {
-                        n = new Node(result.bssid);
-                        nodeManager.addNode(n);
-                    }
-                    n.setSsid(result.ssid);
-                    int rssi = result.effectiveRssi();
-                    FreeSpacePathLoss fspl = new FreeSpacePathLoss();
-                    float range = fspl.fromDbMhz(rssi, result.freq);
-                    RangeTable.Entry entry = rangeTable.getEntry(result.bssid);
-                    if (entry == null) {
-                        entry = new RangeTable.Entry();
-                    }
-                    entry.algorithm = fspl.getName();
-                    entry.bssid = result.bssid;
-                    entry.freq = result.freq;
-                    entry.range = range;
-                    entry.rssi = rssi;
-                    entry.ssid = result.ssid;
-                    entry.time = System.currentTimeMillis();
-
-                    rangeTable.putEntry(entry);
+                    readings.add(new Reading(result.bssid, result.ssid, result.freq, result.estimatedRssi(nowUs)));
                 }
-                nodeManager.getLocalNode().setRangeTable(rangeTable);
-
-                stop();
-                BeaconAndLocalizeMode.getInstance(context).start();
+                rangeStage.offer(readings);
             }
         }
     };
 
+    /** A BSSID's level at the end of a scan phase. */
+    static final class Reading {
+        final String bssid, ssid;
+        final int freq, rssi;
+
+        Reading(String bssid, String ssid, int freq, int rssi) {
+            this.bssid = bssid;
+            this.ssid = ssid;
+            this.freq = freq;
+            this.rssi = rssi;
+        }
+    }
+
+    /** Turns a scan phase's levels into ranges, off the scanner's result stage. */
+    final ScanStage<List<Reading>> rangeStage = new ScanStage<List<Reading>>("ScanAndDataMode-ranges",
+            new ScanStage.Handler<List<Reading>>() {
+        @Override
+        public void handle(List<Reading> readings) {
+            RangeTable rangeTable = nodeManager.getLocalNode().getRangeTable();
+            FreeSpacePathLoss fspl = new FreeSpacePathLoss();
+            for (Reading r : readings) {
+                Node n = nodeManager.getNode(r.bssid);
+                if (n == null) {
+                    n = new Node(r.bssid);
+                    nodeManager.addNode(n);
+                }
+                n.setSsid(r.ssid);
+                float range = fspl.fromDbMhz(r.rssi, r.freq);
+                // a new entry each time, since the table's readers may hold the old one
+                RangeTable.Entry entry = new RangeTable.Entry();
+                entry.algorithm = fspl.getName();
+                entry.bssid = r.bssid;
+                entry.freq = r.freq;
+                entry.range = range;
+                entry.rssi = r.rssi;
+                entry.ssid = r.ssid;
+                entry.time = System.currentTimeMillis();
+
+                rangeTable.putEntry(entry);
+                nodeManager.getPairRanges().add(nodeManager.getLocalNode().getId(), r.bssid, range, entry.time);
+            }
+            // drop nodes that haven't been heard from, which also reaches peers as removals
+            long now = System.currentTimeMillis();
+            int expired = rangeTable.expire(now);
+            if (expired > 0) {
+                Log.d(TAG, "Expired " + expired + " range table entries");
+            }
+            expired = nodeManager.getPairRanges().expire(now - Config.RANGE_TTL_MS);
+            if (expired > 0) {
+                Log.d(TAG, "Expired " + expired + " pair ranges");
+            }
+            nodeManager.getLocalNode().setRangeTable(rangeTable);
+            Log.v(TAG, scanner.getResultStage() + "; " + rangeStage);
+
+            stop();
+            BeaconAndLocalizeMode.getInstance(context).start();
+        }
+    }, Config.SCAN_QUEUE_CAPACITY, Config.SCAN_SLOW_STAGE_MS);
+
     final NsdController.NsdContollerListener nsdContollerListener = new NsdController.NsdContollerListener() {
         @Override
         public void onServiceRegistered(NsdServiceInfo info) {
@@ -191,20 +277,119 @@ public class ScanAndDataMode {
 
         void handleNewConnection(Socket socket) {
             Log.e(TAG, "##### Received connection to " + socket.getInetAddress().getHostAddress());
-            nsdController.getSocketManager().send(socket.getInetAddress(), nodeManager.getLocalNode().toString());
+            // Peers we haven't heard from yet get JSON, which tells them what we can read.
+            Node peer = null;
+            for (Node n : nodeManager.getNodes()) {
+                MyConnectionSocket conn = n.getConnection();
+                if (conn != null && socket.getInetAddress().equals(conn.getAddress())) {
+                    peer = n;
+                    break;
+                }
+            }
+            nsdController.getSocketManager().send(socket.getInetAddress(), syncMessage(peer));
+        }
+
+        /**
+         * @return a delta from the version of our range table the peer has acked, or the whole
+         * local node if the peer can't read deltas or the changes since its version are unknown.
+         * The version sent is remembered for the peer's ack.
+         */
+        String syncMessage(Node peer) {
+            Node local = nodeManager.getLocalNode();
+            if (peer == null) {
+                return NodeCodec.encode(local, NodeCodec.FORMAT_JSON);
+            }
+            int acked = peer.getAckedVersion();
+            String msg;
+            if (Config.DELTA_SYNC && peer.getWireFormat() >= NodeCodec.FORMAT_BINARY_V2
+                    && acked >= 0 && local.getRangeTable().hasChangesSince(acked)) {
+                msg = NodeCodec.encodeDelta(local, acked);
+            } else {
+                msg = NodeCodec.encode(local, peer.getWireFormat());
+            }
+            // the message carries the version of the snapshot it was encoded from; read after
+            // encoding, so a change made meanwhile makes the ack look old and is resent
+            peer.sentVersion = local.getRangeTable().getVersion();
+            return msg;
         }
 
         void handleReceivedMessage(MyConnectionSocket conn, String msg) {
-            Node newNode = Node.from(msg);
+            if (msg == null) return;
+            if (msg.startsWith(NodeCodec.ACK_PREFIX)) {
+                handleAck(conn, msg);
+                return;
+            }
+            if (msg.startsWith(NodeCodec.DELTA_PREFIX)) {
+                handleDelta(conn, msg);
+                return;
+            }
+            Node newNode = NodeCodec.decode(msg);
+            if (newNode == null) {
+                Log.e(TAG, "Dropping unreadable message from " + conn.getAddress().getHostAddress());
+                return;
+            }
+            int format = Math.max(newNode.getWireFormat(), NodeCodec.formatOf(msg));
             Node existingNode = nodeManager.getNode(newNode.getId());
+            nodeManager.recordRanges(newNode.getId(), newNode.getRangeTable().getEntries(),
+                    existingNode == null ? null : existingNode.getRangeTable());
             if (existingNode == null) {
                 newNode.setConnection(conn);
+                newNode.setWireFormat(format);
                 nodeManager.addNode(newNode);
             } else {
                 existingNode.setConnection(conn);
+                existingNode.setWireFormat(format);
                 existingNode.setRangeTable(newNode.getRangeTable());
                 existingNode.setCoords(newNode.getCoords());
+                existingNode.remoteVersion = newNode.remoteVersion;
             }
+            if (format >= NodeCodec.FORMAT_BINARY_V2 && newNode.remoteVersion >= 0) {
+                sendAck(conn, newNode.remoteVersion);
+            }
+        }
+
+        /** Applies a delta if it starts from the version we hold, otherwise acks what we hold. */
+        void handleDelta(MyConnectionSocket conn, String msg) {
+            RangeTableDelta delta = NodeCodec.decodeDelta(msg);
+            if (delta == null) {
+                Log.e(TAG, "Dropping unreadable delta from " + conn.getAddress().getHostAddress());
+                return;
+            }
+            Node existingNode = nodeManager.getNode(delta.nodeId);
+            if (existingNode == null || existingNode.remoteVersion != delta.baseVersion) {
+                // missed a version; acking what we hold gets a delta from there or the whole node
+                Log.d(TAG, "Delta gap for " + delta.nodeId + ": have " + (existingNode == null ? -1 : existingNode.remoteVersion)
+                        + ", delta from " + delta.baseVersion);
+                sendAck(conn, existingNode == null ? -1 : existingNode.remoteVersion);
+                return;
+            }
+            existingNode.setConnection(conn);
+            existingNode.setWireFormat(Math.max(existingNode.getWireFormat(), NodeCodec.FORMAT_BINARY_V2));
+            nodeManager.recordRanges(delta.nodeId, delta.changed, existingNode.getRangeTable());
+            delta.applyTo(existingNode);
+            sendAck(conn, delta.version);
+        }
+
+        /**
+         * Records the version the peer holds, and sends again if it is older than what was last
+         * sent (the peer missed it). Changes made since then go out with the next sync rather
+         * than in reply to every ack, which would keep the two sides messaging each other.
+         */
+        void handleAck(MyConnectionSocket conn, String msg) {
+            NodeCodec.Ack ack = NodeCodec.decodeAck(msg);
+            if (ack == null) return;
+            Node peer = nodeManager.getNode(ack.nodeId);
+            if (peer == null) return;
+            peer.setWireFormat(Math.max(peer.getWireFormat(), NodeCodec.FORMAT_BINARY_V2));
+            peer.ackedVersion = ack.version;
+            if (ack.version < peer.sentVersion) {
+                nsdController.getSocketManager().send(conn.getAddress(), syncMessage(peer));
+            }
+        }
+
+        void sendAck(MyConnectionSocket conn, int version) {
+            nsdController.getSocketManager().send(conn.getAddress(),
+                    NodeCodec.encodeAck(nodeManager.getLocalNode().getId(), version));
         }
     };
 
@@ -212,6 +397,7 @@ public class ScanAndDataMode {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (enabled && wifiHelper.isConnected()) {
+                if (Config.SCAN_TRACE_RECORD) startTrace();
                 scanner.registerListener(scanListener);
                 scanner.start();
 
@@ -0,0 +1,289 @@
+package com.flat.aa;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Improves an existing coordinate system against new ranges by stress majorization (SMACOF),
+ * instead of throwing it away and solving again. Only measured ranges are used, so each iteration
+ * is O(nodes + ranges). Nodes are updated in place one at a time with the Guttman transform of
+ * their own stress terms, which never increases the total stress.
+ * <p>
+ * Nodes that are new since the previous coordinate system are seeded next to a neighbor that has
+ * a position. Buffers are kept between calls and only grow, so a refiner should be reused.
+ * Not thread safe.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public class SmacofRefiner {
+    private static final String TAG = SmacofRefiner.class.getSimpleName();
+    public static final String ALGORITHM = "SMACOF";
+
+    /** Golden angle, so seeded nodes around the same neighbor don't land on top of each other. */
+    private static final double SEED_ANGLE = Math.PI * (3 - Math.sqrt(5));
+
+    private final int maxIterations;
+    private final double tolerance;
+
+    // Per node
+    private String[] ids = new String[0];
+    private double[] x = new double[0], y = new double[0];
+    private boolean[] placed = new boolean[0];
+    private int[] start = new int[1], end = new int[1], mark = new int[0];
+
+    private final RangeIndex index = new RangeIndex();
+
+    // Per range, both directions: the neighbors of node i are edges[start[i]] to edges[start[i+1] - 1].
+    private int[] edges = new int[0];
+    private float[] ranges = new float[0];
+
+    private int iterations;
+    private double stress = Double.NaN;
+
+    public SmacofRefiner() {
+        this(Config.SMACOF_MAX_ITERATIONS, Config.SMACOF_TOLERANCE);
+    }
+
+    /**
+     * @param tolerance stop once an iteration lowers the stress by less than this fraction.
+     */
+    public SmacofRefiner(int maxIterations, double tolerance) {
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+    }
+
+    /** The number of iterations the last refinement ran. */
+    public int getIterations() { return iterations; }
+    /** The normalized stress after the last refinement, see {@link Localizer#findStress}. */
+    public double getStress() { return stress; }
+
+    /**
+     * @param previous the coordinate system to start from; it is not modified.
+     * @return the refined coordinate system, or null if fewer than three nodes could be placed.
+     */
+    public CoordinateSystem refine(CoordinateSystem previous, Localizer.RangeTableMap rangeTables) {
+        index.rebuild(rangeTables);
+        return refine(previous, rangeTables, index);
+    }
+
+    /**
+     * Refines with a range index the caller already built from these range tables.
+     * @param previous the coordinate system to start from; it is not modified.
+     * @return the refined coordinate system, or null if fewer than three nodes could be placed.
+     */
+    public CoordinateSystem refine(CoordinateSystem previous, Localizer.RangeTableMap rangeTables, RangeIndex index) {
+        long startTime = System.nanoTime();
+        int n = index.getIds().size();
+        buildEdges(index, rangeTables, n);
+        if (seed(previous, n) < 3) {
+            iterations = 0;
+            stress = Double.NaN;
+            return null;
+        }
+
+        iterations = 0;
+        double last = findStress(n);
+        while (iterations < maxIterations && last > 0) {
+            iterate(n);
+            ++iterations;
+            double current = findStress(n);
+            boolean converged = last - current <= tolerance * last;
+            last = current;
+            if (converged) break;
+        }
+        stress = Math.sqrt(last);
+
+        CoordinateSystem coords = makeCoords(previous, n);
+        Log.d(TAG, "Refining " + coords.size() + " nodes took " + iterations + " iterations and "
+                + (System.nanoTime() - startTime) / 1E6f + "ms, stress " + stress);
+        return coords;
+    }
+
+    private void ensureCapacity(int n, int edgeCount) {
+        if (x.length < n) {
+            int size = Math.max(n, x.length * 2);
+            ids = new String[size];
+            x = new double[size];
+            y = new double[size];
+            placed = new boolean[size];
+            mark = new int[size];
+            start = new int[size + 1];
+            end = new int[size + 1];
+        }
+        if (edges.length < edgeCount) {
+            int size = Math.max(edgeCount, edges.length * 2);
+            edges = new int[size];
+            ranges = new float[size];
+        }
+    }
+
+    /** Every measured range in both directions, without duplicates. */
+    private void buildEdges(RangeIndex index, Localizer.RangeTableMap rangeTables, int n) {
+        // one copy of each table, so the passes below see the same entries
+        int[] owner = new int[rangeTables.size()];
+        List<Collection<RangeTable.Entry>> entries = new ArrayList<Collection<RangeTable.Entry>>(owner.length);
+        int edgeCount = 0;
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            owner[entries.size()] = index.getIds().indexOf(table.getKey());
+            entries.add(table.getValue().getEntries());
+            edgeCount += 2 * entries.get(entries.size() - 1).size();
+        }
+        ensureCapacity(n, edgeCount);
+
+        // count, with duplicates, then fill backwards from the end of each node's block
+        Arrays.fill(start, 0, n + 1, 0);
+        for (int t = 0; t < owner.length; ++t) {
+            int a = owner[t];
+            for (RangeTable.Entry entry : entries.get(t)) {
+                int b = index.getIds().indexOf(entry.bssid);
+                if (a == b) continue;
+                ++start[a + 1];
+                ++start[b + 1];
+            }
+        }
+        for (int i = 0; i < n; ++i) {
+            start[i + 1] += start[i];
+        }
+        System.arraycopy(start, 0, end, 0, n + 1);
+        for (int t = 0; t < owner.length; ++t) {
+            int a = owner[t];
+            for (RangeTable.Entry entry : entries.get(t)) {
+                int b = index.getIds().indexOf(entry.bssid);
+                if (a == b) continue;
+                edges[end[a]++] = b;
+                edges[end[b]++] = a;
+            }
+        }
+
+        // compact each block, dropping repeated neighbors
+        Arrays.fill(mark, 0, n, -1);
+        int e = 0;
+        for (int i = 0; i < n; ++i) {
+            int from = start[i], to = start[i + 1];
+            start[i] = e;
+            for (int k = from; k < to; ++k) {
+                int j = edges[k];
+                if (mark[j] == i) continue;
+                mark[j] = i;
+                edges[e] = j;
+                ranges[e] = index.findRangeBetween(i, j);
+                ++e;
+            }
+            ids[i] = index.getIds().getId(i);
+        }
+        start[n] = e;
+    }
+
+    /** @return the number of nodes that got a position. */
+    private int seed(CoordinateSystem previous, int n) {
+        int count = 0;
+        for (int i = 0; i < n; ++i) {
+            State s = previous == null ? null : previous.getState(ids[i]);
+            placed[i] = s != null && !Float.isNaN(s.pos[0]) && !Float.isNaN(s.pos[1]);
+            if (placed[i]) {
+                x[i] = s.pos[0];
+                y[i] = s.pos[1];
+                ++count;
+            }
+        }
+        if (count == 0) return 0;
+
+        // New nodes go at their range from the first placed neighbor; repeat while that places more.
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int i = 0; i < n; ++i) {
+                if (placed[i]) continue;
+                for (int k = start[i]; k < start[i + 1]; ++k) {
+                    int j = edges[k];
+                    if (!placed[j]) continue;
+                    double angle = SEED_ANGLE * i;
+                    x[i] = x[j] + ranges[k] * Math.cos(angle);
+                    y[i] = y[j] + ranges[k] * Math.sin(angle);
+                    placed[i] = true;
+                    progress = true;
+                    ++count;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** One Gauss-Seidel sweep of the Guttman transform over every placed node. */
+    private void iterate(int n) {
+        for (int i = 0; i < n; ++i) {
+            if (!placed[i]) continue;
+            double sumX = 0, sumY = 0;
+            int degree = 0;
+            for (int k = start[i]; k < start[i + 1]; ++k) {
+                int j = edges[k];
+                if (!placed[j]) continue;
+                double dx = x[i] - x[j], dy = y[i] - y[j];
+                double d = Math.sqrt(dx * dx + dy * dy);
+                sumX += x[j];
+                sumY += y[j];
+                if (d > 0) {
+                    sumX += ranges[k] * dx / d;
+                    sumY += ranges[k] * dy / d;
+                }
+                ++degree;
+            }
+            if (degree > 0) {
+                x[i] = sumX / degree;
+                y[i] = sumY / degree;
+            }
+        }
+    }
+
+    /** Squared normalized stress over the ranges between placed nodes. */
+    private double findStress(int n) {
+        double error = 0, total = 0;
+        for (int i = 0; i < n; ++i) {
+            if (!placed[i]) continue;
+            for (int k = start[i]; k < start[i + 1]; ++k) {
+                int j = edges[k];
+                if (j < i || !placed[j]) continue;
+                double dx = x[i] - x[j], dy = y[i] - y[j];
+                double d = Math.sqrt(dx * dx + dy * dy) - ranges[k];
+                error += d * d;
+                total += ranges[k] * ranges[k];
+            }
+        }
+        return total > 0 ? error / total : 0;
+    }
+
+    /** Copies the positions out, moved so the previous root stays at the origin. */
+    private CoordinateSystem makeCoords(CoordinateSystem previous, int n) {
+        double x0 = 0, y0 = 0;
+        String root = previous == null ? null : previous.getRoot();
+        for (int i = 0; i < n; ++i) {
+            if (placed[i] && ids[i].equals(root)) {
+                x0 = x[i];
+                y0 = y[i];
+                break;
+            }
+        }
+
+        CoordinateSystem coords = new CoordinateSystem();
+        for (int i = 0; i < n; ++i) {
+            if (!placed[i]) continue;
+            State state = new State(ids[i]);
+            state.pos[0] = (float) (x[i] - x0);
+            state.pos[1] = (float) (y[i] - y0);
+            State old = previous == null ? null : previous.getState(ids[i]);
+            if (old != null) {
+                state.pos[2] = old.pos[2];
+                System.arraycopy(old.angle, 0, state.angle, 0, 3);
+            }
+            state.algorithm = ALGORITHM;
+            coords.setState(state);
+        }
+        return coords;
+    }
+}
@@ -14,6 +14,13 @@ public final class State {
     public long time = System.currentTimeMillis();
     public String algorithm;
     State(String id) { this.id = id; }
+    State(State other) {
+        this(other.id);
+        System.arraycopy(other.pos, 0, pos, 0, 3);
+        System.arraycopy(other.angle, 0, angle, 0, 3);
+        time = other.time;
+        algorithm = other.algorithm;
+    }
 
     static State from(String jsonObject) throws JSONException {
         JSONObject json = new JSONObject(jsonObject);
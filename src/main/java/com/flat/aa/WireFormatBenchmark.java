@@ -0,0 +1,162 @@
+package com.flat.aa;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the JSON and binary forms of {@link NodeCodec} on a node with a synthetic range table
+ * and coordinate system, for message size and encode / decode time.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class WireFormatBenchmark {
+    private static final String TAG = WireFormatBenchmark.class.getSimpleName();
+
+    private WireFormatBenchmark() {}
+
+    /**
+     * A node with the given number of range table entries and states, like one after a few scans.
+     * The table keeps at most {@link Config#RANGE_TABLE_MAX_ENTRIES}.
+     */
+    static Node makeNode(int entryCount, long seed) {
+        Random random = new Random(seed);
+        Node node = new Node(LocalizerBenchmark.makeId(0));
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= entryCount; ++i) {
+            RangeTable.Entry e = new RangeTable.Entry();
+            e.bssid = LocalizerBenchmark.makeId(i);
+            e.ssid = "flatloco_" + e.bssid;
+            e.algorithm = "FSPL";
+            e.rssi = -40 - random.nextInt(50);
+            e.freq = 2412 + 5 * random.nextInt(11);
+            e.time = now - random.nextInt(60000);
+            e.range = random.nextFloat() * 50;
+            node.rangeTable.putEntry(e);
+
+            State s = new State(e.bssid);
+            s.pos[0] = random.nextFloat() * 50;
+            s.pos[1] = random.nextFloat() * 50;
+            s.time = e.time;
+            s.algorithm = MdsLocalizer.ALGORITHM;
+            node.coords.setState(s);
+        }
+        return node;
+    }
+
+    /**
+     * @return a one line summary of bytes per message and encode / decode ns per entry for each
+     * format, which is also logged.
+     */
+    public static String compareFormats(int entryCount, int rounds) {
+        Node node = makeNode(entryCount, entryCount);
+
+        String json = null, binary = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            json = NodeCodec.encode(node, NodeCodec.FORMAT_JSON);
+        }
+        long jsonEncode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            NodeCodec.decode(json);
+        }
+        long jsonDecode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            binary = NodeCodec.encode(node, NodeCodec.FORMAT_BINARY_LATEST);
+        }
+        long binaryEncode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Node decoded = null;
+        for (int i = 0; i < rounds; ++i) {
+            decoded = NodeCodec.decode(binary);
+        }
+        long binaryDecode = System.nanoTime() - start;
+
+        boolean same = decoded != null && sameEntries(decoded.rangeTable, node.rangeTable)
+                && LocalizerBenchmark.sameCoords(decoded.coords, node.coords);
+
+        // the table may have kept fewer than asked for
+        int entries = node.rangeTable.getEntries().size();
+        float perEntry = (float) rounds * Math.max(1, entries);
+        String result = String.format("%d entries: json %d bytes, encode %.0fns/entry, decode %.0fns/entry; "
+                        + "binary %d bytes, encode %.0fns/entry, decode %.0fns/entry; round trip %s",
+                entries, json.length(), jsonEncode / perEntry, jsonDecode / perEntry,
+                binary.length(), binaryEncode / perEntry, binaryDecode / perEntry, same ? "ok" : "differs");
+        Log.i(TAG, result);
+        return result;
+    }
+
+    static boolean sameEntries(RangeTable a, RangeTable b) {
+        if (a.getEntries().size() != b.getEntries().size()) return false;
+        for (RangeTable.Entry e : a.getEntries()) {
+            RangeTable.Entry other = b.getEntry(e.bssid);
+            if (other == null || other.rssi != e.rssi || other.freq != e.freq || other.time != e.time
+                    || other.range != e.range || other.rangeOverride != e.rangeOverride
+                    || !e.ssid.equals(other.ssid) || !e.algorithm.equals(other.algorithm)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Changes some entries and removes others after a peer has acked the table, then compares the
+     * whole node with the delta the peer would be sent, and checks the delta brings the peer's copy
+     * up to date.
+     * @return a one line summary, which is also logged.
+     */
+    public static String compareDelta(int entryCount, int changedCount, int removedCount) {
+        Node node = makeNode(entryCount, entryCount);
+        Node copy = NodeCodec.decode(NodeCodec.encode(node, NodeCodec.FORMAT_BINARY_LATEST));
+        int acked = node.rangeTable.getVersion();
+
+        Random random = new Random(changedCount);
+        // the table may have dropped entries beyond its size limit
+        List<RangeTable.Entry> entries = new ArrayList<RangeTable.Entry>(node.rangeTable.getEntries());
+        for (int i = 0; i < changedCount && i < entries.size(); ++i) {
+            RangeTable.Entry e = entries.get(i);
+            RangeTable.Entry changed = new RangeTable.Entry();
+            changed.bssid = e.bssid;
+            changed.ssid = e.ssid;
+            changed.algorithm = e.algorithm;
+            changed.rssi = e.rssi + 1;
+            changed.freq = e.freq;
+            changed.time = e.time + 2000;
+            changed.range = random.nextFloat() * 50;
+            node.rangeTable.putEntry(changed);
+        }
+        for (int i = 0; i < removedCount && i < entries.size(); ++i) {
+            node.rangeTable.removeEntry(entries.get(entries.size() - 1 - i).bssid);
+        }
+
+        String whole = NodeCodec.encode(node, NodeCodec.FORMAT_BINARY_LATEST);
+        if (!node.rangeTable.hasChangesSince(acked)) {
+            String result = String.format("%d entries, %d changed, %d removed: too many removals, whole %d bytes",
+                    entryCount, changedCount, removedCount, whole.length());
+            Log.i(TAG, result);
+            return result;
+        }
+        long start = System.nanoTime();
+        String delta = NodeCodec.encodeDelta(node, acked);
+        long encode = System.nanoTime() - start;
+
+        RangeTableDelta decoded = NodeCodec.decodeDelta(delta);
+        boolean same = decoded != null && decoded.baseVersion == copy.remoteVersion;
+        if (same) {
+            decoded.applyTo(copy);
+            same = copy.remoteVersion == node.rangeTable.getVersion() && sameEntries(copy.rangeTable, node.rangeTable);
+        }
+
+        String result = String.format("%d entries, %d changed, %d removed: whole %d bytes, delta %d bytes "
+                        + "(%.0fus to encode); applied %s",
+                entryCount, changedCount, removedCount, whole.length(), delta.length(), encode / 1000f,
+                same ? "ok" : "differs");
+        Log.i(TAG, result);
+        return result;
+    }
+}
@@ -12,7 +12,6 @@ import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.CompoundButton;
 import android.widget.ImageView;
-import android.widget.ListView;
 import android.widget.Switch;
 import android.widget.TextView;
 
@@ -58,32 +57,6 @@ public class BlinkingListActivity extends Activity {
         TextView count;
     }
 
-    private static void blink(final ImageView dot) {
-        if (dot == null) return;
-        dot.setImageResource(R.drawable.green_dot);
-        dot.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                dot.setImageResource(R.drawable.dot);
-            }
-        }, 400);
-    }
-
-    private static  View getViewByPosition(int pos, ListView listView) {
-        if (listView == null) return null;
-        final int firstListItemPosition = listView.getFirstVisiblePosition();
-        final int lastListItemPosition = firstListItemPosition + listView.getChildCount() - 1;
-
-        if (pos < firstListItemPosition || pos > lastListItemPosition ) {
-            return listView.getAdapter().getView(pos, null, listView);
-        } else {
-            final int childIndex = pos - firstListItemPosition;
-            return listView.getChildAt(childIndex);
-        }
-    }
-    
-
-
     public static class SignalFragment extends ListFragment {
         SignalManager manager;
 
@@ -97,20 +70,18 @@ public class BlinkingListActivity extends Activity {
         private final Signal.SignalListener signalListener = new Signal.SignalListener() {
             @Override
             public void onChange(Signal signal, int eventType) {
-                Signal[] signals = manager.getSignals();
-                for (int i=0; i<signals.length; ++i) {
-                    if (signal == signals[i]) {
-                        View container = getViewByPosition(i, getListView());
-                        if (container != null) {
-                            blink((ImageView) container.findViewById(R.id.activityDot));
-                            ((TextView) container.findViewById(R.id.count)).setText(signal.getChangeCount() + "");
-                        }
-                        break;
-                    }
-                }
+                rowUpdater.markDirty(signal, null);
             }
         };
 
+        private final ListRowUpdater rowUpdater = new ListRowUpdater(new ListRowUpdater.RowBinder() {
+            @Override
+            public void bindRow(View row, Object item, Object event) {
+                ActiveToggleItemHolder holder = (ActiveToggleItemHolder) row.getTag();
+                holder.count.setText(((Signal) item).getChangeCount() + "");
+            }
+        });
+
         private class SignalAdapter extends ArrayAdapter<Signal> {
             public SignalAdapter() {
                 super(getActivity(), R.layout.active_item_toggle, manager.getSignals());
@@ -174,11 +145,13 @@ public class BlinkingListActivity extends Activity {
         public void onPause() {
             super.onPause();
             manager.unregisterListener(signalListener);
+            rowUpdater.detach();
         }
 
         @Override
         public void onResume() {
             super.onResume();
+            rowUpdater.attach(getListView());
             manager.registerListener(signalListener);
         }
     }
@@ -200,21 +173,19 @@ public class BlinkingListActivity extends Activity {
         private final Algorithm.AlgorithmListener algListener = new Algorithm.AlgorithmListener() {
             @Override
             public void onApplied(Algorithm la, Node target, List<Node> references) {
-                Algorithm[] algs = manager.getAlgorithms();
-                for (int i=0; i<algs.length; ++i) {
-                    if (la == algs[i]) {
-                        View container = getViewByPosition(i, getListView());
-                        if (container != null) {
-                            blink((ImageView) container.findViewById(R.id.activityDot));
-                            ((TextView) container.findViewById(R.id.desc)).setText("Nodes: " + references.size());
-                            ((TextView) container.findViewById(R.id.count)).setText(la.getUseCount() + "");
-                        }
-                        break;
-                    }
-                }
+                rowUpdater.markDirty(la, references.size());
             }
         };
 
+        private final ListRowUpdater rowUpdater = new ListRowUpdater(new ListRowUpdater.RowBinder() {
+            @Override
+            public void bindRow(View row, Object item, Object event) {
+                ActiveToggleItemHolder holder = (ActiveToggleItemHolder) row.getTag();
+                holder.desc.setText("Nodes: " + event);
+                holder.count.setText(((Algorithm) item).getUseCount() + "");
+            }
+        });
+
 
         private class AlgorithmAdapter extends ArrayAdapter<Algorithm> {
             public AlgorithmAdapter() {
@@ -273,11 +244,13 @@ public class BlinkingListActivity extends Activity {
         public void onPause() {
             super.onPause();
             manager.unregisterListener(algListener);
+            rowUpdater.detach();
         }
 
         @Override
         public void onResume() {
             super.onResume();
+            rowUpdater.attach(getListView());
             manager.registerListener(algListener);
         }
     }
@@ -0,0 +1,132 @@
+package com.flat.app;
+
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.ListView;
+
+import com.flat.R;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Batches list row updates to at most once per frame. Listeners on any thread mark the items that
+ * changed; on the next frame the rows of those items that are on screen are rebound and their
+ * activity dot is lit. Items scrolled off screen are skipped, since the adapter binds their
+ * current values when they come back into view. A burst of events for the same item between
+ * frames is one update, with the latest event.
+ * <p>
+ * Create it on the UI thread, {@link #attach(ListView)} in onResume and {@link #detach()} in
+ * onPause.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+final class ListRowUpdater implements Choreographer.FrameCallback {
+    /** How long a row's dot stays lit after its item changes. */
+    private static final long BLINK_NANOS = 400 * 1000000L;
+
+    interface RowBinder {
+        /**
+         * Updates a visible row for its item, on the UI thread.
+         * @param event the latest event passed to {@link #markDirty(Object, Object)} for the item.
+         */
+        void bindRow(View row, Object item, Object event);
+    }
+
+    private final Choreographer choreographer = Choreographer.getInstance();
+    private final RowBinder binder;
+    private ListView listView;
+
+    // guarded by this; swapped with applying each frame so marking doesn't allocate
+    private HashMap<Object, Object> dirty = new HashMap<Object, Object>();
+    private boolean frameScheduled;
+
+    // UI thread only
+    private HashMap<Object, Object> applying = new HashMap<Object, Object>();
+    /** Lit dots and the frame time to turn each off. */
+    private final IdentityHashMap<ImageView, Long> lit = new IdentityHashMap<ImageView, Long>();
+
+    ListRowUpdater(RowBinder binder) {
+        this.binder = binder;
+    }
+
+    void attach(ListView listView) {
+        this.listView = listView;
+        synchronized (this) {
+            dirty.clear();
+            frameScheduled = false;
+        }
+    }
+
+    void detach() {
+        choreographer.removeFrameCallback(this);
+        synchronized (this) {
+            dirty.clear();
+            frameScheduled = true; // nothing more until attached again
+        }
+        for (ImageView dot : lit.keySet()) {
+            dot.setImageResource(R.drawable.dot);
+        }
+        lit.clear();
+        listView = null;
+    }
+
+    /** Marks the item's row for an update on the next frame. Any thread. */
+    void markDirty(Object item, Object event) {
+        synchronized (this) {
+            dirty.put(item, event);
+            if (frameScheduled) return;
+            frameScheduled = true;
+        }
+        // Choreographer posts to its own looper when called from another thread
+        choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (this) {
+            HashMap<Object, Object> swap = applying;
+            applying = dirty;
+            dirty = swap;
+            frameScheduled = false;
+        }
+        if (listView == null) {
+            applying.clear();
+            return;
+        }
+
+        if (!applying.isEmpty()) {
+            int first = listView.getFirstVisiblePosition();
+            for (int i = 0, count = listView.getChildCount(); i < count; ++i) {
+                Object item = listView.getItemAtPosition(first + i);
+                if (item == null || !applying.containsKey(item)) continue;
+                View row = listView.getChildAt(i);
+                binder.bindRow(row, item, applying.get(item));
+                ImageView dot = (ImageView) row.findViewById(R.id.activityDot);
+                if (dot != null) {
+                    if (!lit.containsKey(dot)) dot.setImageResource(R.drawable.green_dot);
+                    lit.put(dot, frameTimeNanos + BLINK_NANOS);
+                }
+            }
+            applying.clear();
+        }
+
+        for (Iterator<Map.Entry<ImageView, Long>> it = lit.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<ImageView, Long> e = it.next();
+            if (frameTimeNanos >= e.getValue()) {
+                e.getKey().setImageResource(R.drawable.dot);
+                it.remove();
+            }
+        }
+        if (!lit.isEmpty()) {
+            synchronized (this) {
+                if (frameScheduled) return;
+                frameScheduled = true;
+            }
+            choreographer.postFrameCallback(this);
+        }
+    }
+}
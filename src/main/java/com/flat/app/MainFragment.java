@@ -14,6 +14,7 @@ import com.flat.AppController;
 import com.flat.R;
 import com.flat.localization.LocalizationManager2;
 import com.flat.localization.node.Node;
+import com.flat.localization.NodeEventBus;
 import com.flat.localization.NodeManager;
 import com.flat.localization.algorithms.Algorithm;
 import com.flat.localization.node.NodeRange;
@@ -76,7 +77,7 @@ public class MainFragment extends PersistentIntentServiceFragment {
     private void registerListeners() {
         locManager.getSignalManager().registerListener(signalListener);
         locManager.getAlgorithmManager().registerListener(algListener);
-        locManager.getNodeManager().registerListener(nodeManagerListener);
+        locManager.getNodeManager().registerListener(nodeManagerListener, NodeEventBus.mainThread(), true);
     }
 
     private void unregisterListeners() {
@@ -108,6 +109,14 @@ public class MainFragment extends PersistentIntentServiceFragment {
     private final Signal.SignalListener signalListener = new Signal.SignalListener() {
         @Override
         public void onChange(Signal signal, int eventType) {
+            // scan signals notify from their worker threads
+            ImageView dot = signalDot;
+            if (dot != null) dot.post(blinkSignalDot);
+        }
+    };
+    private final Runnable blinkSignalDot = new Runnable() {
+        @Override
+        public void run() {
             blink(signalDot);
         }
     };
@@ -13,22 +13,21 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
-import android.widget.BaseAdapter;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
-import android.widget.ListView;
 import android.widget.TextView;
 
 import com.flat.R;
 import com.flat.localization.LocalizationManager2;
+import com.flat.localization.NodeEventBus;
 import com.flat.localization.NodeManager;
 import com.flat.localization.node.Node;
 import com.flat.localization.node.NodeRange;
 import com.flat.localization.node.NodeState;
 import com.flat.localization.node.RemoteNode;
 
-import java.util.List;
+import java.util.ArrayList;
 
 /**
  * @author Jacob Phillips (12/2014, jphilli85 at gmail)
@@ -51,32 +50,6 @@ public class RangeTableActivity extends Activity {
         TextView count;
     }
 
-    private static void blink(final ImageView dot) {
-        if (dot == null) return;
-        dot.setImageResource(R.drawable.green_dot);
-        dot.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                dot.setImageResource(R.drawable.dot);
-            }
-        }, 400);
-    }
-
-    private static  View getViewByPosition(int pos, ListView listView) {
-        if (listView == null) return null;
-        final int firstListItemPosition = listView.getFirstVisiblePosition();
-        final int lastListItemPosition = firstListItemPosition + listView.getChildCount() - 1;
-
-        if (pos < firstListItemPosition || pos > lastListItemPosition ) {
-            return listView.getAdapter().getView(pos, null, listView);
-        } else {
-            final int childIndex = pos - firstListItemPosition;
-            return listView.getChildAt(childIndex);
-        }
-    }
-    
-
-
     public static class RangeTableFragment extends ListFragment {
         ColorStateList defaultColor;
         NodeManager nodeManager;
@@ -98,9 +71,11 @@ public class RangeTableActivity extends Activity {
         private final NodeManager.NodeManagerListener nodeManagerListener = new NodeManager.NodeManagerListener() {
             @Override
             public void onNodeAdded(RemoteNode n) {
-                // TODO still doesnt redraw the list
-                ((BaseAdapter) getListAdapter()).notifyDataSetChanged();
-                getListView().invalidate();
+                RangeTableAdapter adapter = (RangeTableAdapter) getListAdapter();
+                adapter.setNotifyOnChange(false);
+                adapter.clear();
+                adapter.addAll(nodeManager.getNodes());
+                adapter.notifyDataSetChanged();
             }
 
             @Override
@@ -115,18 +90,7 @@ public class RangeTableActivity extends Activity {
 
             @Override
             public void onRangeChanged(RemoteNode n, NodeRange r) {
-                List<RemoteNode> nodes = nodeManager.getNodes();
-                for (int i=0; i<nodes.size(); ++i) {
-                    if (n == nodes.get(i)) {
-                        View container = getViewByPosition(i, getListView());
-                        if (container != null) {
-                            blink((ImageView) container.findViewById(R.id.activityDot));
-                            showRange((TextView) container.findViewById(R.id.dist), n);
-                            ((TextView) container.findViewById(R.id.count)).setText(n.getRangeHistorySize() + "");
-                        }
-                        break;
-                    }
-                }
+                rowUpdater.markDirty(n, null);
             }
 
             @Override
@@ -135,14 +99,25 @@ public class RangeTableActivity extends Activity {
             }
         };
 
+        private final ListRowUpdater rowUpdater = new ListRowUpdater(new ListRowUpdater.RowBinder() {
+            @Override
+            public void bindRow(View row, Object item, Object event) {
+                RemoteNode n = (RemoteNode) item;
+                Holder holder = (Holder) row.getTag();
+                showRange(holder.dist, n);
+                holder.count.setText(n.getRangeCount() + "");
+            }
+        });
+
         private void showRange(TextView tv, RemoteNode n) {
             if (tv == null || n == null) return;
             float f;
-            if (n.getRange().rangeOverride > 0) {
-                f = n.getRange().rangeOverride;
+            NodeRange range = n.getRange();
+            if (range.rangeOverride > 0) {
+                f = range.rangeOverride;
                 tv.setTextColor(Color.RED);
             } else {
-                f = n.getRange().range;
+                f = range.range;
                 if (defaultColor != null) tv.setTextColor(defaultColor);
             }
             tv.setText(round(f) + "m");
@@ -154,7 +129,8 @@ public class RangeTableActivity extends Activity {
 
         private class RangeTableAdapter extends ArrayAdapter<RemoteNode> {
             public RangeTableAdapter() {
-                super(getActivity(), R.layout.range_table_item, nodeManager.getNodes());
+                // a copy, since the node manager's list is an unmodifiable snapshot
+                super(getActivity(), R.layout.range_table_item, new ArrayList<RemoteNode>(nodeManager.getNodes()));
             }
 
             @Override
@@ -177,7 +153,7 @@ public class RangeTableActivity extends Activity {
 
                 if (defaultColor == null) defaultColor = holder.dist.getTextColors();
 
-                final RemoteNode node = nodeManager.getNode(position);
+                final RemoteNode node = getItem(position);
 
 
                 final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
@@ -189,7 +165,7 @@ public class RangeTableActivity extends Activity {
                 holder.summary.setText(node.getId());
                 showRange(holder.dist, node);
 
-                holder.count.setText(node.getRangeHistorySize() + "");
+                holder.count.setText(node.getRangeCount() + "");
 
                 convertView.setOnClickListener(new View.OnClickListener() {
                     @Override
@@ -234,7 +210,7 @@ public class RangeTableActivity extends Activity {
                                 LinearLayout.LayoutParams.WRAP_CONTENT);
                         input.setLayoutParams(lp);
 
-                        float f = node.getActualRangeOverride() > 0 ? node.getActualRangeOverride() : node.getRange().range;
+                        float f = node.getActualRangeOverride() > 0 ? node.getActualRangeOverride() : node.getLatestRange();
                         input.setText(round(f) + "");
 
                         b.setView(input);
@@ -262,12 +238,14 @@ public class RangeTableActivity extends Activity {
         public void onPause() {
             super.onPause();
             nodeManager.unregisterListener(nodeManagerListener);
+            rowUpdater.detach();
         }
 
         @Override
         public void onResume() {
             super.onResume();
-            nodeManager.registerListener(nodeManagerListener);
+            rowUpdater.attach(getListView());
+            nodeManager.registerListener(nodeManagerListener, NodeEventBus.mainThread(), true);
         }
 
     }
@@ -0,0 +1,25 @@
+package com.flat.localization;
+
+/**
+ * Settings of the localization stack (node histories, range tables, coordinate systems, signal stages and node events).
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public class Config {
+    public static final long RANGE_TTL_MS = 5 * 60 * 1000; // ranges not updated for this long are dropped
+    public static final int RANGE_TABLE_MAX_ENTRIES = 256; // least recently updated are dropped beyond this
+    public static final double PAIR_RANGE_WEIGHT = 0.1; // least weight of a new range in its pair's mean, about the last ten ranges count
+
+    public static final int RANGE_HISTORY_CAPACITY = 120; // latest ranges kept per node, two minutes at 1 Hz
+    public static final int RANGE_PENDING_CAPACITY = 8;
+    public static final int STATE_HISTORY_CAPACITY = 300; // latest states kept per node, ten seconds of sensors at 30 Hz
+    public static final int STATE_PENDING_CAPACITY = 32;
+
+    public static final int LOCALIZE_CACHE_SIZE = 8; // coordinate systems kept for range tables seen again
+
+    public static final int SIGNAL_QUEUE_CAPACITY = 8; // scans a signal's stage holds before dropping the oldest
+    public static final int SIGNAL_SLOW_STAGE_MS = 100; // signal stages taking longer per item are logged
+
+    public static final int EVENT_QUEUE_CAPACITY = 256; // node events queued per coalescing listener before dropping
+    public static final int EVENT_SLOW_HANDLE_MS = 100; // listeners taking longer per event are logged
+}
@@ -2,10 +2,21 @@ package com.flat.localization;
 
 import android.util.Log;
 
+import com.flat.localization.util.BitAdjacency;
 import com.flat.localization.util.Calc;
+import com.flat.localization.util.NodeIdInterner;
+import com.flat.localization.util.ResultCache;
+import com.flat.localization.util.RigidityAnalyzer;
+import com.flat.localization.util.SymmetricRangeMatrix;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -25,12 +36,151 @@ public class CoordinateSystem extends TreeMap<String, float[]> {
      * Before creating a coordinate system, each node must share its range table with the other nodes it has ranges to
      * (and a data connection to, since the two are independent).
      */
-    public static final class RangeTable extends TreeMap<String, SimpleRange> {
+    public static final class RangeTable extends AbstractMap<String, SimpleRange> {
         public final TreeMap<String, float[]> coords;
         public RangeTable(TreeMap<String, float[]> coords) { this.coords = coords; }
+
+        /**
+         * The ranges by node id. The table wraps the map rather than extending it so that put(),
+         * remove() and clear() are the only ways to change it and the index below can't get out of step.
+         */
+        private final TreeMap<String, SimpleRange> ranges = new TreeMap<String, SimpleRange>();
+        private final Map<String, SimpleRange> view = Collections.unmodifiableMap(ranges);
+        /** The same ranges ordered from least to most recently put, for expiring from the front. */
+        private final LinkedHashMap<String, SimpleRange> updated = new LinkedHashMap<String, SimpleRange>();
+        private long ttl = Config.RANGE_TTL_MS;
+        private int maxSize = Config.RANGE_TABLE_MAX_ENTRIES;
+        /** The newest range time seen, which is the clock for expiring ranges as they are put. */
+        private long newest;
+
+        /**
+         * Ranges more than ttl milliseconds older than the newest are removed, and beyond maxSize
+         * the least recently put are removed. Use 0 for no limit.
+         */
+        public void setLimits(long ttl, int maxSize) {
+            this.ttl = ttl;
+            this.maxSize = maxSize;
+            expire(newest);
+        }
+
+        /** @return the ranges in node id order, read only. */
+        @Override
+        public Set<Map.Entry<String, SimpleRange>> entrySet() { return view.entrySet(); }
+        @Override
+        public Set<String> keySet() { return view.keySet(); }
+        @Override
+        public int size() { return ranges.size(); }
+        @Override
+        public boolean containsKey(Object id) { return ranges.containsKey(id); }
+        @Override
+        public SimpleRange get(Object id) { return ranges.get(id); }
+
+        @Override
+        public SimpleRange put(String id, SimpleRange range) {
+            SimpleRange old = ranges.put(id, range);
+            updated.remove(id);
+            updated.put(id, range);
+            if (range.time > newest) {
+                newest = range.time;
+            }
+            expire(newest);
+            return old;
+        }
+
+        @Override
+        public SimpleRange remove(Object id) {
+            updated.remove(id);
+            return ranges.remove(id);
+        }
+
+        @Override
+        public void clear() {
+            updated.clear();
+            ranges.clear();
+        }
+
+        /**
+         * Removes ranges from the least recently put until one is within the TTL and the table is
+         * within its size limit, so fresh ranges are not scanned. Ranges should be put in time
+         * order for the size limit to remove the oldest.
+         * @return the number of ranges removed.
+         */
+        public int expire(long now) {
+            int removed = 0;
+            while (!updated.isEmpty()) {
+                Map.Entry<String, SimpleRange> oldest = updated.entrySet().iterator().next();
+                if ((maxSize > 0 && updated.size() > maxSize) || (ttl > 0 && now - oldest.getValue().time > ttl)) {
+                    remove(oldest.getKey());
+                    ++removed;
+                } else {
+                    break;
+                }
+            }
+            return removed;
+        }
     }
     public static final class RangeTableList extends TreeMap<String, RangeTable> {}
 
+    /**
+     * @return a hash of every range table's owner, ranges and coordinates, so coordinate systems
+     * built from equal range tables can be reused. Range times are not included.
+     */
+    public static long fingerprint(RangeTableList rangeTables) {
+        long h = rangeTables.size();
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            h = ResultCache.combine(h, table.getKey().hashCode());
+            if (table.getValue() == null) continue;
+            long ranges = 0;
+            for (Map.Entry<String, SimpleRange> range : table.getValue().entrySet()) {
+                ranges += ResultCache.fingerprint(range.getKey(), range.getValue().range);
+            }
+            h = ResultCache.combine(h, ranges);
+            if (table.getValue().coords != null) {
+                for (Map.Entry<String, float[]> pos : table.getValue().coords.entrySet()) {
+                    h = ResultCache.combine(h, pos.getKey().hashCode());
+                    for (float f : pos.getValue()) {
+                        h = ResultCache.combine(h, Float.floatToIntBits(f));
+                    }
+                }
+            }
+        }
+        return h;
+    }
+
+    /**
+     * @return the same owners, ranges and coordinates as the fingerprint, copied into a list that
+     * equals() another list only if they are all equal, to confirm a fingerprint match.
+     */
+    public static List<Object> inputs(RangeTableList rangeTables) {
+        List<Object> inputs = new ArrayList<Object>(3 * rangeTables.size());
+        for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+            inputs.add(table.getKey());
+            if (table.getValue() == null) {
+                inputs.add(null);
+                inputs.add(null);
+                continue;
+            }
+            Map<String, Float> ranges = new HashMap<String, Float>();
+            for (Map.Entry<String, SimpleRange> range : table.getValue().entrySet()) {
+                ranges.put(range.getKey(), range.getValue().range);
+            }
+            inputs.add(ranges);
+            Map<String, List<Float>> coords = null;
+            if (table.getValue().coords != null) {
+                coords = new HashMap<String, List<Float>>();
+                for (Map.Entry<String, float[]> pos : table.getValue().coords.entrySet()) {
+                    List<Float> p = new ArrayList<Float>(pos.getValue().length);
+                    for (float f : pos.getValue()) {
+                        p.add(f);
+                    }
+                    coords.put(pos.getKey(), p);
+                }
+            }
+            inputs.add(coords);
+        }
+        return inputs;
+    }
+
     public static final class NodeSet extends TreeSet<String> {}
     public static final class NodeSetMap extends TreeMap<String, NodeSet> {}
 
@@ -51,6 +201,27 @@ public class CoordinateSystem extends TreeMap<String, float[]> {
         updateCoordinates();
     }
 
+    /**
+     * @return a copy with copies of the coordinates. What this was built from is shared, since it
+     * isn't changed after building.
+     */
+    public CoordinateSystem copy() {
+        return new CoordinateSystem(this);
+    }
+
+    private CoordinateSystem(CoordinateSystem other) {
+        synchronized (other) {
+            rangeTables = other.rangeTables;
+            root = other.root;
+            ids = other.ids;
+            ranges = other.ranges;
+            rigid = other.rigid;
+            for (Map.Entry<String, float[]> pos : other.entrySet()) {
+                put(pos.getKey(), pos.getValue().clone());
+            }
+        }
+    }
+
     private LocalizationRoot root;
     public synchronized LocalizationRoot getRoot() { return root; }
 
@@ -59,6 +230,12 @@ public class CoordinateSystem extends TreeMap<String, float[]> {
     private final RangeTableList rangeTables;
     public synchronized RangeTableList getRangeTables() { return rangeTables; }
 
+    /** Interned ids of every node in the range tables and the ranges between them, built once per update. */
+    private NodeIdInterner ids;
+    private SymmetricRangeMatrix ranges;
+    /** Which interned nodes are in the rigid component of the two root nodes. */
+    private boolean[] rigid;
+
 
 
 
@@ -84,6 +261,28 @@ public class CoordinateSystem extends TreeMap<String, float[]> {
 
             long startTime = System.nanoTime();
 
+            // Intern the node ids so common nodes can be found with a bitwise AND of adjacency rows.
+            ids = new NodeIdInterner();
+            BitAdjacency adjacency = new BitAdjacency();
+            for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+                int row = ids.intern(table.getKey());
+                for (String node : table.getValue().keySet()) {
+                    adjacency.set(row, ids.intern(node));
+                }
+            }
+            adjacency.ensureCapacity(ids.size());
+            long[] common = new long[adjacency.getWordCount()];
+
+            // Index every range once so findRangeBetween() doesn't scan all of the tables.
+            // Tables are visited in key order, the same order the scan resolves the two directions in.
+            ranges = new SymmetricRangeMatrix(ids.size());
+            for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
+                int row = ids.indexOf(table.getKey());
+                for (Map.Entry<String, SimpleRange> range : table.getValue().entrySet()) {
+                    ranges.add(row, ids.indexOf(range.getKey()), range.getValue().range);
+                }
+            }
+
             // Iterate through each range table, except the last
             for (Map.Entry<String, RangeTable> table : rangeTables.subMap(
                     rangeTables.firstKey(), true, rangeTables.lastKey(), false).entrySet()) {
@@ -100,8 +299,11 @@ public class CoordinateSystem extends TreeMap<String, float[]> {
                     // they only contain a reference to each other, not themselves (both would have to be true).
                     // (actually, table contains a reference to nextTable, but nextTable need not contain a reference to table.)
                     NodeSet nodes = new NodeSet();
-                    nodes.addAll(table.getValue().keySet());            // start with the nodes in the range table in the outer loop
-                    nodes.retainAll(nextTable.getValue().keySet());     // only keep nodes that are common to the range table in the inner loop
+                    if (adjacency.common(ids.indexOf(table.getKey()), ids.indexOf(nextTable.getKey()), common) > 0) {
+                        for (int i = BitAdjacency.nextSetBit(common, 0); i >= 0; i = BitAdjacency.nextSetBit(common, i + 1)) {
+                            nodes.add(ids.getId(i));
+                        }
+                    }
                     nodeCommonNodes.put(nextTable.getKey(), nodes);     // the owner of "nextTable" has all those nodes in common with the owner of "table".
                 }
 
@@ -244,6 +446,11 @@ public class CoordinateSystem extends TreeMap<String, float[]> {
             float x = findRangeBetween(root.id, root2);
             put(root2, new float[]{x, 0, 0});
 
+            // Only nodes that are rigid with the two root nodes can be placed relative to them.
+            startTime = System.nanoTime();
+            rigid = new RigidityAnalyzer(ranges).findRigidComponent(ids.indexOf(root.id), ids.indexOf(root2));
+            Log.d(TAG, "Finding nodes rigid with the root took " + (System.nanoTime() - startTime) / 1E6f + "ms");
+
 
             // First localize all the nodes common to the first two.
 //            startTime = System.nanoTime();
@@ -337,6 +544,14 @@ public class CoordinateSystem extends TreeMap<String, float[]> {
             return null;
         }
 
+        if (rigid != null) {
+            int index = ids.indexOf(targetNode);
+            if (index < 0 || !rigid[index]) {
+                Log.v(TAG, "Not placing " + targetNode + ", it is not rigid with the root nodes");
+                return null;
+            }
+        }
+
         float r1 = findRangeBetween(targetNode, referenceNode1);
         float r2 = findRangeBetween(targetNode, referenceNode2);
         float[] p1 = get(referenceNode1);
@@ -393,6 +608,10 @@ public class CoordinateSystem extends TreeMap<String, float[]> {
     }
 
     public float findRangeBetween(String node1, String node2) {
+        if (ranges != null) {
+            return ranges.get(ids.indexOf(node1), ids.indexOf(node2));
+        }
+
         float range = 0;
 
         for (Map.Entry<String, RangeTable> table : rangeTables.entrySet()) {
@@ -15,6 +15,7 @@ import com.flat.localization.node.NodeMessage;
 import com.flat.localization.node.NodeRange;
 import com.flat.localization.node.NodeState;
 import com.flat.localization.node.RemoteNode;
+import com.flat.localization.util.ResultCache;
 import com.flat.networkservicediscovery.NsdController;
 import com.flat.networkservicediscovery.NsdServiceFilter;
 import com.flat.remotelogging.CustomRequest;
@@ -54,6 +55,16 @@ public class LocalizationManager2 {
     private NodeManager nodeManager;
     public NodeManager getNodeManager() { return nodeManager; }
 
+    /** Coordinate systems built from the range tables, so peers sending the same tables cost one solve. */
+    private final ResultCache<CoordinateSystem> coordsCache = new ResultCache<CoordinateSystem>(Config.LOCALIZE_CACHE_SIZE,
+            new ResultCache.Copier<CoordinateSystem>() {
+                @Override
+                public CoordinateSystem copy(CoordinateSystem result) {
+                    return result.copy();
+                }
+            });
+    public ResultCache<CoordinateSystem> getCoordsCache() { return coordsCache; }
+
     private SignalManager signalManager;
     public SignalManager getSignalManager() { return signalManager; }
 
@@ -314,7 +325,7 @@ public class LocalizationManager2 {
         public void onClientFinished(MyConnectionSocket mcs) {
             Log.v(TAG, "lost connection to " + mcs.getAddress().getHostAddress());
             RemoteNode n = nodeManager.findNodeByConnection(mcs);
-            if (n != null) n.setDataConnection(null);
+            if (n != null) nodeManager.setDataConnection(n, null);
         }
 
         @Override
@@ -325,7 +336,7 @@ public class LocalizationManager2 {
 
     private void sendNodeId(Socket socket) {
         try {
-            nsdController.getSocketManager().send(socket.getInetAddress(), new NodeMessage(localNodeId).toString());
+            nsdController.getSocketManager().send(socket.getInetAddress(), new NodeMessage(localNodeId).encode());
         } catch (JSONException e) {
             Log.e(TAG, "JSON exception while sending node id.", e);
         }
@@ -336,7 +347,7 @@ public class LocalizationManager2 {
         if (table == null || table.size() < 2) return;
 
         try {
-            nsdController.getSocketManager().send(socket.getInetAddress(), new NodeMessage(localNodeId, table).toString());
+            nsdController.getSocketManager().send(socket.getInetAddress(), new NodeMessage(localNodeId, table).encode());
         } catch (JSONException e) {
             Log.e(TAG, "JSON exception while sending range table.", e);
         }
@@ -350,13 +361,20 @@ public class LocalizationManager2 {
     }
 
     private void sendCoordinateSystem(MyConnectionSocket mcs) {
-        CoordinateSystem coords = nodeManager.getLocalNode().getState().referenceFrame;
+        CoordinateSystem coords = nodeManager.getLocalNode().getReferenceFrame();
         if (coords == null) {
-            coords = new CoordinateSystem(nodeManager.getRangeTableList());
+            CoordinateSystem.RangeTableList rangeTables = nodeManager.getRangeTableList();
+            long fingerprint = CoordinateSystem.fingerprint(rangeTables);
+            List<Object> inputs = CoordinateSystem.inputs(rangeTables);
+            coords = coordsCache.get(fingerprint, inputs);
+            if (coords == null) {
+                coords = new CoordinateSystem(rangeTables);
+                coordsCache.put(fingerprint, inputs, coords);
+            }
         }
         if (coords.size() >= 3) {
             try {
-                mcs.send(new NodeMessage(localNodeId, coords).toString());
+                mcs.send(new NodeMessage(localNodeId, coords).encode());
             } catch (JSONException e) {
                 Log.e(TAG, "JSON exception while sending coordinate system.", e);
             }
@@ -367,11 +385,14 @@ public class LocalizationManager2 {
         RemoteNode n = nodeManager.getNode(nm.fromId);
         if (n == null) {
             n = new RemoteNode(nm.fromId);
-            nodeManager.addNode(n);
+            if (!nodeManager.addNode(n)) {
+                // added by another thread since
+                n = nodeManager.getNode(nm.fromId);
+            }
         } else if (n.getDataConnection() != null) {
             Log.d(TAG, "Node " + n.getId() + " already has data connection (closed=" + mcs.getSocket().isClosed() + ", finished=" + mcs.isFinished() + ").");
         }
-        n.setDataConnection(mcs);
+        nodeManager.setDataConnection(n, mcs);
 
         switch (nm.type) {
             case NodeMessage.TYPE_ID:
@@ -404,7 +425,7 @@ public class LocalizationManager2 {
          * the LA's filter, to see if it is able to estimate a new state/position for this node.
          */
         List<NodeState> states = new ArrayList<NodeState>();
-        List<RemoteNode> nodes = new ArrayList<RemoteNode>(nodeManager.getNodes());
+        List<RemoteNode> nodes = nodeManager.getNodes();
         AlgorithmMatchCriteria criteria;
 
         for (Algorithm la : algorithmManager.getAlgorithms()) {
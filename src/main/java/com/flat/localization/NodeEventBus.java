@@ -0,0 +1,315 @@
+package com.flat.localization;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.flat.localization.node.Node;
+import com.flat.localization.node.NodeRange;
+import com.flat.localization.node.NodeState;
+import com.flat.localization.node.RemoteNode;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delivers node events to {@link NodeManager.NodeManagerListener}s off the posting thread. Each
+ * listener has its own queue, drained on its own executor, so a slow listener only falls behind
+ * itself instead of holding up ranging or the other listeners. By default a listener gets every
+ * event in the order posted, however far it falls behind.
+ * <p>
+ * A coalescing listener, meant for views that only show the latest values, gets at most one queued
+ * event per node and event type: posting a range or state while one for the same node is still
+ * queued replaces it, so a listener that can't keep up gets the latest value per node rather than
+ * a growing backlog. Its queue is also bounded, and events that would overflow it are dropped and
+ * counted. Node added events are never coalesced or dropped.
+ * <p>
+ * The ranges and states posted are shared with every listener, so they shouldn't be changed after
+ * posting (except by the node pipeline itself, e.g. {@link RemoteNode#update(NodeRange)}).
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class NodeEventBus {
+    private static final String TAG = NodeEventBus.class.getSimpleName();
+
+    public static final int NODE_ADDED = 0;
+    public static final int RANGE_PENDING = 1;
+    public static final int RANGE_CHANGED = 2;
+    public static final int STATE_PENDING = 3;
+    public static final int STATE_CHANGED = 4;
+    private static final int TYPE_COUNT = 5;
+
+    /** Events delivered per executor task, so listeners sharing an executor take turns. */
+    private static final int BATCH = 32;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    private static Executor mainThread;
+    /** @return an executor that runs on the UI thread, for listeners that touch views. */
+    public static synchronized Executor mainThread() {
+        if (mainThread == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            mainThread = new Executor() {
+                @Override
+                public void execute(Runnable r) {
+                    if (!handler.post(r)) throw new RejectedExecutionException("Main looper is exiting");
+                }
+            };
+        }
+        return mainThread;
+    }
+
+    /**
+     * @param executor runs the listener, or null to give it a thread of its own.
+     * @param coalesce whether the listener only needs the latest range and state per node, in which
+     * case events may be replaced or dropped; otherwise it gets every event.
+     * @return false if the listener is already registered.
+     */
+    public boolean register(NodeManager.NodeManagerListener l, Executor executor, boolean coalesce) {
+        synchronized (subscriptions) {
+            if (find(l) != null) return false;
+            subscriptions.add(new Subscription(l, executor, coalesce, Config.EVENT_QUEUE_CAPACITY));
+            return true;
+        }
+    }
+
+    /** Stops deliveries to the listener. Events already being delivered may still arrive. */
+    public boolean unregister(NodeManager.NodeManagerListener l) {
+        Subscription s;
+        synchronized (subscriptions) {
+            s = find(l);
+            if (s == null) return false;
+            subscriptions.remove(s);
+        }
+        s.close();
+        return true;
+    }
+
+    private Subscription find(NodeManager.NodeManagerListener l) {
+        for (Subscription s : subscriptions) {
+            if (s.listener == l) return s;
+        }
+        return null;
+    }
+
+    /** @param event a {@link NodeRange}, a {@link NodeState} or null for {@link #NODE_ADDED}. */
+    public void post(int type, Node n, Object event) {
+        long now = System.nanoTime();
+        for (Subscription s : subscriptions) {
+            s.post(type, n, event, now);
+        }
+    }
+
+    /** @return a copy of the listener's delivery counters, or null if it isn't registered. */
+    public Stats getStats(NodeManager.NodeManagerListener l) {
+        Subscription s = find(l);
+        if (s == null) return null;
+        Stats out = new Stats();
+        s.getStats(out);
+        return out;
+    }
+
+    /** Delivery counters of one listener. Latency is from posting to the start of delivery. */
+    public static final class Stats {
+        public long posted, delivered, coalesced, dropped;
+        public long totalLatencyNanos, maxLatencyNanos;
+        /** Longest the listener took to handle one event. */
+        public long maxHandleNanos;
+        public int queued;
+
+        public double getMeanLatencyMillis() {
+            return delivered == 0 ? 0 : totalLatencyNanos / 1e6 / delivered;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d delivered, %d coalesced, %d dropped, %d queued; latency %.2fms mean, %.2fms max; handling %.2fms max",
+                    delivered, coalesced, dropped, queued, getMeanLatencyMillis(), maxLatencyNanos / 1e6, maxHandleNanos / 1e6);
+        }
+    }
+
+    private static final class Event {
+        final int type;
+        final Node node;
+        Object event;
+        /** When the event was first queued, which coalescing keeps. */
+        final long posted;
+
+        Event(int type, Node node, Object event, long posted) {
+            this.type = type;
+            this.node = node;
+            this.event = event;
+            this.posted = posted;
+        }
+    }
+
+    private static final class Subscription implements Runnable {
+        final NodeManager.NodeManagerListener listener;
+        private final Executor executor;
+        /** The executor if it was made for this listener, shut down when it is unregistered. */
+        private final ExecutorService ownExecutor;
+        private final boolean coalesce;
+        /** Most events queued when coalescing; other queues are unbounded. */
+        private final int capacity;
+
+        // guarded by this
+        private final ArrayDeque<Event> queue = new ArrayDeque<Event>();
+        /** The queued events per node, by type, when coalescing. */
+        private final IdentityHashMap<Node, Event[]> queuedByNode = new IdentityHashMap<Node, Event[]>();
+        private boolean scheduled, closed;
+        private final Stats stats = new Stats();
+
+        Subscription(NodeManager.NodeManagerListener listener, Executor executor, boolean coalesce, int capacity) {
+            this.listener = listener;
+            this.coalesce = coalesce;
+            this.capacity = capacity;
+            if (executor == null) {
+                final String name = TAG + "-" + listener.getClass().getName();
+                ownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                this.executor = ownExecutor;
+            } else {
+                ownExecutor = null;
+                this.executor = executor;
+            }
+        }
+
+        void post(int type, Node n, Object event, long now) {
+            synchronized (this) {
+                if (closed) return;
+                ++stats.posted;
+                Event[] queued = null;
+                if (coalesce && type != NODE_ADDED) {
+                    queued = queuedByNode.get(n);
+                    if (queued == null) {
+                        queued = new Event[TYPE_COUNT];
+                        queuedByNode.put(n, queued);
+                    } else if (queued[type] != null) {
+                        queued[type].event = event;
+                        ++stats.coalesced;
+                        return;
+                    }
+                }
+                if (coalesce && type != NODE_ADDED && queue.size() >= capacity) {
+                    ++stats.dropped;
+                    return;
+                }
+                Event e = new Event(type, n, event, now);
+                queue.add(e);
+                if (queued != null) queued[type] = e;
+                if (scheduled) return;
+                scheduled = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    scheduled = false;
+                    if (closed) return;
+                    Log.w(TAG, "Can't deliver events to " + listener + ": " + e.getMessage());
+                    stats.dropped += queue.size();
+                    clearQueue();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; ++i) {
+                Event e;
+                long latency;
+                synchronized (this) {
+                    e = queue.poll();
+                    if (e == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    if (coalesce && e.type != NODE_ADDED) {
+                        queuedByNode.get(e.node)[e.type] = null;
+                    }
+                    latency = System.nanoTime() - e.posted;
+                    ++stats.delivered;
+                    stats.totalLatencyNanos += latency;
+                    if (latency > stats.maxLatencyNanos) stats.maxLatencyNanos = latency;
+                }
+                long start = System.nanoTime();
+                try {
+                    deliver(e);
+                } catch (RuntimeException ex) {
+                    Log.e(TAG, "Listener " + listener + " failed", ex);
+                }
+                long handle = System.nanoTime() - start;
+                synchronized (this) {
+                    if (handle > stats.maxHandleNanos) stats.maxHandleNanos = handle;
+                }
+                if (handle > Config.EVENT_SLOW_HANDLE_MS * 1000000L) {
+                    Log.w(TAG, String.format("Listener %s took %.1fms for event %d (waited %.1fms)",
+                            listener, handle / 1e6, e.type, latency / 1e6));
+                }
+            }
+            // let other work on the executor run before the rest
+            schedule();
+        }
+
+        private void deliver(Event e) {
+            switch (e.type) {
+                case NODE_ADDED:
+                    listener.onNodeAdded((RemoteNode) e.node);
+                    break;
+                case RANGE_PENDING:
+                    listener.onRangePending((RemoteNode) e.node, (NodeRange) e.event);
+                    break;
+                case RANGE_CHANGED:
+                    listener.onRangeChanged((RemoteNode) e.node, (NodeRange) e.event);
+                    break;
+                case STATE_PENDING:
+                    listener.onStatePending(e.node, (NodeState) e.event);
+                    break;
+                case STATE_CHANGED:
+                    listener.onStateChanged(e.node, (NodeState) e.event);
+                    break;
+            }
+        }
+
+        private void clearQueue() {
+            queue.clear();
+            queuedByNode.clear();
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                clearQueue();
+            }
+            if (ownExecutor != null) ownExecutor.shutdown();
+        }
+
+        synchronized void getStats(Stats out) {
+            out.posted = stats.posted;
+            out.delivered = stats.delivered;
+            out.coalesced = stats.coalesced;
+            out.dropped = stats.dropped;
+            out.totalLatencyNanos = stats.totalLatencyNanos;
+            out.maxLatencyNanos = stats.maxLatencyNanos;
+            out.maxHandleNanos = stats.maxHandleNanos;
+            out.queued = queue.size();
+        }
+    }
+}
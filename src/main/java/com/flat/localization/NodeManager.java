@@ -9,9 +9,15 @@ import com.flat.localization.node.NodeState;
 import com.flat.localization.node.RemoteNode;
 import com.flat.sockets.MyConnectionSocket;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * @author Jacob Phillips (01/2015, jphilli85 at gmail)
@@ -23,7 +29,14 @@ public class NodeManager {
     private final Node localNode;
     public Node getLocalNode() { return localNode; }
 
-    private final List<RemoteNode> nodes = Collections.synchronizedList(new ArrayList<RemoteNode>());
+    /** Nodes by id, for lookups from scan and socket threads. */
+    private final ConcurrentHashMap<String, RemoteNode> nodesById = new ConcurrentHashMap<String, RemoteNode>();
+    /** Nodes by their current data connection, kept by {@link #setDataConnection(RemoteNode, MyConnectionSocket)}. */
+    private final ConcurrentHashMap<MyConnectionSocket, RemoteNode> nodesByConnection = new ConcurrentHashMap<MyConnectionSocket, RemoteNode>();
+    /** Every node in the order added, replaced with a new copy when a node is added. */
+    private volatile List<RemoteNode> nodes = Collections.emptyList();
+
+    /** @return an unmodifiable snapshot of the nodes in the order they were added, safe to iterate. */
     public List<RemoteNode> getNodes() { return nodes; }
 
     private final SharedPreferences prefs;
@@ -34,15 +47,19 @@ public class NodeManager {
     }
 
 
+    /** @return false if there is already a node with the same id. */
     public boolean addNode(RemoteNode n) {
-        if (nodes.contains(n)) return false;
-        boolean added = nodes.add(n);
+        if (nodesById.putIfAbsent(n.getId(), n) != null) return false;
+        synchronized (nodesById) {
+            List<RemoteNode> copy = new ArrayList<RemoteNode>(nodes.size() + 1);
+            copy.addAll(nodes);
+            copy.add(n);
+            nodes = Collections.unmodifiableList(copy);
+        }
         n.readPrefs(prefs);
         n.registerListener(nodeListener);
-        for (NodeManagerListener l : listeners) {
-            l.onNodeAdded(n);
-        }
-        return added;
+        eventBus.post(NodeEventBus.NODE_ADDED, n, null);
+        return true;
     }
 
 
@@ -53,47 +70,69 @@ public class NodeManager {
         return nodes.get(index);
     }
     public RemoteNode getNode(String id) {
-        for (RemoteNode n : nodes) {
-            if (n.getId().equals(id)) return n;
-        }
-        return null;
+        return nodesById.get(id);
     }
 
-    public RemoteNode findNodeByConnection(MyConnectionSocket mcs) {
-        for (RemoteNode n : nodes) {
-            if (n.getDataConnection() == mcs) {
-                return n;
+    /** Sets the node's data connection and indexes the node by it, replacing its previous one. */
+    public void setDataConnection(RemoteNode n, MyConnectionSocket mcs) {
+        synchronized (n) {
+            MyConnectionSocket old = n.getDataConnection();
+            if (old != null) {
+                nodesByConnection.remove(old, n);
+            }
+            n.setDataConnection(mcs);
+            if (mcs != null) {
+                nodesByConnection.put(mcs, n);
             }
         }
-        return null;
+    }
+
+    public RemoteNode findNodeByConnection(MyConnectionSocket mcs) {
+        return mcs == null ? null : nodesByConnection.get(mcs);
     }
 
     public RemoteNode[] getConnectedNodes() {
-        List<RemoteNode> connected = new ArrayList<RemoteNode>();
-        for (RemoteNode n : nodes) {
-            if (n.getDataConnection() != null) connected.add(n);
-        }
+        Collection<RemoteNode> connected = nodesByConnection.values();
         return connected.toArray(new RemoteNode[connected.size()]);
     }
 
     public int countConnectedNodes() {
-        int count = 0;
-        for (RemoteNode n : nodes) {
-            if (n.getDataConnection() != null) ++count;
-        }
-        return count;
+        return nodesByConnection.size();
     }
 
+    private static final Comparator<Map.Entry<String, CoordinateSystem.SimpleRange>> OLDEST_FIRST =
+            new Comparator<Map.Entry<String, CoordinateSystem.SimpleRange>>() {
+        @Override
+        public int compare(Map.Entry<String, CoordinateSystem.SimpleRange> a, Map.Entry<String, CoordinateSystem.SimpleRange> b) {
+            long ta = a.getValue().time, tb = b.getValue().time;
+            return ta < tb ? -1 : (ta == tb ? 0 : 1);
+        }
+    };
+
+    /** The ranges to other nodes within {@link Config#RANGE_TTL_MS}, with the local coordinates. */
     public CoordinateSystem.RangeTable getLocalRangeTable() {
-        CoordinateSystem.RangeTable table = new CoordinateSystem.RangeTable(localNode.getState().referenceFrame);
+        CoordinateSystem.RangeTable table = new CoordinateSystem.RangeTable(localNode.getReferenceFrame());
+        long cutoff = System.currentTimeMillis() - Config.RANGE_TTL_MS;
+        List<Map.Entry<String, CoordinateSystem.SimpleRange>> ranges = new ArrayList<Map.Entry<String, CoordinateSystem.SimpleRange>>();
         for (RemoteNode n : nodes) {
-            if (n.getRange().range > 0) {
+            float range;
+            long time;
+            synchronized (n) {
+                range = n.getLatestRange();
+                time = n.getLatestRangeTime();
+            }
+            if (range > 0 && time >= cutoff) {
                 CoordinateSystem.SimpleRange r = new CoordinateSystem.SimpleRange();
-                r.range = n.getRange().range;
-                r.time = n.getRange().time;
-                table.put(n.getId(), r);
+                r.range = range;
+                r.time = time;
+                ranges.add(new AbstractMap.SimpleEntry<String, CoordinateSystem.SimpleRange>(n.getId(), r));
             }
         }
+        // oldest first, so the table's size limit drops the oldest
+        Collections.sort(ranges, OLDEST_FIRST);
+        for (Map.Entry<String, CoordinateSystem.SimpleRange> r : ranges) {
+            table.put(r.getKey(), r.getValue());
+        }
         return table;
     }
 
@@ -116,46 +155,48 @@ public class NodeManager {
     private final RemoteNode.RemoteNodeListener nodeListener = new RemoteNode.RemoteNodeListener() {
         @Override
         public void onRangePending(RemoteNode n, NodeRange r) {
-            for (NodeManagerListener l : listeners) {
-                l.onRangePending(n, r);
-            }
+            eventBus.post(NodeEventBus.RANGE_PENDING, n, r);
         }
 
         @Override
         public void onStatePending(Node n, NodeState s) {
-            for (NodeManagerListener l : listeners) {
-                l.onStatePending(n, s);
-            }
+            eventBus.post(NodeEventBus.STATE_PENDING, n, s);
         }
 
         @Override
         public void onRangeChanged(RemoteNode n, NodeRange r) {
-            for (NodeManagerListener l : listeners) {
-                l.onRangeChanged(n, r);
-            }
+            eventBus.post(NodeEventBus.RANGE_CHANGED, n, r);
         }
 
         @Override
         public void onStateChanged(Node n, NodeState s) {
-            for (NodeManagerListener l : listeners) {
-                l.onStateChanged(n, s);
-            }
+            eventBus.post(NodeEventBus.STATE_CHANGED, n, s);
         }
     };
 
 
     /**
-     * Allow other objects to react to node events.
+     * Allow other objects to react to node events. Events are delivered asynchronously, see
+     * {@link NodeEventBus}.
      */
     public interface NodeManagerListener extends RemoteNode.RemoteNodeListener {
         void onNodeAdded(RemoteNode n);
     }
-    private final List<NodeManagerListener> listeners = new ArrayList<NodeManagerListener>(1);
+    private final NodeEventBus eventBus = new NodeEventBus();
+    public NodeEventBus getEventBus() { return eventBus; }
+
+    /** Delivers every event to the listener, in order, on a thread of its own. */
     public boolean registerListener(NodeManagerListener l) {
-        if (listeners.contains(l)) return false;
-        return listeners.add(l);
+        return eventBus.register(l, null, false);
+    }
+    /**
+     * Delivers events to the listener on the executor, e.g. {@link NodeEventBus#mainThread()}.
+     * Coalescing is only for listeners that show the latest values, like views; it drops events.
+     */
+    public boolean registerListener(NodeManagerListener l, Executor executor, boolean coalesce) {
+        return eventBus.register(l, executor, coalesce);
     }
     public boolean unregisterListener(NodeManagerListener l) {
-        return listeners.remove(l);
+        return eventBus.unregister(l);
     }
 }
@@ -2,7 +2,6 @@ package com.flat.localization;
 
 import android.bluetooth.BluetoothDevice;
 import android.hardware.Sensor;
-import android.net.wifi.ScanResult;
 import android.os.Bundle;
 import android.util.Log;
 
@@ -20,6 +19,7 @@ import com.flat.localization.signals.interpreters.RotationVector;
 import com.flat.localization.signals.interpreters.SignalInterpreter;
 import com.flat.localization.util.Calc;
 import com.flat.localization.util.Conv;
+import com.flat.wifi.ScanRecord;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -54,6 +54,10 @@ public class SignalManagerStaticData {
 
         // signal change listener
         accelSignal.registerListener(new Signal.SignalListener() {
+            // only read on the sensor thread, the state passed on is still new per event since
+            // listeners get it asynchronously
+            final NodeState current = new NodeState();
+
             @Override
             public void onChange(Signal signal, int eventType) {
                 NodeState state = new NodeState();
@@ -70,7 +74,8 @@ public class SignalManagerStaticData {
                         extras.putLong(key, state.time);
                         state.pos = la.integrate(accelSignal.getValues(), diff);
                         // incorporate current position into new state
-                        state.pos = Calc.vectorSum(nodeManager.getLocalNode().getState().pos, state.pos);
+                        nodeManager.getLocalNode().getState(current);
+                        state.pos = Calc.vectorSum(current.pos, state.pos);
                         nodeManager.getLocalNode().addPending(state);
                         break;
                     case AndroidSensor.EVENT_ACCURACY_CHANGE:
@@ -224,16 +229,16 @@ public class SignalManagerStaticData {
             public void onChange(Signal signal, int eventType) {
                 switch (eventType) {
                     case WifiBeacon.EVENT_SCAN_RESULTS:
-                        for (ScanResult sr : wifiSignal.getScanResults()) {
+                        for (ScanRecord sr : wifiSignal.getScanResults()) {
                             NodeRange range = new NodeRange();
                             range.signal = wifiSignal.getName();
                             range.interpreter = fspl2.getName();
                             range.time = System.currentTimeMillis(); //sr.timestamp;
-                            range.range = fspl2.fromDbMhz(sr.level, sr.frequency);
-                            if (nodeManager.getNode(sr.BSSID) == null) {
-                                nodeManager.addNode(new RemoteNode(sr.BSSID));
+                            range.range = fspl2.fromDbMhz(sr.rssi, sr.freq);
+                            if (nodeManager.getNode(sr.bssid) == null) {
+                                nodeManager.addNode(new RemoteNode(sr.bssid));
                             }
-                            nodeManager.getNode(sr.BSSID).addPending(range);
+                            nodeManager.getNode(sr.bssid).addPending(range);
                         }
                         break;
                 }
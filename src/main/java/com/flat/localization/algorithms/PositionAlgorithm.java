@@ -51,7 +51,7 @@ public abstract class PositionAlgorithm implements Algorithm {
         float[][] positions = Node.toPositionArray(references.toArray(new Node[references.size()]));
         float[] ranges = RemoteNode.toRangeArray(references.toArray(new RemoteNode[references.size()]));
         s.pos = findCoords(positions, ranges);
-        s.angle = target.getState().angle;
+        target.getAngle(s.angle);
         s.time = System.currentTimeMillis(); //System.nanoTime();
 
         for (AlgorithmListener l : listeners) {
@@ -3,13 +3,14 @@ package com.flat.localization.node;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
 
+import com.flat.localization.Config;
 import com.flat.localization.CoordinateSystem;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Nodes are the main objects to be manipulated in the localization system and they are
@@ -24,8 +25,8 @@ public class Node {
         rangeTable = table;
     }
 
-    private final List<NodeState> statePending = new ArrayList<NodeState>();
-    private final List<NodeState> stateHistory = new ArrayList<NodeState>();
+    private final StateHistory statePending = new StateHistory(Config.STATE_PENDING_CAPACITY);
+    private final StateHistory stateHistory = new StateHistory(Config.STATE_HISTORY_CAPACITY);
 
     public static final boolean idIsWifiMac = true;
     private final String id;
@@ -55,53 +56,88 @@ public class Node {
 
 
 
-    public synchronized void addPending(NodeState s) {
-        statePending.add(s);
+    /** Listeners are called after the node's lock is released. */
+    public void addPending(NodeState s) {
+        synchronized (this) {
+            statePending.add(s);
+        }
         for (NodeListener l: listeners) {
             l.onStatePending(this, s);
         }
     }
 
 
-    public synchronized void update(NodeState s) {
-        stateHistory.add(s);
+    /** Listeners are called after the node's lock is released. */
+    public void update(NodeState s) {
+        synchronized (this) {
+            stateHistory.add(s);
+        }
         for (NodeListener l: listeners) {
             l.onStateChanged(this, s);
         }
     }
 
-    /** Get previous (or current) state */
-    public synchronized NodeState getState(int index) {
-        return stateHistory.get(index);
+    /** Sets how many of the latest states are kept, see {@link Config#STATE_HISTORY_CAPACITY}. */
+    public synchronized void setStateHistoryCapacity(int capacity) {
+        stateHistory.setCapacity(capacity);
     }
 
+    /**
+     * The states kept, oldest first. Hold the node's lock while reading it, e.g. for the states
+     * between two times.
+     */
+    public StateHistory getStateHistory() { return stateHistory; }
 
+    /** Get a copy of a previous (or current) state */
+    public synchronized NodeState getState(int index) {
+        return stateHistory.get(index);
+    }
 
-    /** Get current state */
+    /** Get a copy of the current state */
     public synchronized NodeState getState() {
         return getState(stateHistory.size() - 1);
     }
 
+    /** Copies the current state into out without allocating. */
+    public synchronized void getState(NodeState out) {
+        stateHistory.get(stateHistory.size() - 1, out);
+    }
 
+    /** Copies the current position into out without allocating. */
+    public synchronized void getPosition(float[] out) {
+        stateHistory.getPosition(stateHistory.size() - 1, out);
+    }
 
-    /** Get previous (or current) pending state */
-    public synchronized NodeState getPendingState(int index) {
-        return statePending.get(index);
+    /** Copies the current angle into out without allocating. */
+    public synchronized void getAngle(float[] out) {
+        stateHistory.getAngle(stateHistory.size() - 1, out);
     }
 
+    /** The reference frame of the current state, without copying the state. */
+    public synchronized CoordinateSystem getReferenceFrame() {
+        return stateHistory.getReferenceFrame(stateHistory.size() - 1);
+    }
 
+    /** Get a copy of a previous (or current) pending state */
+    public synchronized NodeState getPendingState(int index) {
+        return statePending.get(index);
+    }
 
-    /** Get most recent pending state */
+    /** Get a copy of the most recent pending state */
     public synchronized NodeState getPendingState() { return getPendingState(statePending.size() - 1); }
 
-
+    /** @return the number of states kept, at most the history capacity. */
     public synchronized int getStateHistorySize() {
         return stateHistory.size();
     }
 
+    /** @return the number of states ever set, including those no longer kept. */
+    public synchronized long getStateCount() {
+        return stateHistory.getAddedCount();
+    }
 
     public synchronized int getStatePendingSize() {
-        return stateHistory.size();
+        return statePending.size();
     }
 
     public synchronized void savePrefs(SharedPreferences prefs) {
@@ -133,9 +169,7 @@ public class Node {
     public static float[][] toPositionArray(Node... nodes) {
         float[][] n = new float[nodes.length][3];
         for (int i=0; i<nodes.length; ++i) {
-            for (int j=0; j<3; ++j) {
-                n[i][j] = nodes[i].getState().pos[j];
-            }
+            nodes[i].getPosition(n[i]);
         }
         return n;
     }
@@ -149,7 +183,7 @@ public class Node {
         void onStatePending(Node n, NodeState s);
         void onStateChanged(Node n, NodeState s);
     }
-    protected final List<NodeListener> listeners = new ArrayList<NodeListener>(1);
+    protected final List<NodeListener> listeners = new CopyOnWriteArrayList<NodeListener>();
     public boolean registerListener(NodeListener l) {
         if (listeners.contains(l)) return false;
         return listeners.add(l);
@@ -36,18 +36,20 @@ public final class NodeMatchCriteria {
     public boolean matches(RemoteNode n) {
         int pr = n.getRangePendingSize();
         int ps = n.getStatePendingSize();
+        NodeRange range = n.getRange();
+        NodeState state = n.getState();
         return matchAll ||
                 (pr >= rangePendingCountMin && pr <= rangePendingCountMax) ||
                 (ps >= statePendingCountMin && ps <= statePendingCountMax) ||
-                (n.getRange().range >= rangeMin && n.getRange().range <= rangeMax) ||
-                (n.getRange().rangeOverride >= rangeMin && n.getRange().rangeOverride <= rangeMax) ||
+                (range.range >= rangeMin && range.range <= rangeMax) ||
+                (range.rangeOverride >= rangeMin && range.rangeOverride <= rangeMax) ||
                 (idMatches != null && idMatches.matcher(n.getId()).matches()) ||
-                (stateAlgMatches != null && stateAlgMatches.matcher(n.getState().algorithm).matches()) ||
-                (rangeSigMatches != null && rangeSigMatches.matcher(n.getRange().signal).matches()) ||
-                (rangeAlgMatches != null && rangeAlgMatches.matcher(n.getRange().interpreter).matches()) ||
-                (Calc.isLessThanOrEqual(n.getState().pos, posMax) && Calc.isLessThanOrEqual(posMin, n.getState().pos)) ||
-                (Calc.isLessThanOrEqual(n.getState().angle, angleMax) && Calc.isLessThanOrEqual(angleMin, n.getState().angle)) ||
-                (System.currentTimeMillis() - n.getState().time >= stateAgeMin && System.currentTimeMillis() - n.getState().time <= stateAgeMax) ||
-                (System.currentTimeMillis() - n.getRange().time >= rangeAgeMin && System.currentTimeMillis() - n.getRange().time <= rangeAgeMax);
+                (stateAlgMatches != null && stateAlgMatches.matcher(state.algorithm).matches()) ||
+                (rangeSigMatches != null && rangeSigMatches.matcher(range.signal).matches()) ||
+                (rangeAlgMatches != null && rangeAlgMatches.matcher(range.interpreter).matches()) ||
+                (Calc.isLessThanOrEqual(state.pos, posMax) && Calc.isLessThanOrEqual(posMin, state.pos)) ||
+                (Calc.isLessThanOrEqual(state.angle, angleMax) && Calc.isLessThanOrEqual(angleMin, state.angle)) ||
+                (System.currentTimeMillis() - state.time >= stateAgeMin && System.currentTimeMillis() - state.time <= stateAgeMax) ||
+                (System.currentTimeMillis() - range.time >= rangeAgeMin && System.currentTimeMillis() - range.time <= rangeAgeMax);
     }
 }
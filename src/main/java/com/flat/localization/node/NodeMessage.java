@@ -1,14 +1,26 @@
 package com.flat.localization.node;
 
 import com.flat.localization.CoordinateSystem;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
 import java.util.TreeMap;
 
 /**
+ * Messages between nodes, as one JSON object per line. Encoding and decoding are streamed with
+ * Gson's JsonWriter and JsonReader, so no JSON tree is built: values are written straight from the
+ * range table or coordinate system, and read straight into a new one. The format is the same as
+ * when these were built with org.json, with keys in the order type, id, then the content.
+ *
  * @author Jacob Phillips (02/2015, jphilli85 at gmail)
  */
 public final class NodeMessage {
@@ -24,8 +36,6 @@ public final class NodeMessage {
     public static final String KEY_COORDINATE_SYSTEM = "coord_system";
     public static final String KEY_CONNECTED_NODES = "connected_nodes";
 
-    private JSONObject msg = new JSONObject();
-
     public int type;
     public String fromId;
     public CoordinateSystem.RangeTable rangeTable;
@@ -34,138 +44,250 @@ public final class NodeMessage {
 
     private NodeMessage() {}
 
-    public NodeMessage(String fromId) throws JSONException {
+    public NodeMessage(String fromId) {
         type = TYPE_ID;
         this.fromId = fromId;
-        msg.put(KEY_TYPE, TYPE_ID);
-        msg.put(KEY_NODE_ID, fromId);
     }
 
-    public NodeMessage(String fromId, CoordinateSystem.RangeTable rangeTable) throws JSONException {
+    public NodeMessage(String fromId, CoordinateSystem.RangeTable rangeTable) {
         type = TYPE_RANGE_TABLE;
         this.fromId = fromId;
         this.rangeTable = rangeTable;
-        msg.put(KEY_TYPE, TYPE_RANGE_TABLE);
-        msg.put(KEY_NODE_ID, fromId);
-
-        JSONArray ranges = new JSONArray();
-        for (String node : rangeTable.keySet()) {
-            JSONArray json = new JSONArray();
-            json.put(node);
-            json.put(rangeTable.get(node).range);
-            json.put(rangeTable.get(node).time);
-            ranges.put(json);
-        }
-        msg.put(KEY_RANGE_TABLE, ranges);
-
-        if (rangeTable.coords != null) {
-            JSONArray coords = new JSONArray();
-            for (String node : rangeTable.coords.keySet()) {
-                JSONArray json = new JSONArray();
-                json.put(node);
-                for (float f : rangeTable.coords.get(node)) {
-                    json.put(f);
-                }
-                coords.put(json);
-            }
-            msg.put(KEY_COORDINATE_SYSTEM, coords);
-        }
     }
 
-    public NodeMessage(String fromId, CoordinateSystem coordinateSystem) throws JSONException {
+    public NodeMessage(String fromId, CoordinateSystem coordinateSystem) {
         type = TYPE_COORDINATE_SYSTEM;
         this.fromId = fromId;
         this.coordinateSystem = coordinateSystem;
-        msg.put(KEY_TYPE, TYPE_COORDINATE_SYSTEM);
-        msg.put(KEY_NODE_ID, fromId);
-
-        JSONArray coords = new JSONArray();
-        for (String node : coordinateSystem.keySet()) {
-            JSONArray json = new JSONArray();
-            json.put(node);
-            for (float f : coordinateSystem.get(node)) {
-                json.put(f);
-            }
-            coords.put(json);
-        }
-        msg.put(KEY_COORDINATE_SYSTEM, coords);
     }
 
-    public NodeMessage(String fromId, String[] connectedNodes) throws JSONException {
+    public NodeMessage(String fromId, String[] connectedNodes) {
         type = TYPE_CONNECTED_NODES;
         this.fromId = fromId;
         this.connectedNodes = connectedNodes;
-        msg.put(KEY_TYPE, TYPE_CONNECTED_NODES);
-        msg.put(KEY_NODE_ID, fromId);
+    }
 
-        JSONArray connections = new JSONArray();
-        for (String node : connectedNodes) {
-            connections.put(node);
+    /**
+     * Writes the message as JSON. Coordinates and ranges must be finite.
+     * @throws IllegalArgumentException if a coordinate or range is NaN or infinite.
+     */
+    public void write(Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name(KEY_TYPE).value(type);
+        json.name(KEY_NODE_ID).value(fromId);
+        switch (type) {
+            case TYPE_RANGE_TABLE:
+                json.name(KEY_RANGE_TABLE).beginArray();
+                for (Map.Entry<String, CoordinateSystem.SimpleRange> range : rangeTable.entrySet()) {
+                    json.beginArray();
+                    json.value(range.getKey());
+                    writeNumber(json, range.getValue().range);
+                    json.value(range.getValue().time);
+                    json.endArray();
+                }
+                json.endArray();
+                if (rangeTable.coords != null) {
+                    writeCoords(json.name(KEY_COORDINATE_SYSTEM), rangeTable.coords);
+                }
+                break;
+            case TYPE_COORDINATE_SYSTEM:
+                writeCoords(json.name(KEY_COORDINATE_SYSTEM), coordinateSystem);
+                break;
+            case TYPE_CONNECTED_NODES:
+                json.name(KEY_CONNECTED_NODES).beginArray();
+                for (String node : connectedNodes) {
+                    json.value(node);
+                }
+                json.endArray();
+                break;
         }
-        msg.put(KEY_CONNECTED_NODES, connections);
+        json.endObject();
+        json.flush();
     }
 
-    public static NodeMessage from(String jsonString) throws JSONException {
+    private static void writeCoords(JsonWriter json, TreeMap<String, float[]> coords) throws IOException {
+        json.beginArray();
+        for (Map.Entry<String, float[]> pos : coords.entrySet()) {
+            json.beginArray();
+            json.value(pos.getKey());
+            for (float f : pos.getValue()) {
+                writeNumber(json, f);
+            }
+            json.endArray();
+        }
+        json.endArray();
+    }
+
+    /** Whole numbers without a fraction, as org.json writes them. */
+    private static void writeNumber(JsonWriter json, double d) throws IOException {
+        long l = (long) d;
+        if (d == l) {
+            json.value(l);
+        } else {
+            json.value(d);
+        }
+    }
+
+    /** @return the message as one line of JSON, or throws if it can't be written. */
+    public String encode() throws JSONException {
+        StringWriter out = new StringWriter();
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new JSONException(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new JSONException(e.getMessage());
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads one message, filling a new range table, coordinate system or node list. A range table
+     * is read whole, without the size and age limits of the tables this node fills.
+     */
+    public static NodeMessage read(Reader in) throws IOException {
+        JsonReader json = new JsonReader(in);
         NodeMessage nm = new NodeMessage();
-        nm.msg = new JSONObject(jsonString);
-        nm.fromId = nm.msg.getString(KEY_NODE_ID);
-        nm.type = nm.msg.getInt(KEY_TYPE);
-        switch (nm.type) {
-            case TYPE_ID:
-                // nothing more to do
-                break;
-            case TYPE_RANGE_TABLE:
-                JSONArray coordsArray = nm.msg.optJSONArray(KEY_COORDINATE_SYSTEM);
-                if (coordsArray != null) {
-                    TreeMap<String, float[]> coords = new TreeMap<String, float[]>();
-                    for (int i = 0; i < coordsArray.length(); ++i) {
-                        JSONArray json = coordsArray.getJSONArray(i);
-                        coords.put(json.getString(0), new float[] {
-                                (float) json.getDouble(1),
-                                (float) json.getDouble(2),
-                                (float) json.getDouble(3)
-                        });
+        nm.type = -1;
+        TreeMap<String, float[]> coords = null;
+        boolean hasCoords = false;
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (KEY_TYPE.equals(name)) {
+                nm.type = json.nextInt();
+            } else if (KEY_NODE_ID.equals(name)) {
+                nm.fromId = json.nextString();
+            } else if (KEY_RANGE_TABLE.equals(name)) {
+                if (nm.rangeTable == null) {
+                    if (coords == null) {
+                        coords = new TreeMap<String, float[]>();
                     }
                     nm.rangeTable = new CoordinateSystem.RangeTable(coords);
-                } else {
-                    nm.rangeTable = new CoordinateSystem.RangeTable(null);
+                    // the peer already limited its table; trimming it here would drop its ranges
+                    nm.rangeTable.setLimits(0, 0);
                 }
-
-                JSONArray ranges = nm.msg.getJSONArray(KEY_RANGE_TABLE);
-                for (int i = 0; i < ranges.length(); ++i) {
-                    JSONArray json = ranges.getJSONArray(i);
-                    String node = json.getString(0);
+                json.beginArray();
+                while (json.hasNext()) {
+                    json.beginArray();
+                    String node = json.nextString();
                     CoordinateSystem.SimpleRange range = new CoordinateSystem.SimpleRange();
-                    range.range = (float) json.getDouble(1);
-                    range.time = json.getLong(2);
+                    range.range = (float) json.nextDouble();
+                    range.time = json.nextLong();
+                    skipRest(json);
                     nm.rangeTable.put(node, range);
                 }
+                json.endArray();
+            } else if (KEY_COORDINATE_SYSTEM.equals(name)) {
+                hasCoords = true;
+                if (nm.type == TYPE_COORDINATE_SYSTEM) {
+                    nm.coordinateSystem = new CoordinateSystem(null);
+                    readCoords(json, nm.coordinateSystem);
+                } else {
+                    if (coords == null) {
+                        coords = new TreeMap<String, float[]>();
+                    }
+                    readCoords(json, coords);
+                }
+            } else if (KEY_CONNECTED_NODES.equals(name)) {
+                String[] nodes = new String[4];
+                int count = 0;
+                json.beginArray();
+                while (json.hasNext()) {
+                    if (count == nodes.length) {
+                        String[] bigger = new String[count * 2];
+                        System.arraycopy(nodes, 0, bigger, 0, count);
+                        nodes = bigger;
+                    }
+                    nodes[count++] = json.nextString();
+                }
+                json.endArray();
+                nm.connectedNodes = new String[count];
+                System.arraycopy(nodes, 0, nm.connectedNodes, 0, count);
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+
+        if (nm.fromId == null || nm.type < 0) {
+            throw new IOException("Message without " + (nm.fromId == null ? KEY_NODE_ID : KEY_TYPE));
+        }
+        switch (nm.type) {
+            case TYPE_RANGE_TABLE:
+                if (nm.rangeTable == null) {
+                    throw new IOException("Range table message without " + KEY_RANGE_TABLE);
+                }
+                if (!hasCoords) {
+                    // the table was read before knowing there were no coordinates
+                    CoordinateSystem.RangeTable table = new CoordinateSystem.RangeTable(null);
+                    table.setLimits(0, 0);
+                    table.putAll(nm.rangeTable);
+                    nm.rangeTable = table;
+                }
                 break;
             case TYPE_COORDINATE_SYSTEM:
-                JSONArray coordsSys = nm.msg.getJSONArray(KEY_COORDINATE_SYSTEM);
-                nm.coordinateSystem = new CoordinateSystem(null);
-                for (int i = 0; i < coordsSys.length(); ++i) {
-                    JSONArray json = coordsSys.getJSONArray(i);
-                    nm.coordinateSystem.put(json.getString(0), new float[] {
-                            (float) json.getDouble(1),
-                            (float) json.getDouble(2),
-                            (float) json.getDouble(3)
-                    });
+                if (nm.coordinateSystem == null) {
+                    if (coords == null) {
+                        throw new IOException("Coordinate system message without " + KEY_COORDINATE_SYSTEM);
+                    }
+                    // the type came after the coordinates
+                    nm.coordinateSystem = new CoordinateSystem(null);
+                    nm.coordinateSystem.putAll(coords);
                 }
                 break;
             case TYPE_CONNECTED_NODES:
-                JSONArray connections = nm.msg.getJSONArray(KEY_CONNECTED_NODES);
-                nm.connectedNodes = new String[connections.length()];
-                for (int i = 0; i < connections.length(); ++i) {
-                    nm.connectedNodes[i] = connections.getString(i);
+                if (nm.connectedNodes == null) {
+                    throw new IOException("Connected nodes message without " + KEY_CONNECTED_NODES);
                 }
                 break;
         }
         return nm;
     }
 
+    private static void readCoords(JsonReader json, TreeMap<String, float[]> coords) throws IOException {
+        json.beginArray();
+        while (json.hasNext()) {
+            json.beginArray();
+            String node = json.nextString();
+            float[] pos = new float[] {
+                    (float) json.nextDouble(),
+                    (float) json.nextDouble(),
+                    (float) json.nextDouble()
+            };
+            skipRest(json);
+            coords.put(node, pos);
+        }
+        json.endArray();
+    }
+
+    /** Skips any extra values and closes the current array. */
+    private static void skipRest(JsonReader json) throws IOException {
+        while (json.peek() != JsonToken.END_ARRAY) {
+            json.skipValue();
+        }
+        json.endArray();
+    }
+
+    public static NodeMessage from(String jsonString) throws JSONException {
+        try {
+            return read(new StringReader(jsonString));
+        } catch (IOException e) {
+            throw new JSONException(e.getMessage());
+        } catch (IllegalStateException e) {
+            // unexpected token
+            throw new JSONException(e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
     @Override
     public String toString() {
-        return msg.toString();
+        try {
+            return encode();
+        } catch (JSONException ignored) {}
+        return super.toString();
     }
 }
@@ -0,0 +1,109 @@
+package com.flat.localization.node;
+
+import android.os.Debug;
+import android.util.Log;
+
+import com.flat.localization.CoordinateSystem;
+
+import org.json.JSONException;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Measures the time and allocations of encoding and decoding {@link NodeMessage}s of each type
+ * with a given number of entries. Allocations are counted with the (debug only) per thread
+ * allocation counters, so other threads don't affect them.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class NodeMessageBenchmark {
+    private static final String TAG = NodeMessageBenchmark.class.getSimpleName();
+
+    private NodeMessageBenchmark() {}
+
+    static String makeId(int i) {
+        return String.format("02:00:00:%02x:%02x:%02x", (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF);
+    }
+
+    static NodeMessage[] makeMessages(int entryCount, long seed) {
+        Random random = new Random(seed);
+        long now = System.currentTimeMillis();
+        TreeMap<String, float[]> coords = new TreeMap<String, float[]>();
+        CoordinateSystem coordinateSystem = new CoordinateSystem(null);
+        CoordinateSystem.RangeTable rangeTable = new CoordinateSystem.RangeTable(coords);
+        // unlimited, so the table holds every entry asked for
+        rangeTable.setLimits(0, 0);
+        String[] connected = new String[entryCount];
+        for (int i = 1; i <= entryCount; ++i) {
+            String id = makeId(i);
+            CoordinateSystem.SimpleRange range = new CoordinateSystem.SimpleRange();
+            range.range = random.nextFloat() * 50;
+            range.time = now - random.nextInt(60000);
+            rangeTable.put(id, range);
+            float[] pos = new float[] { random.nextFloat() * 50, random.nextFloat() * 50, 0 };
+            coords.put(id, pos);
+            coordinateSystem.put(id, pos);
+            connected[i - 1] = id;
+        }
+        return new NodeMessage[] {
+                new NodeMessage(makeId(0)),
+                new NodeMessage(makeId(0), rangeTable),
+                new NodeMessage(makeId(0), coordinateSystem),
+                new NodeMessage(makeId(0), connected)
+        };
+    }
+
+    /**
+     * @return one line per message type with its size and the allocations and time per message to
+     * encode and decode it, which is also logged.
+     */
+    public static String measure(int entryCount, int rounds) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            Debug.startAllocCounting();
+            for (NodeMessage nm : makeMessages(entryCount, entryCount)) {
+                String json = nm.encode();
+                NodeMessage.from(json); // warm up
+
+                Debug.resetThreadAllocCount();
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; ++i) {
+                    nm.encode();
+                }
+                long encodeTime = System.nanoTime() - start;
+                int encodeCount = Debug.getThreadAllocCount();
+                int encodeSize = Debug.getThreadAllocSize();
+
+                Debug.resetThreadAllocCount();
+                start = System.nanoTime();
+                NodeMessage decoded = null;
+                for (int i = 0; i < rounds; ++i) {
+                    decoded = NodeMessage.from(json);
+                }
+                long decodeTime = System.nanoTime() - start;
+                int decodeCount = Debug.getThreadAllocCount();
+                int decodeSize = Debug.getThreadAllocSize();
+
+                String line = String.format("type %d, %d entries, %d chars: encode %d objects, %d bytes, %.0fus; "
+                                + "decode %d objects, %d bytes, %.0fus; round trip %s",
+                        nm.type, entryCount, json.length(),
+                        encodeCount / rounds, encodeSize / rounds, encodeTime / 1000f / rounds,
+                        decodeCount / rounds, decodeSize / rounds, decodeTime / 1000f / rounds,
+                        json.equals(decoded.encode()) ? "ok" : "differs");
+                Log.i(TAG, line);
+                sb.append(line).append('\n');
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Benchmark message failed to encode or decode.", e);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return sb.toString();
+    }
+
+    /** Measures 10, 100 and 1000 entries. */
+    public static String measureAll(int rounds) {
+        return measure(10, rounds) + measure(100, rounds) + measure(1000, rounds);
+    }
+}
@@ -0,0 +1,136 @@
+package com.flat.localization.node;
+
+import com.flat.localization.util.NodeIdInterner;
+
+/**
+ * The most recent ranges to a node in a fixed capacity ring buffer. Each field of
+ * {@link NodeRange} is kept in its own primitive array, with the signal and interpreter names
+ * interned to ints, so adding a range allocates nothing and memory stays the same however long
+ * ranging runs. When full, adding a range overwrites the oldest.
+ * <p>
+ * Ranges are indexed from 0 (the oldest kept) to size() - 1 (the latest). Not thread safe; the
+ * owning {@link RemoteNode} guards it.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class RangeHistory {
+    /** Signal and interpreter names, shared by all histories since there are only a few. */
+    private static final NodeIdInterner names = new NodeIdInterner();
+
+    private float[] range, rangeOverride;
+    private long[] time;
+    private int[] signal, interpreter;
+    /** Slot of the oldest range. */
+    private int head;
+    private int size;
+    private long added;
+
+    public RangeHistory(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    private void allocate(int capacity) {
+        range = new float[capacity];
+        rangeOverride = new float[capacity];
+        time = new long[capacity];
+        signal = new int[capacity];
+        interpreter = new int[capacity];
+    }
+
+    public int size() { return size; }
+    public int capacity() { return range.length; }
+    /** @return the number of ranges ever added, including those overwritten. */
+    public long getAddedCount() { return added; }
+
+    /** Changes the capacity, keeping the latest ranges that fit. */
+    public void setCapacity(int capacity) {
+        capacity = Math.max(1, capacity);
+        if (capacity == range.length) return;
+        float[] oldRange = range, oldOverride = rangeOverride;
+        long[] oldTime = time;
+        int[] oldSignal = signal, oldInterpreter = interpreter;
+        int oldHead = head, oldCapacity = oldRange.length;
+        int keep = Math.min(size, capacity);
+        allocate(capacity);
+        for (int i = 0; i < keep; ++i) {
+            int from = (oldHead + size - keep + i) % oldCapacity;
+            range[i] = oldRange[from];
+            rangeOverride[i] = oldOverride[from];
+            time[i] = oldTime[from];
+            signal[i] = oldSignal[from];
+            interpreter[i] = oldInterpreter[from];
+        }
+        head = 0;
+        size = keep;
+    }
+
+    public void add(NodeRange r) {
+        int slot;
+        if (size < range.length) {
+            slot = (head + size) % range.length;
+            ++size;
+        } else {
+            slot = head;
+            head = (head + 1) % range.length;
+        }
+        range[slot] = r.range;
+        rangeOverride[slot] = r.rangeOverride;
+        time[slot] = r.time;
+        signal[slot] = names.intern(r.signal);
+        interpreter[slot] = names.intern(r.interpreter);
+        ++added;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Range " + index + " of " + size);
+        }
+        return (head + index) % range.length;
+    }
+
+    public float getRange(int index) { return range[slot(index)]; }
+    public float getRangeOverride(int index) { return rangeOverride[slot(index)]; }
+    public long getTime(int index) { return time[slot(index)]; }
+    public String getSignal(int index) { return names.getId(signal[slot(index)]); }
+    public String getInterpreter(int index) { return names.getId(interpreter[slot(index)]); }
+
+    /** @return the latest range, or 0 if there is none. */
+    public float getLatestRange() {
+        return size == 0 ? 0 : range[slot(size - 1)];
+    }
+
+    /** @return the time of the latest range, or 0 if there is none. */
+    public long getLatestTime() {
+        return size == 0 ? 0 : time[slot(size - 1)];
+    }
+
+    /** @return a new range with the values at the index. */
+    public NodeRange get(int index) {
+        int slot = slot(index);
+        NodeRange r = new NodeRange();
+        r.range = range[slot];
+        r.rangeOverride = rangeOverride[slot];
+        r.time = time[slot];
+        r.signal = names.getId(signal[slot]);
+        r.interpreter = names.getId(interpreter[slot]);
+        return r;
+    }
+
+    /**
+     * @return the index of the oldest range in the run of latest ranges that are no older than
+     * the given time, or size() if there are none, so that indices from it up to size() - 1 are
+     * the window. Only the window is scanned.
+     */
+    public int indexOfFirstSince(long since) {
+        int index = size;
+        while (index > 0 && time[slot(index - 1)] >= since) {
+            --index;
+        }
+        return index;
+    }
+}
@@ -1,9 +1,10 @@
 package com.flat.localization.node;
 
+import com.flat.localization.Config;
 import com.flat.sockets.MyConnectionSocket;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Nodes are the main objects to be manipulated in the localization system and they are
@@ -12,10 +13,11 @@ import java.util.List;
 public final class RemoteNode extends Node {
     private static final String TAG = RemoteNode.class.getSimpleName();
 
-    private final List<NodeRange> rangePending = new ArrayList<NodeRange>();
-    private final List<NodeRange> rangeHistory = new ArrayList<NodeRange>();
+    private final RangeHistory rangePending = new RangeHistory(Config.RANGE_PENDING_CAPACITY);
+    private final RangeHistory rangeHistory = new RangeHistory(Config.RANGE_HISTORY_CAPACITY);
 
     private MyConnectionSocket connection;
+    /** Use {@link com.flat.localization.NodeManager#setDataConnection(RemoteNode, MyConnectionSocket)} so the node can be found by connection. */
     public synchronized void setDataConnection(MyConnectionSocket mcs) {
         connection = mcs;
     }
@@ -39,24 +41,41 @@ public final class RemoteNode extends Node {
         super(id);
     }
 
-    public synchronized void addPending(NodeRange r) {
-        rangePending.add(r);
+    /** Listeners are called after the node's lock is released. */
+    public void addPending(NodeRange r) {
+        synchronized (this) {
+            rangePending.add(r);
+        }
         for (RemoteNodeListener l: listeners) {
             l.onRangePending(this, r);
         }
     }
 
-    public synchronized void update(NodeRange r) {
-        r.rangeOverride = getActualRangeOverride();
-        rangeHistory.add(r);
+    /** Listeners are called after the node's lock is released. */
+    public void update(NodeRange r) {
+        synchronized (this) {
+            r.rangeOverride = actualRangeOverride;
+            rangeHistory.add(r);
+        }
         for (RemoteNodeListener l: listeners) {
             l.onRangeChanged(this, r);
         }
     }
 
+    /** Sets how many of the latest ranges are kept, see {@link Config#RANGE_HISTORY_CAPACITY}. */
+    public synchronized void setRangeHistoryCapacity(int capacity) {
+        rangeHistory.setCapacity(capacity);
+    }
+
+    /**
+     * The ranges kept, oldest first. Hold the node's lock while reading it, e.g. to iterate the
+     * window from {@link RangeHistory#indexOfFirstSince(long)}.
+     */
+    public RangeHistory getRangeHistory() { return rangeHistory; }
+
     /** Get previous (or current) range */
     public synchronized NodeRange getRange(int index) {
-        if (rangeHistory.size() > 0 && rangeHistory.size() < index) {
+        if (index >= 0 && index < rangeHistory.size()) {
             return rangeHistory.get(index);
         } else {
             return new NodeRange(); // TODO, implementations should just check for null.
@@ -68,6 +87,15 @@ public final class RemoteNode extends Node {
         return getRange(rangeHistory.size() - 1);
     }
 
+    /** The current range without copying it, or 0 if there is none. */
+    public synchronized float getLatestRange() {
+        return rangeHistory.getLatestRange();
+    }
+    /** The time of the current range, or 0 if there is none. */
+    public synchronized long getLatestRangeTime() {
+        return rangeHistory.getLatestTime();
+    }
+
     /** Get previous (or current) pending range */
     public synchronized NodeRange getPendingRange(int index) {
         return rangePending.get(index);
@@ -76,11 +104,16 @@ public final class RemoteNode extends Node {
     /** Get most recent pending range */
     public synchronized NodeRange getPendingRange() { return getPendingRange(rangePending.size() - 1); }
 
+    /** @return the number of ranges kept, at most the history capacity. */
     public synchronized int getRangeHistorySize() {
         return rangeHistory.size();
     }
+    /** @return the number of ranges ever received, including those no longer kept. */
+    public synchronized long getRangeCount() {
+        return rangeHistory.getAddedCount();
+    }
     public synchronized int getRangePendingSize() {
-        return rangeHistory.size();
+        return rangePending.size();
     }
 
     /**
@@ -89,7 +122,7 @@ public final class RemoteNode extends Node {
     public static float[] toRangeArray(RemoteNode... nodes) {
         float[] r = new float[nodes.length];
         for (int i=0; i<nodes.length; ++i) {
-            r[i] = nodes[i].getRange().range;
+            r[i] = nodes[i].getLatestRange();
         }
         return r;
     }
@@ -102,7 +135,7 @@ public final class RemoteNode extends Node {
         void onRangePending(RemoteNode n, NodeRange r);
         void onRangeChanged(RemoteNode n, NodeRange r);
     }
-    protected final List<RemoteNodeListener> listeners = new ArrayList<RemoteNodeListener>(1);
+    protected final List<RemoteNodeListener> listeners = new CopyOnWriteArrayList<RemoteNodeListener>();
     public boolean registerListener(RemoteNodeListener l) {
         if (listeners.contains(l)) return false;
         return listeners.add(l);
@@ -0,0 +1,214 @@
+package com.flat.localization.node;
+
+import com.flat.localization.CoordinateSystem;
+import com.flat.localization.util.NodeIdInterner;
+
+/**
+ * The most recent states of a node in a fixed capacity ring buffer, as parallel primitive arrays:
+ * position and angle three floats each, time, and int handles for the algorithm name and the
+ * reference frame. Adding a state copies its values in and allocates nothing (unless it brings a
+ * reference frame the history hasn't seen), so sensors adding states many times a second don't grow
+ * the heap. When full, adding a state overwrites the oldest.
+ * <p>
+ * States are indexed from 0 (the oldest kept) to size() - 1 (the latest), and are assumed to be
+ * added in time order for the time queries. Not thread safe; the owning {@link Node} guards it.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class StateHistory {
+    /** Algorithm names, shared by all histories since there are only a few. */
+    private static final NodeIdInterner names = new NodeIdInterner();
+
+    private float[] pos, angle;
+    private long[] time;
+    private int[] algorithm, frame;
+    private int head;
+    private int size;
+    private long added;
+
+    /** Reference frames by handle, with how many kept states use each. Handle 0 is no frame. */
+    private CoordinateSystem[] frames = new CoordinateSystem[4];
+    private int[] frameRefs = new int[4];
+    private int lastFrame;
+
+    public StateHistory(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    private void allocate(int capacity) {
+        pos = new float[capacity * 3];
+        angle = new float[capacity * 3];
+        time = new long[capacity];
+        algorithm = new int[capacity];
+        frame = new int[capacity];
+    }
+
+    public int size() { return size; }
+    public int capacity() { return time.length; }
+    /** @return the number of states ever added, including those overwritten. */
+    public long getAddedCount() { return added; }
+
+    /** Changes the capacity, keeping the latest states that fit. */
+    public void setCapacity(int capacity) {
+        capacity = Math.max(1, capacity);
+        if (capacity == time.length) return;
+        float[] oldPos = pos, oldAngle = angle;
+        long[] oldTime = time;
+        int[] oldAlgorithm = algorithm, oldFrame = frame;
+        int oldHead = head, oldCapacity = oldTime.length;
+        int keep = Math.min(size, capacity);
+        for (int i = 0; i < size - keep; ++i) {
+            releaseFrame(oldFrame[(oldHead + i) % oldCapacity]);
+        }
+        allocate(capacity);
+        for (int i = 0; i < keep; ++i) {
+            int from = (oldHead + size - keep + i) % oldCapacity;
+            System.arraycopy(oldPos, from * 3, pos, i * 3, 3);
+            System.arraycopy(oldAngle, from * 3, angle, i * 3, 3);
+            time[i] = oldTime[from];
+            algorithm[i] = oldAlgorithm[from];
+            frame[i] = oldFrame[from];
+        }
+        head = 0;
+        size = keep;
+    }
+
+    public void add(NodeState s) {
+        add(s.pos, s.angle, s.algorithm, s.time, s.referenceFrame);
+    }
+
+    public void add(float[] position, float[] orientation, String algorithmName, long t, CoordinateSystem referenceFrame) {
+        int slot;
+        if (size < time.length) {
+            slot = (head + size) % time.length;
+            ++size;
+        } else {
+            slot = head;
+            head = (head + 1) % time.length;
+            releaseFrame(frame[slot]);
+        }
+        System.arraycopy(position, 0, pos, slot * 3, 3);
+        System.arraycopy(orientation, 0, angle, slot * 3, 3);
+        time[slot] = t;
+        algorithm[slot] = names.intern(algorithmName);
+        frame[slot] = acquireFrame(referenceFrame);
+        ++added;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; ++i) {
+            releaseFrame(frame[(head + i) % time.length]);
+        }
+        head = 0;
+        size = 0;
+    }
+
+    private int acquireFrame(CoordinateSystem f) {
+        if (f == null) return 0;
+        if (frames[lastFrame] == f) {
+            ++frameRefs[lastFrame];
+            return lastFrame;
+        }
+        int free = -1;
+        for (int h = 1; h < frames.length; ++h) {
+            if (frames[h] == f) {
+                ++frameRefs[h];
+                lastFrame = h;
+                return h;
+            } else if (free < 0 && frames[h] == null) {
+                free = h;
+            }
+        }
+        if (free < 0) {
+            free = frames.length;
+            CoordinateSystem[] moreFrames = new CoordinateSystem[frames.length * 2];
+            System.arraycopy(frames, 0, moreFrames, 0, frames.length);
+            frames = moreFrames;
+            int[] moreRefs = new int[frameRefs.length * 2];
+            System.arraycopy(frameRefs, 0, moreRefs, 0, frameRefs.length);
+            frameRefs = moreRefs;
+        }
+        frames[free] = f;
+        frameRefs[free] = 1;
+        lastFrame = free;
+        return free;
+    }
+
+    private void releaseFrame(int h) {
+        if (h != 0 && --frameRefs[h] == 0) {
+            frames[h] = null;
+            if (lastFrame == h) lastFrame = 0;
+        }
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("State " + index + " of " + size);
+        }
+        return (head + index) % time.length;
+    }
+
+    public long getTime(int index) { return time[slot(index)]; }
+    public String getAlgorithm(int index) { return names.getId(algorithm[slot(index)]); }
+    public CoordinateSystem getReferenceFrame(int index) { return frames[frame[slot(index)]]; }
+
+    /** Copies the position at the index into out[0..2]. */
+    public void getPosition(int index, float[] out) {
+        System.arraycopy(pos, slot(index) * 3, out, 0, 3);
+    }
+
+    /** Copies the angle at the index into out[0..2]. */
+    public void getAngle(int index, float[] out) {
+        System.arraycopy(angle, slot(index) * 3, out, 0, 3);
+    }
+
+    /** Copies the state at the index into out, reusing its arrays. */
+    public void get(int index, NodeState out) {
+        int slot = slot(index);
+        System.arraycopy(pos, slot * 3, out.pos, 0, 3);
+        System.arraycopy(angle, slot * 3, out.angle, 0, 3);
+        out.time = time[slot];
+        out.algorithm = names.getId(algorithm[slot]);
+        out.referenceFrame = frames[frame[slot]];
+    }
+
+    /** @return a new state with the values at the index. */
+    public NodeState get(int index) {
+        NodeState s = new NodeState();
+        get(index, s);
+        return s;
+    }
+
+    /** @return the index of the first state at or after the time, or size() if there is none. */
+    public int indexOfFirstSince(long since) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (time[(head + mid) % time.length] < since) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** @return new copies of the states with times in [from, to). */
+    public NodeState[] snapshot(long from, long to) {
+        int start = indexOfFirstSince(from), end = indexOfFirstSince(to);
+        NodeState[] states = new NodeState[Math.max(0, end - start)];
+        for (int i = 0; i < states.length; ++i) {
+            states[i] = get(start + i);
+        }
+        return states;
+    }
+
+    /** @return new copies of all states kept, oldest first. */
+    public NodeState[] snapshot() {
+        NodeState[] states = new NodeState[size];
+        for (int i = 0; i < size; ++i) {
+            states[i] = get(i);
+        }
+        return states;
+    }
+}
@@ -1,12 +1,13 @@
 package com.flat.localization.signals;
 
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractSignal implements Signal {
     private final String name;
-    private int count = 0;
+    /** Signals may notify from more than one thread, e.g. a replay and a stage. */
+    private final AtomicInteger count = new AtomicInteger();
 
     protected AbstractSignal(String name) {
         this.name = name;
@@ -18,10 +19,10 @@ public abstract class AbstractSignal implements Signal {
     }
 
     public final int getChangeCount() {
-        return count;
+        return count.get();
     }
     public final void notifyListeners(int eventType) {
-        ++count;
+        count.incrementAndGet();
         for (SignalListener l : listeners) {
             l.onChange(this, eventType);
         }
@@ -29,12 +30,11 @@ public abstract class AbstractSignal implements Signal {
 
 
     /**
-     * Allow other objects to react to events.
+     * Allow other objects to react to events. Signals may notify from a worker thread.
      */
-    private final List<SignalListener> listeners = new ArrayList<SignalListener>(1);
+    private final CopyOnWriteArrayList<SignalListener> listeners = new CopyOnWriteArrayList<SignalListener>();
     public boolean registerListener(SignalListener l) {
-        if (listeners.contains(l)) return false;
-        return listeners.add(l);
+        return listeners.addIfAbsent(l);
     }
     public boolean unregisterListener(SignalListener l) {
         return listeners.remove(l);
@@ -8,23 +8,28 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 
-import java.util.HashMap;
+import com.flat.localization.Config;
+import com.flat.util.ScanStage;
+
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by Jacob Phillips (09/2014)
+ * <p>
+ * Listeners are notified on a worker thread, not the main thread.
  */
 public final class BluetoothBeacon extends AbstractSignal {
     public static final int EVENT_DEVICE_DISCOVERED = 1;
 
     private Timer timer;
-    private Map<BluetoothDevice, Short> scanResults = new HashMap<BluetoothDevice, Short>();
+    private final Map<BluetoothDevice, Short> scanResults = new ConcurrentHashMap<BluetoothDevice, Short>();
     public Map<BluetoothDevice, Short> getScanResults() {
         return scanResults;
     }
-    private BluetoothDevice lastDevice;
+    private volatile BluetoothDevice lastDevice;
     public BluetoothDevice getMostRecentDevice() {
         return lastDevice;
     }
@@ -99,10 +104,34 @@ public final class BluetoothBeacon extends AbstractSignal {
             }
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
             short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
-            scanResults.put(device, rssi);
-            lastDevice = device;
-            notifyListeners(EVENT_DEVICE_DISCOVERED);
+            discoveryStage.offer(new Discovery(device, rssi));
         }
     };
+
+    private static final class Discovery {
+        final BluetoothDevice device;
+        final short rssi;
+
+        Discovery(BluetoothDevice device, short rssi) {
+            this.device = device;
+            this.rssi = rssi;
+        }
+    }
+
+    /**
+     * Records each discovered device and notifies the listeners, which turn it into a range. Unlike
+     * scans, a discovery doesn't supersede the ones before it, so none are dropped.
+     */
+    private final ScanStage<Discovery> discoveryStage = new ScanStage<Discovery>("BluetoothBeacon-discoveries",
+            new ScanStage.Handler<Discovery>() {
+        @Override
+        public void handle(Discovery d) {
+            scanResults.put(d.device, d.rssi);
+            lastDevice = d.device;
+            notifyListeners(EVENT_DEVICE_DISCOVERED);
+        }
+    }, ScanStage.UNBOUNDED, Config.SIGNAL_SLOW_STAGE_MS);
+    /** Where discovered devices wait for the listeners, with its latency counters. */
+    public ScanStage<?> getStage() { return discoveryStage; }
     private final IntentFilter scanFilter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
 }
@@ -5,9 +5,14 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 
+import com.flat.localization.Config;
+import com.flat.util.ScanStage;
+import com.flat.wifi.ScanListener;
+import com.flat.wifi.ScanRecord;
+import com.flat.wifi.ScanScheduler;
+import com.flat.wifi.WifiScanner;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -17,6 +22,7 @@ import java.util.TimerTask;
 /**
  * Obtain WiFi beacons by scanning available networks. Scans can be run periodically or one at a time.
  * Objects that listen for changes in WiFi beacon signals should use getScanResults() when notified of a change.
+ * Listeners are notified on a worker thread, not the main thread.
  * This class implements a singleton pattern.
  */
 public final class WifiBeacon extends AbstractSignal {
@@ -26,12 +32,12 @@ public final class WifiBeacon extends AbstractSignal {
     private boolean enabled;
 
     private Timer timer;
-    private List<ScanResult> scanResults = new ArrayList<ScanResult>();
+    private List<ScanRecord> scanResults = new ArrayList<ScanRecord>();
 
-    private synchronized void setScanResults(List<ScanResult> results) {
+    private synchronized void setScanResults(List<ScanRecord> results) {
         scanResults = results;
     }
-    public synchronized List<ScanResult> getScanResults() {
+    public synchronized List<ScanRecord> getScanResults() {
         return scanResults;
     }
 
@@ -54,8 +60,14 @@ public final class WifiBeacon extends AbstractSignal {
         ctx.getApplicationContext().registerReceiver(scanReceiver, scanFilter);
 
         cancelTimer();
+        enabled = true;
+        scheduler = interval == 0 ? null : ScanScheduler.create(interval);
         if (interval == 0) {
             manager.startScan();
+        } else if (scheduler != null) {
+            this.manager = manager;
+            timer = new Timer();
+            scheduleScan(0);
         } else {
             timer = new Timer();
             timer.scheduleAtFixedRate(new TimerTask() {
@@ -65,7 +77,34 @@ public final class WifiBeacon extends AbstractSignal {
                 }
             }, 0, interval);
         }
-        enabled = true;
+    }
+
+    /** Picks the time between scans when scanning is adaptive, otherwise null. */
+    private ScanScheduler scheduler;
+    private WifiManager manager;
+    private TimerTask pendingScan;
+    /** Set on the timer thread and read on the stage thread. */
+    private volatile long lastScanStart;
+
+    public synchronized ScanScheduler getScheduler() { return scheduler; }
+
+    /** Replaces the pending scan with one after the delay. */
+    private synchronized void scheduleScan(long delay) {
+        if (timer == null) return;
+        if (pendingScan != null) {
+            pendingScan.cancel();
+        }
+        final long retry = scheduler.getMaxInterval();
+        pendingScan = new TimerTask() {
+            @Override
+            public void run() {
+                lastScanStart = System.currentTimeMillis();
+                manager.startScan();
+                // scan again anyway if the results never arrive
+                scheduleScan(retry);
+            }
+        };
+        timer.schedule(pendingScan, delay);
     }
     @Override
     public void enable(Context ctx) { enable(ctx, 1000); }
@@ -84,11 +123,29 @@ public final class WifiBeacon extends AbstractSignal {
         return enabled;
     }
 
-    private void cancelTimer() {
+    private synchronized void cancelTimer() {
         if (timer != null) {
             timer.cancel();
             timer = null;
         }
+        pendingScan = null;
+        scheduler = null;
+    }
+
+    /** Notifies listeners of results that didn't come from a scan, e.g. a replayed trace. */
+    public void deliverScanResults(List<ScanRecord> results) {
+        setScanResults(results);
+        notifyListeners(EVENT_SCAN_RESULTS);
+    }
+
+    /** Delivers the batches of a {@link com.flat.wifi.ScanTraceReplayer} to this signal's listeners. */
+    public ScanListener getReplaySink() {
+        return new ScanListener() {
+            @Override
+            public void onScanResults(List<ScanRecord> scanResults) {
+                deliverScanResults(scanResults);
+            }
+        };
     }
 
     private final BroadcastReceiver scanReceiver = new BroadcastReceiver() {
@@ -98,10 +155,37 @@ public final class WifiBeacon extends AbstractSignal {
             if (timer == null) {
                 disable(context);
             }
-            setScanResults(((WifiManager) context.getSystemService(Context.WIFI_SERVICE)).getScanResults());
-            notifyListeners(EVENT_SCAN_RESULTS);
+            resultStage.offer(WifiScanner.toRecords(((WifiManager) context.getSystemService(Context.WIFI_SERVICE)).getScanResults()));
         }
     };
 
+    /** Schedules the next scan from each scan's results, then passes them to the range stage. */
+    private final ScanStage<List<ScanRecord>> resultStage = new ScanStage<List<ScanRecord>>("WifiBeacon-results",
+            new ScanStage.Handler<List<ScanRecord>>() {
+        @Override
+        public void handle(List<ScanRecord> results) {
+            ScanScheduler scheduler = getScheduler();
+            if (scheduler != null) {
+                scheduler.onScanResults(results);
+                scheduleScan(Math.max(0, scheduler.getInterval() - (System.currentTimeMillis() - lastScanStart)));
+            }
+            rangeStage.offer(results);
+        }
+    }, Config.SIGNAL_QUEUE_CAPACITY, Config.SIGNAL_SLOW_STAGE_MS);
+
+    /** Notifies the listeners, which turn the results into ranges, so a slow one doesn't delay scans. */
+    private final ScanStage<List<ScanRecord>> rangeStage = new ScanStage<List<ScanRecord>>("WifiBeacon-ranges",
+            new ScanStage.Handler<List<ScanRecord>>() {
+        @Override
+        public void handle(List<ScanRecord> results) {
+            deliverScanResults(results);
+        }
+    }, Config.SIGNAL_QUEUE_CAPACITY, Config.SIGNAL_SLOW_STAGE_MS);
+
+    /** @return the stages scan results go through, for their latency counters. */
+    public ScanStage<?>[] getStages() {
+        return new ScanStage<?>[] { resultStage, rangeStage };
+    }
+
     private final IntentFilter scanFilter = new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
 }
@@ -0,0 +1,97 @@
+package com.flat.localization.util;
+
+import java.util.Arrays;
+
+/**
+ * A square adjacency matrix of interned node indices stored as one long[] bit row per node.
+ * Row i has bit j set when node i has a range to node j. Common neighbours of two nodes are
+ * found with a word-wise AND and counted with a popcount, without allocating.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class BitAdjacency {
+    private long[][] rows = new long[0][];
+    private int words;
+
+    public int getWordCount() { return words; }
+    public int getRowCount() { return rows.length; }
+
+    /** Grow to hold at least the given number of rows and columns, keeping existing bits. */
+    public void ensureCapacity(int nodes) {
+        int neededWords = (nodes + 63) >>> 6;
+        if (neededWords > words) {
+            neededWords = Math.max(neededWords, words * 2);
+            for (int i = 0; i < rows.length; ++i) {
+                long[] row = new long[neededWords];
+                System.arraycopy(rows[i], 0, row, 0, words);
+                rows[i] = row;
+            }
+            words = neededWords;
+        }
+        if (nodes > rows.length) {
+            long[][] tmp = new long[Math.max(nodes, rows.length * 2)][];
+            System.arraycopy(rows, 0, tmp, 0, rows.length);
+            for (int i = rows.length; i < tmp.length; ++i) {
+                tmp[i] = new long[words];
+            }
+            rows = tmp;
+        }
+    }
+
+    public void set(int row, int col) {
+        ensureCapacity(Math.max(row, col) + 1);
+        rows[row][col >>> 6] |= 1L << col;
+    }
+
+    public boolean get(int row, int col) {
+        return row < rows.length && (col >>> 6) < words && (rows[row][col >>> 6] & (1L << col)) != 0;
+    }
+
+    public void clearRow(int row) {
+        if (row < rows.length) {
+            Arrays.fill(rows[row], 0);
+        }
+    }
+
+    /** The bits of a row. Callers must not modify it. */
+    public long[] getRow(int row) {
+        return rows[row];
+    }
+
+    /** @return the number of nodes adjacent to both a and b. */
+    public int countCommon(int a, int b) {
+        long[] ra = rows[a], rb = rows[b];
+        int count = 0;
+        for (int i = 0; i < words; ++i) {
+            count += Long.bitCount(ra[i] & rb[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Writes the nodes adjacent to both a and b into out, which must have at least
+     * {@link #getWordCount()} elements.
+     * @return the number of common nodes.
+     */
+    public int common(int a, int b, long[] out) {
+        long[] ra = rows[a], rb = rows[b];
+        int count = 0;
+        for (int i = 0; i < words; ++i) {
+            out[i] = ra[i] & rb[i];
+            count += Long.bitCount(out[i]);
+        }
+        return count;
+    }
+
+    /** @return the index of the first set bit at or after from, or -1 if there is none. */
+    public static int nextSetBit(long[] bits, int from) {
+        int i = from >>> 6;
+        if (i >= bits.length) return -1;
+        long word = bits[i] & (-1L << from);
+        while (true) {
+            if (word != 0) return (i << 6) + Long.numberOfTrailingZeros(word);
+            if (++i == bits.length) return -1;
+            word = bits[i];
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.flat.localization.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps node ids (mac addresses / BSSIDs) to dense ints so that per-node data can be kept in
+ * primitive arrays and bit sets instead of string keyed collections. Indices of released ids are
+ * reused, lowest first, so the indices stay below the most ids ever in use at once rather than
+ * growing with every transient id.
+ * <p>
+ * Lookups don't lock, so parallel localization phases can share an interner; only interning a new
+ * id, releasing and clearing do.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class NodeIdInterner {
+    /** Stands in for a null id, which the map can't hold. */
+    private static final Object NULL_ID = new Object();
+
+    private final ConcurrentHashMap<Object, Integer> indices = new ConcurrentHashMap<Object, Integer>();
+    // written under the lock; an id is stored before its index is published in the map
+    private volatile String[] ids = new String[16];
+    private volatile int size;
+    /** Released indices, to hand out again before new ones. Guarded by this. */
+    private final BitSet free = new BitSet();
+
+    private static Object key(String id) {
+        return id == null ? NULL_ID : id;
+    }
+
+    /** @return the index of the id, assigning the lowest free index if it isn't interned. */
+    public int intern(String id) {
+        Integer index = indices.get(key(id));
+        return index != null ? index : add(id);
+    }
+
+    private synchronized int add(String id) {
+        Integer existing = indices.get(key(id));
+        if (existing != null) return existing;
+        int index = free.nextSetBit(0);
+        if (index >= 0) {
+            free.clear(index);
+        } else {
+            index = size;
+            if (index == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+        }
+        ids[index] = id;
+        if (index == size) {
+            size = index + 1;
+        }
+        indices.put(key(id), index);
+        return index;
+    }
+
+    /** @return the index of the id, or -1 if it has not been interned. */
+    public int indexOf(String id) {
+        Integer index = indices.get(key(id));
+        return index == null ? -1 : index;
+    }
+
+    /** @return the id at the index, or null if the index is free. */
+    public String getId(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+        return ids[index];
+    }
+
+    /**
+     * Frees the index of the id to be reused for another id. The caller must first drop whatever
+     * it keeps under that index.
+     * @return the index that was freed, or -1 if the id wasn't interned.
+     */
+    public synchronized int release(String id) {
+        Integer index = indices.remove(key(id));
+        if (index == null) return -1;
+        ids[index] = null;
+        free.set(index);
+        return index;
+    }
+
+    /** Releases every id and starts the indices from 0 again. */
+    public synchronized void clear() {
+        indices.clear();
+        Arrays.fill(ids, 0, size, null);
+        size = 0;
+        free.clear();
+    }
+
+    /** @return one more than the highest index handed out, including free ones. */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of ids interned and not released. */
+    public int count() {
+        return indices.size();
+    }
+}
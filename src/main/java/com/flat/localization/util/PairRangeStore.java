@@ -0,0 +1,398 @@
+package com.flat.localization.util;
+
+import com.flat.localization.Config;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Running statistics of the ranges measured between each unordered pair of nodes: count, mean,
+ * variance, min, max and the time of the last range. Both directions (A's range to B and B's range
+ * to A) go to the same pair. Each range is folded in in O(1) and not kept. The mean and variance
+ * are weighted towards recent ranges (see {@link Config#PAIR_RANGE_WEIGHT}) so they follow a node
+ * that moves, and {@link #expire(long)} forgets pairs that have had no ranges for a while.
+ * <p>
+ * Pairs are keyed by the interned indices of the two nodes packed into one long, lesser index
+ * first. The keys are split over lock stripes, each an open addressing table of primitive arrays,
+ * so threads adding ranges for different pairs rarely wait on each other. Thread safe.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class PairRangeStore {
+    /** Indices of the nodes in any pair. Ids are only released while every stripe is locked. */
+    private final NodeIdInterner ids = new NodeIdInterner();
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final double weight;
+    /** Bumped after every change, see {@link #getVersion()}. */
+    private final AtomicInteger version = new AtomicInteger();
+
+    public PairRangeStore() {
+        this(16, Config.PAIR_RANGE_WEIGHT);
+    }
+
+    /**
+     * @param stripeCount rounded up to a power of two.
+     * @param weight the least weight of each new range in its pair's mean and variance; the first
+     * 1 / weight ranges are weighted equally.
+     */
+    public PairRangeStore(int stripeCount, double weight) {
+        int count = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; ++i) {
+            stripes[i] = new Stripe();
+        }
+        stripeMask = count - 1;
+        this.weight = weight;
+    }
+
+    /** The interned indices of the nodes, which are reused for other nodes after {@link #expire(long)}. */
+    public NodeIdInterner getIds() { return ids; }
+
+    /**
+     * Incremented after every change to the pairs, so results computed from their means can be
+     * cached by it. Read it before reading the means, so a change made meanwhile makes the result
+     * look older than it is rather than newer.
+     */
+    public int getVersion() { return version.get(); }
+
+    /** @return the key of the unordered pair of interned nodes a and b. */
+    public static long pairKey(int a, int b) {
+        return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+    }
+    public static int firstOf(long key) { return (int) (key >>> 32); }
+    public static int secondOf(long key) { return (int) key; }
+
+    private Stripe stripeFor(long hash) {
+        return stripes[(int) (hash >>> 32) & stripeMask];
+    }
+
+    /** Adds a range measured between the two nodes. Ranges that aren't positive are ignored. */
+    public void add(String a, String b, float range, long time) {
+        if (!(range > 0) || Float.isInfinite(range)) return;
+        while (true) {
+            int ia = ids.intern(a), ib = ids.intern(b);
+            if (ia == ib) return;
+            long key = pairKey(ia, ib);
+            long hash = ResultCache.mix(key);
+            Stripe stripe = stripeFor(hash);
+            synchronized (stripe) {
+                // expire() can't release ids while this stripe is locked, so if they still have
+                // these indices they keep them until the range is added
+                if (ids.indexOf(a) == ia && ids.indexOf(b) == ib) {
+                    stripe.add(key, (int) hash, range, time, weight);
+                    version.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a range between interned nodes. The caller must make sure the indices aren't released
+     * by {@link #expire(long)} meanwhile.
+     */
+    public void add(int a, int b, float range, long time) {
+        if (a == b || !(range > 0) || Float.isInfinite(range)) return;
+        long key = pairKey(a, b);
+        long hash = ResultCache.mix(key);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            stripe.add(key, (int) hash, range, time, weight);
+            version.incrementAndGet();
+        }
+    }
+
+    /** @return true and fills out if the pair has any ranges, otherwise false. */
+    public boolean get(String a, String b, Stats out) {
+        int ia = ids.indexOf(a), ib = ids.indexOf(b);
+        if (ia < 0 || ib < 0 || ia == ib) return false;
+        long key = pairKey(ia, ib);
+        long hash = ResultCache.mix(key);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            return ids.indexOf(a) == ia && ids.indexOf(b) == ib && stripe.get(key, (int) hash, out);
+        }
+    }
+
+    public boolean get(int a, int b, Stats out) {
+        if (a < 0 || b < 0 || a == b) return false;
+        long key = pairKey(a, b);
+        long hash = ResultCache.mix(key);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            return stripe.get(key, (int) hash, out);
+        }
+    }
+
+    /** @return the weighted mean range between the nodes, or 0 if there are none (like {@link SymmetricRangeMatrix#get(int, int)}). */
+    public float getMean(String a, String b) {
+        int ia = ids.indexOf(a), ib = ids.indexOf(b);
+        if (ia < 0 || ib < 0 || ia == ib) return 0;
+        long key = pairKey(ia, ib);
+        long hash = ResultCache.mix(key);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            if (ids.indexOf(a) != ia || ids.indexOf(b) != ib) return 0;
+            int slot = stripe.find(key, (int) hash);
+            return slot < 0 ? 0 : (float) stripe.mean[slot];
+        }
+    }
+
+    public float getMean(int a, int b) {
+        if (a < 0 || b < 0 || a == b) return 0;
+        long key = pairKey(a, b);
+        long hash = ResultCache.mix(key);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            int slot = stripe.find(key, (int) hash);
+            return slot < 0 ? 0 : (float) stripe.mean[slot];
+        }
+    }
+
+    /** Forgets the pair's ranges, e.g. when one of the nodes has moved. */
+    public boolean remove(String a, String b) {
+        int ia = ids.indexOf(a), ib = ids.indexOf(b);
+        if (ia < 0 || ib < 0 || ia == ib) return false;
+        long key = pairKey(ia, ib);
+        long hash = ResultCache.mix(key);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            if (ids.indexOf(a) == ia && ids.indexOf(b) == ib && stripe.remove(key, (int) hash)) {
+                version.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the pairs whose latest range is older than the cutoff, and releases the ids of nodes
+     * left without pairs so their indices are reused. Locks every stripe while it runs.
+     * @return the number of pairs removed.
+     */
+    public int expire(long cutoff) {
+        return expire(0, cutoff);
+    }
+
+    private int expire(int locked, long cutoff) {
+        if (locked < stripes.length) {
+            synchronized (stripes[locked]) {
+                return expire(locked + 1, cutoff);
+            }
+        }
+        BitSet used = new BitSet(ids.size());
+        int removed = 0;
+        for (Stripe stripe : stripes) {
+            removed += stripe.retainSince(cutoff, used);
+        }
+        for (int i = 0; i < ids.size(); ++i) {
+            String id = ids.getId(i);
+            if (id != null && !used.get(i)) {
+                ids.release(id);
+            }
+        }
+        if (removed > 0) {
+            version.incrementAndGet();
+        }
+        return removed;
+    }
+
+    /** @return the number of pairs with ranges. Not atomic across stripes. */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    /** A copy of one pair's statistics. Min and max are over every range, the rest favor recent ones. */
+    public static final class Stats {
+        public int count;
+        public double mean;
+        public double variance;
+        public float min, max;
+        public long time;
+
+        public double getVariance() {
+            return variance;
+        }
+
+        public double getStdDev() {
+            return Math.sqrt(getVariance());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2fm +/- %.2fm (%d ranges, %.2fm to %.2fm)", mean, getStdDev(), count, min, max);
+        }
+    }
+
+    /** Linear probing with backward shift deletion. Keys are never negative, so -1 marks a free slot. */
+    private static final class Stripe {
+        private static final long FREE = -1;
+
+        long[] keys;
+        int[] count;
+        double[] mean, variance;
+        float[] min, max;
+        long[] time;
+        int size;
+
+        Stripe() {
+            allocate(16);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, FREE);
+            count = new int[capacity];
+            mean = new double[capacity];
+            variance = new double[capacity];
+            min = new float[capacity];
+            max = new float[capacity];
+            time = new long[capacity];
+        }
+
+        int find(long key, int hash) {
+            int mask = keys.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) return slot;
+                if (keys[slot] == FREE) return -1;
+            }
+        }
+
+        void add(long key, int hash, float range, long t, double weight) {
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (keys[slot] != key && keys[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == FREE) {
+                if ((size + 1) * 3 > keys.length * 2) {
+                    grow();
+                    add(key, hash, range, t, weight);
+                    return;
+                }
+                keys[slot] = key;
+                count[slot] = 0;
+                mean[slot] = 0;
+                variance[slot] = 0;
+                min[slot] = range;
+                max[slot] = range;
+                ++size;
+            }
+            // equal weights (the plain running mean) until 1 / n falls below the least weight
+            int n = ++count[slot];
+            double w = Math.max(1.0 / n, weight);
+            double delta = range - mean[slot];
+            mean[slot] += w * delta;
+            variance[slot] = (1 - w) * (variance[slot] + w * delta * delta);
+            if (range < min[slot]) min[slot] = range;
+            if (range > max[slot]) max[slot] = range;
+            if (t > time[slot] || n == 1) time[slot] = t;
+        }
+
+        boolean get(long key, int hash, Stats out) {
+            int slot = find(key, hash);
+            if (slot < 0) return false;
+            out.count = count[slot];
+            out.mean = mean[slot];
+            out.variance = variance[slot];
+            out.min = min[slot];
+            out.max = max[slot];
+            out.time = time[slot];
+            return true;
+        }
+
+        boolean remove(long key, int hash) {
+            int slot = find(key, hash);
+            if (slot < 0) return false;
+            int mask = keys.length - 1;
+            // shift back later entries of the probe run that could have used this slot
+            int free = slot;
+            for (int i = (free + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+                int home = (int) ResultCache.mix(keys[i]) & mask;
+                if (((i - home) & mask) >= ((i - free) & mask)) {
+                    move(i, free);
+                    free = i;
+                }
+            }
+            keys[free] = FREE;
+            --size;
+            return true;
+        }
+
+        private void move(int from, int to) {
+            keys[to] = keys[from];
+            count[to] = count[from];
+            mean[to] = mean[from];
+            variance[to] = variance[from];
+            min[to] = min[from];
+            max[to] = max[from];
+            time[to] = time[from];
+        }
+
+        private void grow() {
+            rehash(keys.length * 2, Long.MIN_VALUE, null);
+        }
+
+        /**
+         * Drops the pairs without a range since the cutoff and marks both nodes of the others in used.
+         * @return the number of pairs dropped.
+         */
+        int retainSince(long cutoff, BitSet used) {
+            int before = size;
+            rehash(keys.length, cutoff, used);
+            return before - size;
+        }
+
+        private void rehash(int capacity, long cutoff, BitSet used) {
+            long[] oldKeys = keys;
+            int[] oldCount = count;
+            double[] oldMean = mean, oldVariance = variance;
+            float[] oldMin = min, oldMax = max;
+            long[] oldTime = time;
+            allocate(capacity);
+            size = 0;
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldKeys[i] == FREE || oldTime[i] < cutoff) continue;
+                int slot = (int) ResultCache.mix(oldKeys[i]) & mask;
+                while (keys[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                count[slot] = oldCount[i];
+                mean[slot] = oldMean[i];
+                variance[slot] = oldVariance[i];
+                min[slot] = oldMin[i];
+                max[slot] = oldMax[i];
+                time[slot] = oldTime[i];
+                ++size;
+                if (used != null) {
+                    used.set(firstOf(oldKeys[i]));
+                    used.set(secondOf(oldKeys[i]));
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(keys, FREE);
+            size = 0;
+        }
+    }
+}
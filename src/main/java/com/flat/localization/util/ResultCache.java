@@ -0,0 +1,110 @@
+package com.flat.localization.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small least recently used cache of computed results (e.g. coordinate systems) keyed by a
+ * 64 bit fingerprint of their inputs, with hit and miss counters. A fingerprint match is only a
+ * hit if the inputs saved with the result are equal to the caller's, so a collision can't return
+ * the result of other inputs. Results are copied going in and coming out, so callers are free to
+ * change what they get. Thread safe.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class ResultCache<V> {
+    /** Copies a result, deep enough that changing the copy leaves the original as it was. */
+    public interface Copier<V> {
+        V copy(V result);
+    }
+
+    private static final class Entry<V> {
+        final Object inputs;
+        final V result;
+        Entry(Object inputs, V result) {
+            this.inputs = inputs;
+            this.result = result;
+        }
+    }
+
+    private final int maxSize;
+    private final Copier<V> copier;
+    private final Map<Long, Entry<V>> results;
+    private long hits, misses, collisions;
+
+    public ResultCache(final int maxSize, Copier<V> copier) {
+        this.maxSize = maxSize;
+        this.copier = copier;
+        results = new LinkedHashMap<Long, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry<V>> eldest) {
+                return size() > ResultCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param inputs a snapshot of what the result is computed from, compared with equals().
+     * @return a copy of the cached result, or null (counted as a miss) if there is none.
+     */
+    public V get(long fingerprint, Object inputs) {
+        Entry<V> entry;
+        synchronized (this) {
+            entry = results.get(fingerprint);
+            if (entry != null && !entry.inputs.equals(inputs)) {
+                ++collisions;
+                entry = null;
+            }
+            if (entry == null) {
+                ++misses;
+            } else {
+                ++hits;
+            }
+        }
+        // cached results are never changed, so they can be copied outside the lock
+        return entry == null ? null : copier.copy(entry.result);
+    }
+
+    /** Caches a copy of the result with the snapshot of its inputs, which must not be changed afterwards. */
+    public void put(long fingerprint, Object inputs, V result) {
+        if (result == null || inputs == null) return;
+        Entry<V> entry = new Entry<V>(inputs, copier.copy(result));
+        synchronized (this) {
+            results.put(fingerprint, entry);
+        }
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        hits = misses = collisions = 0;
+    }
+
+    public synchronized int size() { return results.size(); }
+    public int getMaxSize() { return maxSize; }
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    /** Fingerprint matches whose inputs differed, counted as misses as well. */
+    public synchronized long getCollisions() { return collisions; }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultCache[size=" + results.size() + "/" + maxSize + ", hits=" + hits + ", misses=" + misses + ", collisions=" + collisions + "]";
+    }
+
+    /** The 64 bit finalizer of SplitMix64, to spread the bits of a hash. */
+    public static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    /** Fingerprint of a single range. Sum these to get an order independent fingerprint of a table. */
+    public static long fingerprint(String id, float range) {
+        return mix(((long) (id == null ? 0 : id.hashCode()) << 32) ^ (Float.floatToIntBits(range) & 0xffffffffL));
+    }
+
+    /** Combine fingerprints in order (e.g. tables keyed by node id in a sorted map). */
+    public static long combine(long h, long next) {
+        return mix(h * 31 + next);
+    }
+}
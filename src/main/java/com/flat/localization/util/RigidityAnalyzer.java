@@ -0,0 +1,159 @@
+package com.flat.localization.util;
+
+import java.util.Arrays;
+
+/**
+ * Decides which nodes can be placed relative to each other from the structure of the range graph,
+ * using the 2D (2,3) pebble game of Jacobs and Hendrickson. Every node has two pebbles (its two
+ * degrees of freedom) and a range is independent if four pebbles can be gathered on its ends, in
+ * which case one of them is used to cover it. A node is in the rigid component of a pair of nodes
+ * if no pebble can be gathered on it while three are pinned on the pair, meaning it cannot move
+ * relative to them.
+ * <p>
+ * Building the analyzer is O(n * m) for n nodes and m ranges, and each rigid component is O(n^2).
+ * This is combinatorial (generic) rigidity: it doesn't catch nodes that are placed in a line.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class RigidityAnalyzer {
+    private final int size;
+    private final int[] pebbles;
+    /** Each node covers at most two ranges, directed away from it. -1 if unused. */
+    private final int[] out1, out2;
+
+    // DFS buffers
+    private final int[] stack, from;
+    private final int[] seen;
+    private int stamp;
+
+    private int independent;
+
+    public RigidityAnalyzer(int size) {
+        this.size = size;
+        pebbles = new int[size];
+        Arrays.fill(pebbles, 2);
+        out1 = new int[size];
+        out2 = new int[size];
+        Arrays.fill(out1, -1);
+        Arrays.fill(out2, -1);
+        stack = new int[size];
+        from = new int[size];
+        seen = new int[size];
+    }
+
+    /** Adds every pair that has a range in the matrix. */
+    public RigidityAnalyzer(SymmetricRangeMatrix ranges) {
+        this(ranges.size());
+        for (int a = 1; a < size; ++a) {
+            for (int b = 0; b < a; ++b) {
+                if (ranges.get(a, b) > 0) {
+                    addRange(a, b);
+                }
+            }
+        }
+    }
+
+    public int size() { return size; }
+    /** @return the number of independent ranges; 2n - 3 of them make all n nodes rigid. */
+    public int getIndependentCount() { return independent; }
+
+    /** @return true if the range is independent, or false if it adds nothing to rigidity. */
+    public boolean addRange(int a, int b) {
+        if (a == b) return false;
+        while (pebbles[a] < 2 && gather(a, b, -1)) {}
+        while (pebbles[b] < 2 && gather(b, a, -1)) {}
+        if (pebbles[a] + pebbles[b] < 4) {
+            return false;
+        }
+        cover(a, b);
+        ++independent;
+        return true;
+    }
+
+    /**
+     * @return which nodes are in the rigid component containing nodes a and b, which must share a
+     * range. Nodes without any range are never included.
+     */
+    public boolean[] findRigidComponent(int a, int b) {
+        boolean[] rigid = new boolean[size];
+        if (a == b || a < 0 || b < 0) return rigid;
+
+        // Pin three pebbles on the pair.
+        while (pebbles[a] < 2 && gather(a, b, -1)) {}
+        while (pebbles[a] + pebbles[b] < 3 && gather(b, a, -1)) {}
+        if (pebbles[a] + pebbles[b] < 3) return rigid;
+        rigid[a] = rigid[b] = true;
+
+        for (int w = 0; w < size; ++w) {
+            if (rigid[w] || pebbles[w] > 0) continue;
+            if (!gather(w, a, b)) {
+                // nothing the search reached has a free pebble, so all of it is rigid with the pair
+                for (int i = 0; i < size; ++i) {
+                    if (seen[i] == stamp) {
+                        rigid[i] = true;
+                    }
+                }
+            }
+        }
+        return rigid;
+    }
+
+    /**
+     * Moves a free pebble to node v by searching along covered ranges and reversing the path.
+     * Pebbles on v and the locked nodes can't be taken.
+     * @return false if no pebble could be reached.
+     */
+    private boolean gather(int v, int lock1, int lock2) {
+        ++stamp;
+        int top = 0;
+        stack[top++] = v;
+        seen[v] = stamp;
+        from[v] = -1;
+        while (top > 0) {
+            int u = stack[--top];
+            if (u != v && u != lock1 && u != lock2 && pebbles[u] > 0) {
+                // reverse the path from v to u, moving the pebble back along it
+                --pebbles[u];
+                ++pebbles[v];
+                for (int x = u; from[x] >= 0; x = from[x]) {
+                    int p = from[x];
+                    uncover(p, x);
+                    cover(x, p);
+                    ++pebbles[x];   // cover() used one of x's pebbles, uncover() gave one to p
+                    --pebbles[p];
+                }
+                return true;
+            }
+            if (out1[u] >= 0 && seen[out1[u]] != stamp) {
+                seen[out1[u]] = stamp;
+                from[out1[u]] = u;
+                stack[top++] = out1[u];
+            }
+            if (out2[u] >= 0 && seen[out2[u]] != stamp) {
+                seen[out2[u]] = stamp;
+                from[out2[u]] = u;
+                stack[top++] = out2[u];
+            }
+        }
+        return false;
+    }
+
+    /** Direct a range from a to b, using one of a's pebbles. */
+    private void cover(int a, int b) {
+        if (out1[a] < 0) {
+            out1[a] = b;
+        } else {
+            out2[a] = b;
+        }
+        --pebbles[a];
+    }
+
+    private void uncover(int a, int b) {
+        if (out1[a] == b) {
+            out1[a] = -1;
+        } else {
+            out2[a] = -1;
+        }
+        ++pebbles[a];
+    }
+}
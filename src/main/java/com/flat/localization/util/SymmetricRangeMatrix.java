@@ -0,0 +1,64 @@
+package com.flat.localization.util;
+
+import java.util.Arrays;
+
+/**
+ * Ranges between interned node indices, stored as a packed lower triangle of primitive floats so
+ * each pair is kept once. Each pair can be given a range from both directions (A's range to B and
+ * B's range to A) and they are resolved the same way the range table scans do: when the first range
+ * given is positive the lesser of the two is kept, otherwise the second replaces it.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class SymmetricRangeMatrix {
+    private int size;
+    private float[] ranges = new float[0];
+
+    /** Holds ranges between nodes with indices in [0, size). */
+    public SymmetricRangeMatrix(int size) {
+        reset(size);
+    }
+
+    /** Removes every range and resizes to hold [0, size), reusing the storage if it is big enough. */
+    public void reset(int size) {
+        this.size = size;
+        int length = size * (size + 1) / 2;
+        if (ranges.length < length) {
+            ranges = new float[length];
+        }
+        Arrays.fill(ranges, 0, length, Float.NaN);
+    }
+
+    public int size() { return size; }
+
+    private static int index(int a, int b) {
+        return a >= b ? a * (a + 1) / 2 + b : b * (b + 1) / 2 + a;
+    }
+
+    /** Add a range measured in one direction between a and b. */
+    public void add(int a, int b, float range) {
+        int i = index(a, b);
+        float current = ranges[i];
+        if (Float.isNaN(current) || current <= 0) {
+            ranges[i] = range;
+        } else if (range < current) {
+            ranges[i] = range;
+        }
+    }
+
+    /** Replaces the range between a and b, whatever was added from either direction. */
+    public void set(int a, int b, float range) {
+        ranges[index(a, b)] = range;
+    }
+
+    /** @return the range between a and b, or 0 if neither direction has one. */
+    public float get(int a, int b) {
+        if (a < 0 || b < 0 || a >= size || b >= size) return 0;
+        float range = ranges[index(a, b)];
+        return Float.isNaN(range) ? 0 : range;
+    }
+
+    public boolean has(int a, int b) {
+        return a >= 0 && b >= 0 && a < size && b < size && !Float.isNaN(ranges[index(a, b)]);
+    }
+}
@@ -0,0 +1,53 @@
+package com.flat.localization.util;
+
+/**
+ * Disjoint sets over the ints 0 to n-1 (e.g. interned node ids), with union by size and path
+ * halving, so grouping nodes into connected components is nearly linear in the number of edges.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class UnionFind {
+    private final int[] parent;
+    private final int[] size;
+    private int count;
+
+    public UnionFind(int n) {
+        parent = new int[n];
+        size = new int[n];
+        for (int i = 0; i < n; ++i) {
+            parent[i] = i;
+            size[i] = 1;
+        }
+        count = n;
+    }
+
+    /** @return the representative of the set containing i. */
+    public int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /** @return true if a and b were in different sets. */
+    public boolean union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a == b) return false;
+        if (size[a] < size[b]) {
+            int t = a;
+            a = b;
+            b = t;
+        }
+        parent[b] = a;
+        size[a] += size[b];
+        --count;
+        return true;
+    }
+
+    /** @return the number of elements in the set containing i. */
+    public int sizeOf(int i) { return size[find(i)]; }
+    /** @return the number of disjoint sets. */
+    public int count() { return count; }
+}
@@ -0,0 +1,156 @@
+package com.flat.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Byte buffers for compact binary formats, such as the aa wire format and scan traces: lengths,
+ * counts and times as varints (zigzag for signed ones) and floats as four little endian bytes.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class Bytes {
+    private static final String TAG = Bytes.class.getSimpleName();
+
+    private Bytes() {}
+
+    /** A growable byte buffer with little endian varints and floats. */
+    public static final class Output {
+        private byte[] bytes;
+        private int size;
+
+        public Output(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] bigger = new byte[Math.max(bytes.length * 2, size + extra)];
+                System.arraycopy(bytes, 0, bigger, 0, size);
+                bytes = bigger;
+            }
+        }
+
+        public void writeByte(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        public void writeBytes(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        public void writeVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        public void writeSignedVarint(long v) {
+            writeVarint((v << 1) ^ (v >> 63));
+        }
+
+        public void writeFloat(float f) {
+            ensure(4);
+            int bits = Float.floatToIntBits(f);
+            bytes[size++] = (byte) bits;
+            bytes[size++] = (byte) (bits >> 8);
+            bytes[size++] = (byte) (bits >> 16);
+            bytes[size++] = (byte) (bits >> 24);
+        }
+
+        public byte[] toByteArray() {
+            byte[] result = new byte[size];
+            System.arraycopy(bytes, 0, result, 0, size);
+            return result;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** Empties the buffer to reuse it. */
+        public void clear() {
+            size = 0;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+    }
+
+    /** Reads what {@link Output} writes. Throws IndexOutOfBoundsException when out of bytes. */
+    public static final class Input {
+        private final byte[] bytes;
+        private int pos;
+
+        public Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private void check(int count) {
+            if (count < 0 || pos + count > bytes.length) {
+                throw new IndexOutOfBoundsException("Need " + count + " bytes at " + pos + " of " + bytes.length);
+            }
+        }
+
+        /** Reads length bytes as a string in the charset. */
+        public String readString(int length, Charset charset) {
+            check(length);
+            String s = new String(bytes, pos, length, charset);
+            pos += length;
+            return s;
+        }
+
+        public int readByte() {
+            check(1);
+            return bytes[pos++];
+        }
+
+        public void skip(int count) {
+            check(count);
+            pos += count;
+        }
+
+        public long readVarint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                check(1);
+                byte b = bytes[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IndexOutOfBoundsException("Varint too long at " + pos);
+        }
+
+        /** A count or length, which can't be more than the bytes left. */
+        public int readCount() {
+            long v = readVarint();
+            check((int) Math.min(v, Integer.MAX_VALUE));
+            return (int) v;
+        }
+
+        public boolean hasRemaining() {
+            return pos < bytes.length;
+        }
+
+        public long readSignedVarint() {
+            long v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        public float readFloat() {
+            check(4);
+            int bits = (bytes[pos] & 0xFF) | (bytes[pos + 1] & 0xFF) << 8
+                    | (bytes[pos + 2] & 0xFF) << 16 | (bytes[pos + 3] & 0xFF) << 24;
+            pos += 4;
+            return Float.intBitsToFloat(bits);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.flat.util;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One stage of scan processing: a queue drained in order by a thread of its own, so a broadcast
+ * receiver only has to hand over a scan's results and the main thread stays responsive however
+ * often scans arrive. Stages are chained by offering to the next stage from a handler.
+ * <p>
+ * A bounded stage drops the oldest item to make room when its queue is full, which suits scans
+ * where a newer one supersedes an older one that hasn't been processed yet. An {@link #UNBOUNDED}
+ * stage keeps every item, for items that don't supersede each other, like discovered devices.
+ * Drops and the time items spend queued and being handled are counted, see {@link #getStats()}.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class ScanStage<T> {
+    private static final String TAG = ScanStage.class.getSimpleName();
+
+    public interface Handler<T> {
+        /** Called on the stage's thread, one item at a time. */
+        void handle(T item);
+    }
+
+    /** A capacity for stages that never drop items. */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final String name;
+    private final Handler<T> handler;
+    private final int capacity;
+    private final long slowHandleNanos;
+    private final ExecutorService executor;
+
+    // guarded by this
+    private final ArrayDeque<T> queue;
+    private final ArrayDeque<Long> queuedAt;
+    private boolean scheduled;
+    private final Stats stats = new Stats();
+
+    /**
+     * @param capacity items queued before the oldest is dropped, or {@link #UNBOUNDED}.
+     * @param slowHandleMs items taking longer than this to handle are logged.
+     */
+    public ScanStage(final String name, Handler<T> handler, int capacity, int slowHandleMs) {
+        this.name = name;
+        this.handler = handler;
+        this.capacity = Math.max(1, capacity);
+        slowHandleNanos = slowHandleMs * 1000000L;
+        queue = new ArrayDeque<T>(Math.min(this.capacity, 16));
+        queuedAt = new ArrayDeque<Long>(Math.min(this.capacity, 16));
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG + "-" + name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Queues the item for the stage's thread, dropping the oldest queued item if a bounded queue is full.
+     * @return false if an item was dropped.
+     */
+    public boolean offer(T item) {
+        boolean dropped = false;
+        long drops;
+        synchronized (this) {
+            ++stats.offered;
+            if (queue.size() >= capacity) {
+                queue.poll();
+                queuedAt.poll();
+                ++stats.dropped;
+                dropped = true;
+            }
+            drops = stats.dropped;
+            queue.add(item);
+            queuedAt.add(System.nanoTime());
+            if (!scheduled) {
+                scheduled = true;
+                executor.execute(drain);
+            }
+        }
+        // log the 1st, 2nd, 4th... drop rather than flood the log while the stage is behind
+        if (dropped && (drops & (drops - 1)) == 0) {
+            Log.w(TAG, name + " is falling behind, " + drops + " items dropped");
+        }
+        return !dropped;
+    }
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                T item;
+                long latency;
+                synchronized (ScanStage.this) {
+                    item = queue.poll();
+                    if (item == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    latency = System.nanoTime() - queuedAt.poll();
+                }
+                long start = System.nanoTime();
+                try {
+                    handler.handle(item);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, name + " failed to handle " + item, e);
+                }
+                long handle = System.nanoTime() - start;
+                synchronized (ScanStage.this) {
+                    ++stats.handled;
+                    stats.totalLatencyNanos += latency;
+                    if (latency > stats.maxLatencyNanos) stats.maxLatencyNanos = latency;
+                    stats.totalHandleNanos += handle;
+                    if (handle > stats.maxHandleNanos) stats.maxHandleNanos = handle;
+                }
+                if (handle > slowHandleNanos) {
+                    Log.w(TAG, String.format("%s took %.1fms (waited %.1fms)", name, handle / 1e6, latency / 1e6));
+                }
+            }
+        }
+    };
+
+    /** @return a copy of the stage's counters. */
+    public synchronized Stats getStats() {
+        Stats out = new Stats();
+        out.offered = stats.offered;
+        out.handled = stats.handled;
+        out.dropped = stats.dropped;
+        out.totalLatencyNanos = stats.totalLatencyNanos;
+        out.maxLatencyNanos = stats.maxLatencyNanos;
+        out.totalHandleNanos = stats.totalHandleNanos;
+        out.maxHandleNanos = stats.maxHandleNanos;
+        out.queued = queue.size();
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getStats();
+    }
+
+    /** Counters of one stage. Latency is from offering an item to the start of handling it. */
+    public static final class Stats {
+        public long offered, handled, dropped;
+        public long totalLatencyNanos, maxLatencyNanos;
+        public long totalHandleNanos, maxHandleNanos;
+        public int queued;
+
+        public double getMeanLatencyMillis() {
+            return handled == 0 ? 0 : totalLatencyNanos / 1e6 / handled;
+        }
+
+        public double getMeanHandleMillis() {
+            return handled == 0 ? 0 : totalHandleNanos / 1e6 / handled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d handled, %d dropped, %d queued; latency %.2fms mean, %.2fms max; handling %.2fms mean, %.2fms max",
+                    handled, dropped, queued, getMeanLatencyMillis(), maxLatencyNanos / 1e6,
+                    getMeanHandleMillis(), maxHandleNanos / 1e6);
+        }
+    }
+}
@@ -1,89 +1,162 @@
 package com.flat.wifi;
 
-import android.net.wifi.ScanResult;
-
 import com.flat.aa.Config;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
 /**
+ * The results of one BSSID over repeated scans. Only the latest {@link Config#SCAN_MIN_SCANS}
+ * levels are kept, in a ring buffer of primitives, with a monotonic deque of the ones that can
+ * still be the window's max, so adding a result and finding the max are O(1) amortized without
+ * boxing or growing. An optional {@link RssiEstimator} is also fed every result, see
+ * {@link #estimatedRssi()}.
+ *
  * Created by Jacob Phillips.
  */
 public class AggregateScanResult {
     public String bssid;
     public String ssid;
     public int freq;
-    public List<Integer> rssi = new ArrayList<Integer>();
-    public List<Long> time = new ArrayList<Long>();
 
-    boolean add(ScanResult result) {
+    /** The latest levels and times, by sequence number modulo the window. */
+    private final int[] rssi;
+    private final long[] time;
+    /**
+     * Sequence numbers of the results that are the max of some suffix of the window: oldest
+     * first, with levels strictly decreasing, so the head is the window's max.
+     */
+    private final int[] maxQueue;
+    private int maxHead, maxSize;
+    /** Results ever added, also the next sequence number. */
+    private int count;
+    private long firstTime = Long.MAX_VALUE, lastTime = Long.MIN_VALUE;
+
+    /** Fed each result, or null to use {@link #effectiveRssi()}. */
+    private RssiEstimator estimator;
+    private int estimatorCount;
+
+    public AggregateScanResult() {
+        this(Config.SCAN_MIN_SCANS, null);
+    }
+
+    /**
+     * @param window the most recent results considered by {@link #effectiveRssi()}.
+     * @param estimator for {@link #estimatedRssi()}, or null to use the window's max.
+     */
+    public AggregateScanResult(int window, RssiEstimator estimator) {
+        this.estimator = estimator;
+        window = Math.max(1, window);
+        rssi = new int[window];
+        time = new long[window];
+        maxQueue = new int[window];
+    }
+
+    boolean add(ScanRecord result) {
         if (bssid == null) {
-            bssid = result.BSSID;
-            ssid = result.SSID;
-            freq = result.frequency;
+            bssid = result.bssid;
+            ssid = result.ssid;
+            freq = result.freq;
         }
-        if (bssid.equals(result.BSSID)) {
-            rssi.add(result.level);
-            time.add(result.timestamp);
+        if (bssid.equals(result.bssid)) {
+            add(result.rssi, result.timestamp);
             return true;
         }
         return false;
     }
 
+    /** @param timestamp microseconds, as {@link ScanRecord#timestamp}, not decreasing. */
+    void add(int level, long timestamp) {
+        // scans can return the same cached result again, which would weigh it twice
+        if (estimator != null && (count == 0 || timestamp != getLatestTime())) {
+            estimator.add(level, timestamp);
+            ++estimatorCount;
+        }
+
+        int window = rssi.length;
+        int seq = count++;
+        rssi[seq % window] = level;
+        time[seq % window] = timestamp;
+        if (timestamp < firstTime) firstTime = timestamp;
+        if (timestamp > lastTime) lastTime = timestamp;
+
+        // the result leaving the count window
+        if (maxSize > 0 && maxQueue[maxHead] <= seq - window) {
+            maxHead = (maxHead + 1) % window;
+            --maxSize;
+        }
+        // older results that aren't greater can never be the max again
+        while (maxSize > 0 && rssi[maxQueue[(maxHead + maxSize - 1) % window] % window] <= level) {
+            --maxSize;
+        }
+        maxQueue[(maxHead + maxSize) % window] = seq;
+        ++maxSize;
+    }
+
+    /** @return the number of results ever added. */
     public int size() {
-        return rssi.size();
+        return count;
+    }
+
+    /** @return the latest level, or 0 if there is none. */
+    public int getLatestRssi() {
+        return count == 0 ? 0 : rssi[(count - 1) % rssi.length];
     }
 
+    /** @return the latest time in microseconds, or 0 if there is none. */
+    public long getLatestTime() {
+        return count == 0 ? 0 : time[(count - 1) % time.length];
+    }
 
     /** Uses the max rssi from up to the {@link Config#SCAN_MIN_SCANS} most recent results,
      * but they must be less than {@link Config#SCAN_CUTOFF_AGE_US} old. */
     public int effectiveRssi() {
-        if (rssi.size() == 0) return 0;
-
-        long cutoff = (System.nanoTime() / 1000) - Config.SCAN_CUTOFF_AGE_US;
-        int index;
-        for (index=0; index<time.size(); ++index) {
-            if (time.get(index) > cutoff) {
-                break;
-            }
-        }
+        return effectiveRssi(System.nanoTime() / 1000);
+    }
 
-        if (index < rssi.size() - Config.SCAN_MIN_SCANS) {
-            index = rssi.size() - Config.SCAN_MIN_SCANS;
+    /**
+     * @param nowUs the current time in microseconds, not decreasing between calls since results
+     * that are too old are discarded from the max.
+     * @return the max level of the window's results newer than the cutoff, or the latest level if
+     * they are all older.
+     */
+    public int effectiveRssi(long nowUs) {
+        if (count == 0) return 0;
+        int window = rssi.length;
+        long cutoff = nowUs - Config.SCAN_CUTOFF_AGE_US;
+        // times don't decrease, so every result before one that is too old is too
+        while (maxSize > 0 && time[maxQueue[maxHead] % window] <= cutoff) {
+            maxHead = (maxHead + 1) % window;
+            --maxSize;
         }
+        return maxSize == 0 ? getLatestRssi() : rssi[maxQueue[maxHead] % window];
+    }
 
-        List<Integer> relevant = rssi.subList(index, rssi.size());
+    /** @return the estimator fed each result, or null. */
+    public RssiEstimator getEstimator() { return estimator; }
 
-        if (relevant.size() == 0) {
-            return rssi.get(rssi.size() - 1);
-        } else {
-            Collections.sort(relevant);
-            return relevant.get(relevant.size() - 1);
-        }
+    /** Replaces the estimator. It only sees results added from now on. */
+    public void setEstimator(RssiEstimator estimator) {
+        this.estimator = estimator;
+        estimatorCount = 0;
+    }
+
+    /**
+     * @return the estimator's level, rounded, or {@link #effectiveRssi()} if there is no estimator
+     * or it hasn't had any results yet.
+     */
+    public int estimatedRssi() {
+        return estimatedRssi(System.nanoTime() / 1000);
+    }
+
+    /** @param nowUs as for {@link #effectiveRssi(long)}. */
+    public int estimatedRssi(long nowUs) {
+        if (estimator == null || estimatorCount == 0) return effectiveRssi(nowUs);
+        return Math.round(estimator.estimate());
     }
 
     public long elapsedTime() {
-        List<Long> tmp = new ArrayList<Long>(time);
-        Collections.sort(tmp);
-        return tmp.get(tmp.size()-1) - tmp.get(0);
+        return count == 0 ? 0 : lastTime - firstTime;
     }
 
     public float resultsPerMinute() {
-        return 60f * ((float)rssi.size() / ((int)elapsedTime() / 1000f));
+        return 60f * ((float)count / ((int)elapsedTime() / 1000f));
     }
-
-//    public int medianRssi() {
-//        int[] tmp = ArrayUtils.toPrimitive(rssi.toArray(new Integer[rssi.size()]));
-//        return Statistics.getMedian(tmp);
-//    }
-//    public int meanRssi() {
-//        int[] tmp = ArrayUtils.toPrimitive(rssi.toArray(new Integer[rssi.size()]));
-//        return Statistics.getMean(tmp);
-//    }
-//    public int stdDevRssi() {
-//        int[] tmp = ArrayUtils.toPrimitive(rssi.toArray(new Integer[rssi.size()]));
-//        return Statistics.getStdDev(tmp);
-//    }
 }
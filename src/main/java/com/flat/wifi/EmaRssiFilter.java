@@ -0,0 +1,39 @@
+package com.flat.wifi;
+
+/**
+ * An exponential moving average of the levels, weighting each new result by alpha.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class EmaRssiFilter implements RssiEstimator {
+    public static final String NAME = "ema";
+
+    private final double alpha;
+    private double estimate;
+    private boolean started;
+
+    /** @param alpha in (0, 1], higher follows new results more closely. */
+    public EmaRssiFilter(double alpha) {
+        this.alpha = alpha;
+    }
+
+    @Override
+    public void add(int level, long timeUs) {
+        if (!started) {
+            estimate = level;
+            started = true;
+        } else {
+            estimate += alpha * (level - estimate);
+        }
+    }
+
+    @Override
+    public float estimate() {
+        return (float) estimate;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
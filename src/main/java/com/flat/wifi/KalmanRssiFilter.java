@@ -0,0 +1,59 @@
+package com.flat.wifi;
+
+/**
+ * A one dimensional Kalman filter for a level that drifts slowly: the variance of the estimate
+ * grows with the time since the last result and shrinks with each result by how noisy results
+ * are.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class KalmanRssiFilter implements RssiEstimator {
+    public static final String NAME = "kalman";
+
+    private final double processNoise, measurementNoise;
+    private double estimate, variance;
+    private long lastTimeUs;
+    private boolean started;
+
+    /**
+     * @param processNoise how much the level drifts, in dB^2 per second.
+     * @param measurementNoise the variance of one result around the level, in dB^2.
+     */
+    public KalmanRssiFilter(double processNoise, double measurementNoise) {
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    @Override
+    public void add(int level, long timeUs) {
+        if (!started) {
+            estimate = level;
+            variance = measurementNoise;
+            lastTimeUs = timeUs;
+            started = true;
+            return;
+        }
+        // predict: the level may have drifted since the last result
+        variance += processNoise * Math.max(0, timeUs - lastTimeUs) / 1e6;
+        lastTimeUs = timeUs;
+        // update
+        double gain = variance / (variance + measurementNoise);
+        estimate += gain * (level - estimate);
+        variance *= 1 - gain;
+    }
+
+    @Override
+    public float estimate() {
+        return (float) estimate;
+    }
+
+    /** @return the variance of the estimate, in dB^2. */
+    public double getVariance() {
+        return variance;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
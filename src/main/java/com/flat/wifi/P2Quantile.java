@@ -0,0 +1,122 @@
+package com.flat.wifi;
+
+/**
+ * Estimates a quantile (e.g. 0.5 for the median) of all the levels seen with the P-square algorithm of
+ * Jain and Chlamtac, which keeps five markers (the min, the max, the quantile and two between)
+ * and moves them with piecewise parabolic interpolation as results arrive, instead of keeping
+ * and sorting the results.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class P2Quantile implements RssiEstimator {
+    public static final String MEDIAN = "median";
+
+    private final double p;
+    /** Marker heights, and until there are five results the results themselves, sorted. */
+    private final double[] q = new double[5];
+    /** Actual and desired marker positions, from 0. */
+    private final int[] n = new int[5];
+    private final double[] desired = new double[5];
+    private final double[] increment;
+    private int count;
+
+    /** @param p the quantile, in [0, 1]. */
+    public P2Quantile(double p) {
+        this.p = p;
+        increment = new double[] {0, p / 2, p, (1 + p) / 2, 1};
+    }
+
+    public double getQuantile() {
+        return p;
+    }
+
+    @Override
+    public void add(int level, long timeUs) {
+        add(level);
+    }
+
+    public void add(double x) {
+        if (count < 5) {
+            // insertion sort the first results
+            int i = count++;
+            while (i > 0 && q[i - 1] > x) {
+                q[i] = q[i - 1];
+                --i;
+            }
+            q[i] = x;
+            if (count == 5) {
+                for (int j = 0; j < 5; ++j) {
+                    n[j] = j;
+                }
+                desired[0] = 0;
+                desired[1] = 2 * p;
+                desired[2] = 4 * p;
+                desired[3] = 2 + 2 * p;
+                desired[4] = 4;
+            }
+            return;
+        }
+        ++count;
+
+        // the cell the result falls in, extending the min or max
+        int k;
+        if (x < q[0]) {
+            q[0] = x;
+            k = 0;
+        } else if (x >= q[4]) {
+            if (x > q[4]) q[4] = x;
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= q[k + 1]) {
+                ++k;
+            }
+        }
+        for (int i = k + 1; i < 5; ++i) {
+            ++n[i];
+        }
+        for (int i = 0; i < 5; ++i) {
+            desired[i] += increment[i];
+        }
+
+        // move the middle markers back toward their desired positions
+        for (int i = 1; i < 4; ++i) {
+            double d = desired[i] - n[i];
+            if ((d >= 1 && n[i + 1] - n[i] > 1) || (d <= -1 && n[i - 1] - n[i] < -1)) {
+                int s = d > 0 ? 1 : -1;
+                double height = parabolic(i, s);
+                if (q[i - 1] < height && height < q[i + 1]) {
+                    q[i] = height;
+                } else {
+                    q[i] += s * (q[i + s] - q[i]) / (n[i + s] - n[i]);
+                }
+                n[i] += s;
+            }
+        }
+    }
+
+    private double parabolic(int i, int s) {
+        return q[i] + (double) s / (n[i + 1] - n[i - 1])
+                * ((n[i] - n[i - 1] + s) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+                + (n[i + 1] - n[i] - s) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+    }
+
+    public double getValue() {
+        if (count == 0) return 0;
+        if (count < 5) {
+            // exact, from the sorted results
+            return q[(int) Math.round(p * (count - 1))];
+        }
+        return q[2];
+    }
+
+    @Override
+    public float estimate() {
+        return (float) getValue();
+    }
+
+    @Override
+    public String getName() {
+        return p == 0.5 ? MEDIAN : "p" + Math.round(p * 100);
+    }
+}
@@ -0,0 +1,21 @@
+package com.flat.wifi;
+
+/**
+ * Estimates a BSSID's level from its scan results as they arrive, in O(1) per result and without
+ * keeping them. One instance per BSSID, see {@link ScanAggregator#setEstimator(Factory)}.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public interface RssiEstimator {
+    /** @param timeUs the result's timestamp in microseconds, not decreasing. */
+    void add(int level, long timeUs);
+
+    /** @return the estimated level in dBm, or 0 before any result. */
+    float estimate();
+
+    String getName();
+
+    interface Factory {
+        RssiEstimator create();
+    }
+}
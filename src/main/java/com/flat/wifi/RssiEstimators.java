@@ -0,0 +1,59 @@
+package com.flat.wifi;
+
+import com.flat.aa.Config;
+
+/**
+ * The {@link RssiEstimator}s by name, for {@link Config#SCAN_RSSI_ESTIMATOR}.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class RssiEstimators {
+    /** No estimator: the max of the latest results, see {@link AggregateScanResult#effectiveRssi()}. */
+    public static final String MAX = "max";
+
+    private RssiEstimators() {}
+
+    /**
+     * @param name {@link #MAX}, {@link KalmanRssiFilter#NAME}, {@link EmaRssiFilter#NAME},
+     * {@link P2Quantile#MEDIAN}, or "p" and a percentile such as "p75".
+     * @return a factory for the estimator, or null for {@link #MAX}.
+     */
+    public static RssiEstimator.Factory forName(String name) {
+        if (MAX.equals(name)) {
+            return null;
+        } else if (KalmanRssiFilter.NAME.equals(name)) {
+            return new RssiEstimator.Factory() {
+                @Override
+                public RssiEstimator create() {
+                    return new KalmanRssiFilter(Config.SCAN_KALMAN_PROCESS_NOISE, Config.SCAN_KALMAN_MEASUREMENT_NOISE);
+                }
+            };
+        } else if (EmaRssiFilter.NAME.equals(name)) {
+            return new RssiEstimator.Factory() {
+                @Override
+                public RssiEstimator create() {
+                    return new EmaRssiFilter(Config.SCAN_EMA_ALPHA);
+                }
+            };
+        } else if (P2Quantile.MEDIAN.equals(name)) {
+            return quantile(0.5);
+        } else if (name != null && name.startsWith("p")) {
+            try {
+                int percent = Integer.parseInt(name.substring(1));
+                if (percent >= 0 && percent <= 100) {
+                    return quantile(percent / 100.0);
+                }
+            } catch (NumberFormatException ignored) {}
+        }
+        throw new IllegalArgumentException("Unknown rssi estimator " + name);
+    }
+
+    public static RssiEstimator.Factory quantile(final double p) {
+        return new RssiEstimator.Factory() {
+            @Override
+            public RssiEstimator create() {
+                return new P2Quantile(p);
+            }
+        };
+    }
+}
@@ -1,9 +1,12 @@
 package com.flat.wifi;
 
-import android.net.wifi.ScanResult;
+import android.os.SystemClock;
+
+import com.flat.aa.Config;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -17,14 +20,70 @@ public class ScanAggregator {
         return aggResults.values();
     }
 
-    public void processScanResults(List<ScanResult> scanResults) {
-        for (ScanResult sr : scanResults) {
-            AggregateScanResult agg = aggResults.get(sr.BSSID);
+    private RssiEstimator.Factory estimatorFactory = RssiEstimators.forName(Config.SCAN_RSSI_ESTIMATOR);
+    public RssiEstimator.Factory getEstimator() { return estimatorFactory; }
+
+    /**
+     * Gives each BSSID a new estimator from the factory, which sees results from now on, or null to
+     * use the max of the latest results. See {@link AggregateScanResult#estimatedRssi()}.
+     */
+    public void setEstimator(RssiEstimator.Factory factory) {
+        estimatorFactory = factory;
+        for (AggregateScanResult agg : aggResults.values()) {
+            agg.setEstimator(factory == null ? null : factory.create());
+        }
+    }
+
+    /** The latest result timestamp processed, in microseconds. */
+    private long latestTimestampUs;
+    private boolean traceClock;
+
+    /**
+     * Whether {@link #nowUs()} is the latest result timestamp processed rather than the device
+     * clock, so that results replayed from a {@link ScanTrace} age as they did when recorded.
+     */
+    public void setTraceClock(boolean traceClock) {
+        this.traceClock = traceClock;
+    }
+
+    /**
+     * @return the time to age results by, in the microseconds of {@link ScanRecord#timestamp}. That
+     * is the clock of elapsedRealtime, which unlike System.nanoTime() keeps counting in deep sleep.
+     */
+    public long nowUs() {
+        return traceClock ? latestTimestampUs : SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    public void processScanResults(List<ScanRecord> scanResults) {
+        for (ScanRecord sr : scanResults) {
+            if (sr.timestamp > latestTimestampUs) latestTimestampUs = sr.timestamp;
+            AggregateScanResult agg = aggResults.get(sr.bssid);
             if (agg == null) {
-                agg = new AggregateScanResult();
-                aggResults.put(sr.BSSID, agg);
+                agg = new AggregateScanResult(Config.SCAN_MIN_SCANS,
+                        estimatorFactory == null ? null : estimatorFactory.create());
+                aggResults.put(sr.bssid, agg);
             }
             agg.add(sr);
         }
+        expire(nowUs());
+    }
+
+    /**
+     * Drops the BSSIDs, with their estimators, that haven't been seen for {@link Config#SCAN_CUTOFF_AGE_US},
+     * so access points that went away don't stay in the results or keep a stale estimate to start
+     * from if they come back.
+     * @return the number of BSSIDs dropped.
+     */
+    public int expire(long nowUs) {
+        long cutoff = nowUs - Config.SCAN_CUTOFF_AGE_US;
+        int removed = 0;
+        Iterator<AggregateScanResult> it = aggResults.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getLatestTime() <= cutoff) {
+                it.remove();
+                ++removed;
+            }
+        }
+        return removed;
     }
 }
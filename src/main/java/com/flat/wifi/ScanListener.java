@@ -0,0 +1,13 @@
+package com.flat.wifi;
+
+import java.util.List;
+
+/**
+ * Receives each scan's results, from a {@link WifiScanner} or a {@link ScanTraceReplayer}.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public interface ScanListener {
+    /** From the scanner, called on its result stage thread rather than the main thread. */
+    void onScanResults(List<ScanRecord> scanResults);
+}
@@ -0,0 +1,35 @@
+package com.flat.wifi;
+
+/**
+ * The parts of a scan result that ranging, scheduling and traces use. Scans arrive as
+ * {@link android.net.wifi.ScanResult}s and are copied into these as they come off the platform
+ * (see {@link WifiScanner#toRecords(java.util.List)}), so everything after that, including
+ * {@link ScanTrace} replays on the trace clock, runs without Android.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class ScanRecord {
+    public String bssid;
+    public String ssid;
+    /** MHz. */
+    public int freq;
+    /** dBm. */
+    public int rssi;
+    /** Microseconds since boot when the result was last seen, like ScanResult's timestamp. */
+    public long timestamp;
+
+    public ScanRecord() {}
+
+    public ScanRecord(String bssid, String ssid, int freq, int rssi, long timestamp) {
+        this.bssid = bssid;
+        this.ssid = ssid;
+        this.freq = freq;
+        this.rssi = rssi;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return bssid + " (" + ssid + ") " + rssi + "dBm " + freq + "MHz @" + timestamp;
+    }
+}
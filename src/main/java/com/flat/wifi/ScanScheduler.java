@@ -0,0 +1,177 @@
+package com.flat.wifi;
+
+import com.flat.aa.Config;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the time between WiFi scans from what the scans find, instead of a fixed period. Each
+ * BSSID's level is tracked with an exponentially weighted mean and variance. While new BSSIDs
+ * appear or many levels are noisy, the interval is halved, down to
+ * {@link Config#SCAN_PERIOD_MIN_MS}; otherwise it doubles, up to {@link Config#SCAN_PERIOD_MAX_MS}.
+ * A scan phase can end early once every BSSID in the latest scan has a converged level, i.e. the
+ * standard error of its weighted mean is within {@link Config#SCAN_CONVERGED_DB}, and ends by
+ * {@link Config#SCAN_PHASE_MAX_MS} either way, since scans are further apart.
+ * <p>
+ * Cached results a scan returns again (same timestamp) aren't counted as new measurements.
+ * Thread safe.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class ScanScheduler {
+    /** Fraction of the latest scan's BSSIDs with noisy levels above which scanning speeds up. */
+    private static final float UNSTABLE_FRACTION = 0.25f;
+
+    private static final class Track {
+        long lastTimestamp;
+        double mean, variance;
+        int count;
+    }
+
+    private final long minInterval, maxInterval, baseInterval;
+    private final double alpha;
+    /** Variance of the weighted mean relative to the variance of one level, for a long run. */
+    private final double meanVarianceFactor;
+
+    private final Map<String, Track> tracks = new HashMap<String, Track>();
+    private long interval;
+    private int scanCount;
+    /** Latest result timestamp of the phase's first and latest scans, in microseconds. */
+    private long phaseStartUs, latestUs;
+    private boolean converged;
+    private int lastNew, lastUnstable, lastSize;
+
+    public ScanScheduler() {
+        this(Config.SCAN_PERIOD_MIN_MS, Config.SCAN_PERIOD_MAX_MS, Config.SCAN_PERIOD_MS, Config.SCAN_VARIANCE_ALPHA);
+    }
+
+    /** @param alpha weight of each new level in a BSSID's mean and variance. */
+    public ScanScheduler(long minInterval, long maxInterval, long baseInterval, double alpha) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.baseInterval = Math.max(minInterval, Math.min(maxInterval, baseInterval));
+        this.alpha = alpha;
+        meanVarianceFactor = alpha / (2 - alpha);
+        interval = this.baseInterval;
+    }
+
+    /**
+     * @return a scheduler that starts from the base interval if {@link Config#SCAN_ADAPTIVE}, or
+     * null if scans should stay at the base interval.
+     */
+    public static ScanScheduler create(long baseInterval) {
+        if (!Config.SCAN_ADAPTIVE) return null;
+        return new ScanScheduler(Config.SCAN_PERIOD_MIN_MS, Config.SCAN_PERIOD_MAX_MS, baseInterval, Config.SCAN_VARIANCE_ALPHA);
+    }
+
+    /** Updates the levels and the interval from a scan's results. */
+    public synchronized void onScanResults(List<ScanRecord> results) {
+        ++scanCount;
+        int added = 0, unstable = 0, size = 0;
+        boolean allConverged = true;
+        long latest = 0;
+        for (ScanRecord sr : results) {
+            if (sr.timestamp > latest) latest = sr.timestamp;
+            Track t = tracks.get(sr.bssid);
+            if (t == null) {
+                t = new Track();
+                tracks.put(sr.bssid, t);
+                ++added;
+            }
+            if (t.count == 0 || sr.timestamp != t.lastTimestamp) {
+                add(t, sr.rssi);
+                t.lastTimestamp = sr.timestamp;
+            }
+            ++size;
+            if (t.count > 1 && t.variance > Config.SCAN_UNSTABLE_DB * Config.SCAN_UNSTABLE_DB) ++unstable;
+            if (!isConverged(t)) allConverged = false;
+        }
+
+        if (latest > latestUs) latestUs = latest;
+        if (scanCount == 1) phaseStartUs = latestUs;
+
+        // forget BSSIDs that haven't been seen for a while
+        long cutoff = latest - Config.SCAN_CUTOFF_AGE_US;
+        for (Iterator<Track> it = tracks.values().iterator(); it.hasNext(); ) {
+            if (it.next().lastTimestamp < cutoff) it.remove();
+        }
+
+        if (added > 0 || unstable > size * UNSTABLE_FRACTION) {
+            interval = Math.max(minInterval, interval / 2);
+        } else {
+            interval = Math.min(maxInterval, interval * 2);
+        }
+        converged = size > 0 && allConverged;
+        lastNew = added;
+        lastUnstable = unstable;
+        lastSize = size;
+    }
+
+    private void add(Track t, int level) {
+        if (t.count++ == 0) {
+            t.mean = level;
+            t.variance = 0;
+            return;
+        }
+        double delta = level - t.mean;
+        t.mean += alpha * delta;
+        t.variance = (1 - alpha) * (t.variance + alpha * delta * delta);
+    }
+
+    private boolean isConverged(Track t) {
+        return t.count >= Config.SCAN_CONVERGE_MIN_RESULTS
+                && t.variance * meanVarianceFactor <= Config.SCAN_CONVERGED_DB * Config.SCAN_CONVERGED_DB;
+    }
+
+    /** @return the longest the interval backs off to, in millis. */
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+    /** @return millis to wait before the next scan. */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /** @return whether every BSSID in the latest scan has a converged level. */
+    public synchronized boolean isConverged() {
+        return converged;
+    }
+
+    /** @return the scans since the phase started. */
+    public synchronized int getScanCount() {
+        return scanCount;
+    }
+
+    /** @return millis between the phase's first and latest scans, by the results' timestamps. */
+    public synchronized long getPhaseTime() {
+        return scanCount == 0 ? 0 : (latestUs - phaseStartUs) / 1000;
+    }
+
+    /**
+     * @return whether the phase has had maxScans scans, or lasted {@link Config#SCAN_PHASE_MAX_MS}
+     * so ranges are no staler than with fixed scans, or had at least minScans and the levels have
+     * converged.
+     */
+    public synchronized boolean isPhaseComplete(int minScans, int maxScans) {
+        return scanCount >= maxScans
+                || (scanCount > 0 && getPhaseTime() >= Config.SCAN_PHASE_MAX_MS)
+                || (scanCount >= minScans && converged);
+    }
+
+    /** Starts a new phase: the scan count and interval are reset, the levels are kept. */
+    public synchronized void startPhase() {
+        scanCount = 0;
+        converged = false;
+        interval = baseInterval;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d scans in %dms, next in %dms; latest scan: %d BSSIDs, %d new, %d unstable%s",
+                scanCount, getPhaseTime(), interval, lastSize, lastNew, lastUnstable, converged ? ", converged" : "");
+    }
+}
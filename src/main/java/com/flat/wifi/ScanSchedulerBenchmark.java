@@ -0,0 +1,78 @@
+package com.flat.wifi;
+
+import com.flat.aa.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replays a {@link ScanTrace} under the fixed scan period and under a {@link ScanScheduler}, to
+ * compare how many scans each takes, how many scan phases (range updates) they complete and how
+ * stale the ranges get. The scheduler only sees the batches it would have scanned for: after each
+ * scan, batches recorded before its interval has passed are skipped. Phases end as in
+ * ScanAndDataMode, with the scan limit fixed at {@link Config#SCAN_MIN_SCANS} for repeatability.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class ScanSchedulerBenchmark {
+    private ScanSchedulerBenchmark() {}
+
+    private static final class Run {
+        int scans, phases;
+        long staleness, samples;
+        long nextScanAt = Long.MIN_VALUE, lastPhaseEnd = -1;
+
+        void sample(long time) {
+            if (lastPhaseEnd >= 0) {
+                staleness += time - lastPhaseEnd;
+                ++samples;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d scans, %d phases, %.1f scans per phase, ranges %.1fs old on average",
+                    scans, phases, phases == 0 ? 0f : (float) scans / phases,
+                    samples == 0 ? 0f : staleness / 1000f / samples);
+        }
+    }
+
+    public static String compare(File trace) throws IOException {
+        Run fixed = new Run(), adaptive = new Run();
+        ScanScheduler scheduler = new ScanScheduler();
+        int fixedPhaseScans = 0;
+
+        ScanTrace.Reader reader = new ScanTrace.Reader(trace);
+        try {
+            ScanTrace.Batch batch;
+            while ((batch = reader.next()) != null) {
+                fixed.sample(batch.time);
+                adaptive.sample(batch.time);
+
+                if (batch.time >= fixed.nextScanAt) {
+                    ++fixed.scans;
+                    if (++fixedPhaseScans == Config.SCAN_MIN_SCANS) {
+                        ++fixed.phases;
+                        fixed.lastPhaseEnd = batch.time;
+                        fixedPhaseScans = 0;
+                    }
+                    fixed.nextScanAt = batch.time + Config.SCAN_PERIOD_MS;
+                }
+
+                if (batch.time >= adaptive.nextScanAt) {
+                    ++adaptive.scans;
+                    scheduler.onScanResults(batch.results);
+                    if (scheduler.isPhaseComplete(Config.SCAN_PHASE_MIN_SCANS, Config.SCAN_MIN_SCANS)) {
+                        ++adaptive.phases;
+                        adaptive.lastPhaseEnd = batch.time;
+                        scheduler.startPhase();
+                    }
+                    adaptive.nextScanAt = batch.time + scheduler.getInterval();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return "Fixed " + Config.SCAN_PERIOD_MS + "ms: " + fixed + "\nAdaptive: " + adaptive;
+    }
+}
@@ -0,0 +1,313 @@
+package com.flat.wifi;
+
+import com.flat.util.Bytes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact append only file of scan batches (BSSID, SSID, frequency, level and timestamp of
+ * each result), to replay a session off the device with {@link ScanTraceReplayer}.
+ * <p>
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by frames of a varint length
+ * and that many bytes. A frame is either a session, written each time a {@link Writer} opens the
+ * file, or a batch. Within a session strings are sent once and referred to by index after, and
+ * batch times and result timestamps are varint deltas from the previous ones. A frame cut short
+ * by a crash ends the trace, unless a writer opens the file again: it cuts the file back to the
+ * last complete frame first, so its session follows on readably.
+ * <p>
+ * Batches hold {@link ScanRecord}s, so traces are written and read without Android.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class ScanTrace {
+    public static final int MAGIC = 0x464C5354; // "FLST"
+    public static final int VERSION = 1;
+
+    private static final int FRAME_SESSION = 1;
+    private static final int FRAME_BATCH = 2;
+    /** Largest frame a reader accepts, to fail fast on a corrupt length. */
+    private static final int MAX_FRAME = 1 << 24;
+    private static final int HEADER_SIZE = 5;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ScanTrace() {}
+
+    /** One scan's results and when they were received. */
+    public static final class Batch {
+        /** Wall clock millis when the scan was delivered. */
+        public long time;
+        public final List<ScanRecord> results = new ArrayList<ScanRecord>();
+    }
+
+    /**
+     * Appends batches to a trace file, flushing each so a crash loses at most the batch being
+     * written. Can be registered as a {@link ScanListener}, in which case the first
+     * write that fails stops the recording, see {@link #getFailure()}. Thread safe.
+     */
+    public static final class Writer implements ScanListener, Closeable {
+        private final OutputStream out;
+        private final Bytes.Output frame = new Bytes.Output(4096);
+        private final Bytes.Output length = new Bytes.Output(10);
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+        private long lastBatchTime, lastTimestamp;
+        private IOException failure;
+
+        /**
+         * Opens the file for appending and starts a new session. A file without a whole header is
+         * started over, and one ending in a frame cut short is cut back to its last complete frame.
+         * @throws IOException if the file has a header that isn't a scan trace of this version.
+         */
+        public Writer(File file) throws IOException {
+            long end = file.exists() ? completeLength(file) : 0;
+            if (file.exists() && end < file.length()) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(end);
+                } finally {
+                    raf.close();
+                }
+            }
+            boolean fresh = end == 0;
+            out = new BufferedOutputStream(new FileOutputStream(file, true));
+            if (fresh) {
+                for (int shift = 24; shift >= 0; shift -= 8) {
+                    out.write(MAGIC >>> shift);
+                }
+                out.write(VERSION);
+            }
+            frame.writeByte(FRAME_SESSION);
+            writeFrame();
+        }
+
+        @Override
+        public synchronized void onScanResults(List<ScanRecord> scanResults) {
+            if (failure != null) return;
+            try {
+                write(System.currentTimeMillis(), scanResults);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        /** @return why recording from {@link #onScanResults(List)} stopped, or null if it hasn't. */
+        public synchronized IOException getFailure() {
+            return failure;
+        }
+
+        public synchronized void write(long time, List<ScanRecord> results) throws IOException {
+            frame.writeByte(FRAME_BATCH);
+            frame.writeSignedVarint(time - lastBatchTime);
+            lastBatchTime = time;
+            frame.writeVarint(results.size());
+            for (ScanRecord sr : results) {
+                writeString(sr.bssid);
+                writeString(sr.ssid);
+                frame.writeVarint(sr.freq);
+                frame.writeSignedVarint(sr.rssi);
+                frame.writeSignedVarint(sr.timestamp - lastTimestamp);
+                lastTimestamp = sr.timestamp;
+            }
+            writeFrame();
+        }
+
+        /** 0 for null, the index plus one of a string already written, otherwise a new string. */
+        private void writeString(String s) {
+            if (s == null) {
+                frame.writeVarint(0);
+                return;
+            }
+            Integer ref = strings.get(s);
+            if (ref != null) {
+                frame.writeVarint(ref);
+            } else {
+                ref = strings.size() + 1;
+                strings.put(s, ref);
+                frame.writeVarint(ref);
+                byte[] utf8 = s.getBytes(UTF8);
+                frame.writeVarint(utf8.length);
+                frame.writeBytes(utf8);
+            }
+        }
+
+        private void writeFrame() throws IOException {
+            length.clear();
+            length.writeVarint(frame.size());
+            length.writeTo(out);
+            frame.writeTo(out);
+            frame.clear();
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the length of the header and the complete frames at the start of the file, or 0 if
+     * the header itself is cut short.
+     * @throws IOException if the header isn't that of a scan trace of this version.
+     */
+    static long completeLength(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (file.length() < HEADER_SIZE) return 0;
+            if (in.readInt() != MAGIC) throw new IOException("Not a scan trace");
+            int version = in.readUnsignedByte();
+            if (version != VERSION) throw new IOException("Unsupported scan trace version " + version);
+
+            long end = HEADER_SIZE, remaining = file.length() - HEADER_SIZE;
+            while (remaining > 0) {
+                long length = 0;
+                int lengthSize = 0;
+                for (int shift = 0; ; shift += 7) {
+                    if (lengthSize == remaining || shift > 28) return end;
+                    int b = in.read();
+                    ++lengthSize;
+                    length |= (long) (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) break;
+                }
+                if (length > MAX_FRAME || lengthSize + length > remaining) return end;
+                long skipped = 0;
+                while (skipped < length) {
+                    long n = in.skip(length - skipped);
+                    if (n <= 0) return end;
+                    skipped += n;
+                }
+                end += lengthSize + length;
+                remaining -= lengthSize + length;
+            }
+            return end;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Reads the batches of a trace in order. Not thread safe. */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<String>();
+        private long lastBatchTime, lastTimestamp;
+        private boolean truncated;
+
+        public Reader(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        public Reader(InputStream stream) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(stream));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not a scan trace");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                in.close();
+                throw new IOException("Unsupported scan trace version " + version);
+            }
+        }
+
+        /** @return the next batch, or null at the end of the trace. */
+        public Batch next() throws IOException {
+            while (true) {
+                Bytes.Input frame = readFrame();
+                if (frame == null) return null;
+                try {
+                    int type = frame.readByte();
+                    if (type == FRAME_SESSION) {
+                        strings.clear();
+                        lastBatchTime = 0;
+                        lastTimestamp = 0;
+                    } else if (type == FRAME_BATCH) {
+                        return readBatch(frame);
+                    }
+                    // skip frames from newer writers
+                } catch (IndexOutOfBoundsException e) {
+                    throw new IOException("Corrupt scan trace frame", e);
+                }
+            }
+        }
+
+        private Batch readBatch(Bytes.Input frame) {
+            Batch batch = new Batch();
+            lastBatchTime += frame.readSignedVarint();
+            batch.time = lastBatchTime;
+            int count = frame.readCount();
+            for (int i = 0; i < count; ++i) {
+                ScanRecord sr = new ScanRecord();
+                sr.bssid = readString(frame);
+                sr.ssid = readString(frame);
+                sr.freq = (int) frame.readVarint();
+                sr.rssi = (int) frame.readSignedVarint();
+                lastTimestamp += frame.readSignedVarint();
+                sr.timestamp = lastTimestamp;
+                batch.results.add(sr);
+            }
+            return batch;
+        }
+
+        private String readString(Bytes.Input frame) {
+            int ref = (int) frame.readVarint();
+            if (ref == 0) return null;
+            if (ref <= strings.size()) return strings.get(ref - 1);
+            if (ref != strings.size() + 1) {
+                throw new IndexOutOfBoundsException("String " + ref + " of " + strings.size());
+            }
+            String s = frame.readString(frame.readCount(), UTF8);
+            strings.add(s);
+            return s;
+        }
+
+        /** @return whether the trace ended in a frame cut short, e.g. by a crash while recording. */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /** @return the next frame, or null at the end or at a frame cut short. */
+        private Bytes.Input readFrame() throws IOException {
+            long length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    truncated = shift > 0;
+                    return null;
+                }
+                length |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+                if (shift > 28) throw new IOException("Corrupt scan trace frame length");
+            }
+            if (length > MAX_FRAME) throw new IOException("Scan trace frame of " + length + " bytes");
+            byte[] bytes = new byte[(int) length];
+            try {
+                in.readFully(bytes);
+            } catch (EOFException e) {
+                truncated = true;
+                return null;
+            }
+            return new Bytes.Input(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
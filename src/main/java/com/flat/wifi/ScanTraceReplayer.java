@@ -0,0 +1,70 @@
+package com.flat.wifi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds the batches of a {@link ScanTrace} to scan listeners in order on the calling thread,
+ * either as fast as possible or paced like the recording, so ranging and localization can be
+ * profiled and checked without radios. Typical sinks are {@link #forAggregator(ScanAggregator)},
+ * {@link com.flat.localization.signals.WifiBeacon#getReplaySink()} and
+ * {@link com.flat.aa.ScanAndDataMode#getScanListener()}; use
+ * {@link ScanAggregator#setTraceClock(boolean)} so results age by their recorded timestamps.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public final class ScanTraceReplayer {
+    private final List<ScanListener> sinks = new ArrayList<ScanListener>();
+    private double speed;
+    private long maxGapMs = 10000;
+
+    public void addSink(ScanListener sink) {
+        sinks.add(sink);
+    }
+
+    /** @param speed 1 to replay at the recorded pace, 2 twice as fast, 0 (the default) as fast as possible. */
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    /** Longer pauses between batches, e.g. between recording sessions, are shortened to this. */
+    public void setMaxGap(long ms) {
+        maxGapMs = ms;
+    }
+
+    /** @return the number of batches replayed. */
+    public int replay(ScanTrace.Reader reader) throws IOException, InterruptedException {
+        int count = 0;
+        long lastTime = 0, elapsedMs = 0;
+        long start = System.nanoTime();
+        ScanTrace.Batch batch;
+        while ((batch = reader.next()) != null) {
+            if (speed > 0) {
+                if (count > 0) {
+                    elapsedMs += Math.max(0, Math.min(maxGapMs, batch.time - lastTime));
+                }
+                long due = start + (long) (elapsedMs * 1000000L / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                }
+            }
+            lastTime = batch.time;
+            for (ScanListener sink : sinks) {
+                sink.onScanResults(batch.results);
+            }
+            ++count;
+        }
+        return count;
+    }
+
+    public static ScanListener forAggregator(final ScanAggregator aggregator) {
+        return new ScanListener() {
+            @Override
+            public void onScanResults(List<ScanRecord> scanResults) {
+                aggregator.processScanResults(scanResults);
+            }
+        };
+    }
+}
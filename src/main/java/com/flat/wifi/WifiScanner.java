@@ -8,14 +8,19 @@ import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 
 import com.flat.aa.Config;
+import com.flat.util.ScanStage;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by Jacob Phillips.
+ * <p>
+ * The scan receiver only queues each scan's results; the scheduler and the listeners run on
+ * {@link #getResultStage()}'s thread.
  */
 public class WifiScanner {
     Context context;
@@ -33,20 +38,52 @@ public class WifiScanner {
     private WifiScanner(Context ctx) {
         context = ctx;
         manager = (WifiManager) ctx.getSystemService(Context.WIFI_SERVICE);
+        scheduler = Config.SCAN_ADAPTIVE ? new ScanScheduler() : null;
     }
 
+    private final ScanScheduler scheduler;
+    /** @return what picks the time between scans, or null if they run every {@link Config#SCAN_PERIOD_MS}. */
+    public ScanScheduler getScheduler() { return scheduler; }
+
+    private TimerTask pendingScan;
+    /** Set on the timer thread and read on the stage thread. */
+    private volatile long lastScanStart;
 
     final BroadcastReceiver scanReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            List<ScanResult> results = manager.getScanResults();
+            resultStage.offer(toRecords(manager.getScanResults()));
+        }
+    };
+
+    private final ScanStage<List<ScanRecord>> resultStage = new ScanStage<List<ScanRecord>>("WifiScanner-results",
+            new ScanStage.Handler<List<ScanRecord>>() {
+        @Override
+        public void handle(List<ScanRecord> results) {
+            // before the listeners, so they see the scheduler's view of this scan
+            if (scheduler != null) scheduler.onScanResults(results);
             for (ScanListener l : listeners) {
                 l.onScanResults(results);
             }
+            if (scheduler != null) {
+                scheduleScan(Math.max(0, scheduler.getInterval() - (System.currentTimeMillis() - lastScanStart)));
+            }
         }
-    };
+    }, Config.SCAN_QUEUE_CAPACITY, Config.SCAN_SLOW_STAGE_MS);
+    /** Where scan results wait for the scheduler and listeners, with its latency counters. */
+    public ScanStage<List<ScanRecord>> getResultStage() { return resultStage; }
+
+    /** Copies what is used of the platform's results, so nothing past the receiver needs Android. */
+    public static List<ScanRecord> toRecords(List<ScanResult> results) {
+        if (results == null) return new ArrayList<ScanRecord>(0);
+        List<ScanRecord> records = new ArrayList<ScanRecord>(results.size());
+        for (ScanResult sr : results) {
+            records.add(new ScanRecord(sr.BSSID, sr.SSID, sr.frequency, sr.level, sr.timestamp));
+        }
+        return records;
+    }
 
-    public void start() {
+    public synchronized void start() {
         if (enabled) return;
         enabled = true;
 
@@ -55,16 +92,39 @@ public class WifiScanner {
             timer.cancel();
         }
         timer = new Timer();
-        timer.schedule(new TimerTask() {
+        if (scheduler != null) {
+            scheduler.startPhase();
+            scheduleScan(0);
+        } else {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    manager.startScan();
+                }
+            }, 0, Config.SCAN_PERIOD_MS);
+        }
+    }
+
+    /** Replaces the pending scan with one after the delay. */
+    private synchronized void scheduleScan(long delay) {
+        if (!enabled) return;
+        if (pendingScan != null) {
+            pendingScan.cancel();
+        }
+        pendingScan = new TimerTask() {
             @Override
             public void run() {
+                lastScanStart = System.currentTimeMillis();
                 manager.startScan();
+                // scan again anyway if the results never arrive
+                scheduleScan(Config.SCAN_PERIOD_MAX_MS);
             }
-        }, 0, Config.SCAN_PERIOD_MS);
+        };
+        timer.schedule(pendingScan, delay);
     }
 
 
-    public void stop() {
+    public synchronized void stop() {
         if (!enabled) return;
         enabled = false;
 
@@ -72,18 +132,13 @@ public class WifiScanner {
         if (timer != null) {
             timer.cancel();
         }
+        pendingScan = null;
     }
 
     public boolean isEnabled() { return enabled; }
 
 
-    /**
-     * Allow other objects to react to node events.
-     */
-    public interface ScanListener {
-        void onScanResults(List<ScanResult> scanResults);
-    }
-    private final List<ScanListener> listeners = new ArrayList<ScanListener>(1);
+    private final List<ScanListener> listeners = new CopyOnWriteArrayList<ScanListener>();
     public boolean registerListener(ScanListener l) {
         return !listeners.contains(l) && listeners.add(l);
     }
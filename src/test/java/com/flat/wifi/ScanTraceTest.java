@@ -0,0 +1,124 @@
+package com.flat.wifi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * A writer reopening a trace that a crash cut short must not leave its session unreadable
+ * behind the partial frame.
+ *
+ * @author Jacob Phillips (05/2015, jphilli85 at gmail)
+ */
+public class ScanTraceTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("scan", ".trace");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void appendsAfterFrameCutShort() throws IOException {
+        ScanTrace.Writer writer = new ScanTrace.Writer(file);
+        writer.write(1000, records("a", -50, 1));
+        writer.write(2000, records("b", -60, 2));
+        writer.close();
+
+        // a crash while writing a third batch leaves part of its frame
+        writer = new ScanTrace.Writer(file);
+        writer.write(3000, records("c", -70, 3));
+        writer.close();
+        truncate(file, file.length() - 2);
+
+        writer = new ScanTrace.Writer(file);
+        writer.write(4000, records("a", -55, 4));
+        writer.write(5000, records("d", -65, 5));
+        writer.close();
+
+        ScanTrace.Reader reader = new ScanTrace.Reader(file);
+        try {
+            assertBatch(reader.next(), 1000, "a", -50, 1);
+            assertBatch(reader.next(), 2000, "b", -60, 2);
+            // the session frame of the crashed writer survives, its batch doesn't
+            assertBatch(reader.next(), 4000, "a", -55, 4);
+            assertBatch(reader.next(), 5000, "d", -65, 5);
+            assertNull(reader.next());
+            assertFalse(reader.isTruncated());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void startsOverAfterHeaderCutShort() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[] { 0x46, 0x4C, 0x53 });
+        raf.close();
+
+        ScanTrace.Writer writer = new ScanTrace.Writer(file);
+        writer.write(1000, records("a", -50, 1));
+        writer.close();
+
+        ScanTrace.Reader reader = new ScanTrace.Reader(file);
+        try {
+            assertBatch(reader.next(), 1000, "a", -50, 1);
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesOtherFiles() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write("not a trace".getBytes("UTF-8"));
+        raf.close();
+        new ScanTrace.Writer(file);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<ScanRecord> records(String bssid, int rssi, long timestamp) {
+        ScanRecord sr = new ScanRecord();
+        sr.bssid = bssid;
+        sr.ssid = "ssid-" + bssid;
+        sr.freq = 2412;
+        sr.rssi = rssi;
+        sr.timestamp = timestamp;
+        return new ArrayList<ScanRecord>(Arrays.asList(sr));
+    }
+
+    private static void assertBatch(ScanTrace.Batch batch, long time, String bssid, int rssi, long timestamp) {
+        assertEquals(time, batch.time);
+        assertEquals(1, batch.results.size());
+        ScanRecord sr = batch.results.get(0);
+        assertEquals(bssid, sr.bssid);
+        assertEquals("ssid-" + bssid, sr.ssid);
+        assertEquals(rssi, sr.rssi);
+        assertEquals(timestamp, sr.timestamp);
+    }
+}